@@ -0,0 +1,92 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Incremental backups of an unchanged save, in every format. Each backup is
+ * deleted after it's timed, outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(2)
+public class BackupBenchmark {
+
+    @Param({"PLAIN", "BLOBS", "CHUNKS", "ARCHIVE"})
+    public BackupManager.Format format;
+    @Param({"10 x 1048576", "100 x 65536", "1000 x 4096"})
+    public String files;
+    private Path save, backups;
+    private BackupManager manager;
+    private String last;
+
+    @Setup
+    public void setUp() throws IOException {
+        save = Fixtures.tempFolder();
+        backups = Fixtures.tempFolder();
+        Fixtures.createSave(save, files);
+        manager = new BackupManager(save.toString(), backups.toString(),
+                new CopyEngine(4, CopyEngine.SyncPolicy.NONE), format);
+        // Keep one backup, so the measured ones are incremental
+        manager.backup(OperationMonitor.NONE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(save);
+        Fixtures.delete(backups);
+    }
+
+    @Benchmark
+    public OperationResult backup() throws IOException {
+        OperationResult result = manager.backup(OperationMonitor.NONE);
+        last = result.getTarget();
+        return result;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteBackup() throws IOException {
+        if (last != null) {
+            manager.deleteBackup(last);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Folders and files the benchmarks run on.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Fills a folder with save files of random content, so that they don't
+     * compress or deduplicate better than real ones would.
+     *
+     * @param files How many files, and how big, as "count x bytes".
+     */
+    static File[] createSave(Path folder, String files) throws IOException {
+        String[] parts = files.split("x");
+        int count = Integer.parseInt(parts[0].trim()), size = Integer.parseInt(parts[1].trim());
+        Random random = new Random(count * 31L + size);
+        byte[] content = new byte[size];
+        File[] created = new File[count];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(content);
+            created[i] = Files.write(folder.resolve("save" + i + ".sol"), content).toFile();
+        }
+        return created;
+    }
+
+    /**
+     * Creates empty backup folders, one a minute going back from 2014, plus a
+     * few files that aren't backups.
+     */
+    static void createBackupFolders(File folder, int count) throws IOException {
+        long time = 1400000000000L;
+        SimpleDateFormat date = new SimpleDateFormat("yyyy_MM_dd HH-mm-ss");
+        for (int i = 0; i < count; i++) {
+            if (!new File(folder, date.format(new Date(time - i * 60000L))).mkdir()) {
+                throw new IOException("Can't create the backup folders in " + folder);
+            }
+        }
+        for (int i = 0; i < count / 100; i++) {
+            Files.createFile(folder.toPath().resolve("notes" + i + ".txt"));
+        }
+    }
+
+    static Path tempFolder() throws IOException {
+        return Files.createTempDirectory("nss-bench");
+    }
+
+    static void delete(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,129 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing the backup folder and finding the latest backup, by listing the
+ * folder or through the catalog, cold (loaded from its file) or warm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(2)
+public class ScanBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+    private Path folder;
+    private File backups;
+    private BackupCatalog warm;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Fixtures.tempFolder();
+        backups = folder.toFile();
+        Fixtures.createBackupFolders(backups, size);
+        warm = new BackupCatalog(backups);
+        warm.rebuild();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(folder);
+    }
+
+    @Benchmark
+    public String[] scan() {
+        return backups.list(BackupManager.bkpFolderFilter);
+    }
+
+    @Benchmark
+    public String[] scanAndSort() {
+        String[] names = backups.list(BackupManager.bkpFolderFilter);
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Benchmark
+    public List<BackupScanner.Backup> scanner() throws IOException {
+        return new BackupScanner(backups).scan();
+    }
+
+    @Benchmark
+    public BackupCatalog catalogRebuild() {
+        BackupCatalog catalog = new BackupCatalog(backups);
+        catalog.rebuild();
+        return catalog;
+    }
+
+    @Benchmark
+    public List<String> catalogListCold() {
+        return new BackupCatalog(backups).list();
+    }
+
+    @Benchmark
+    public List<String> catalogListWarm() {
+        return warm.list();
+    }
+
+    @Benchmark
+    public String latestByScanning() {
+        String newest = null;
+        for (String name : backups.list(BackupManager.bkpFolderFilter)) {
+            if (newest == null || name.compareTo(newest) > 0) {
+                newest = name;
+            }
+        }
+        return newest;
+    }
+
+    @Benchmark
+    public String latestCatalogCold() {
+        return new BackupCatalog(backups).latest();
+    }
+
+    @Benchmark
+    public String latestCatalogWarm() {
+        return warm.latest();
+    }
+}
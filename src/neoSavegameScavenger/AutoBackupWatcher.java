@@ -0,0 +1,232 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the savegame folder and asks for a backup once the game is done
+ * saving. The folder is never polled: the thread sleeps in the WatchService
+ * until a save file changes, then waits for the files to stay unchanged (same
+ * sizes and modification times) for a whole quiet window, so the burst of
+ * writes of a single save gives a single backup. Backups are also at least a
+ * minimum interval apart, and one that failed is asked for again after the
+ * interval.
+ */
+public class AutoBackupWatcher implements Runnable {
+
+    /**
+     * Gets told, on the watcher's thread, that the save should be backed up.
+     * The backup must be reported with backupDone or backupFailed.
+     */
+    public interface Listener {
+
+        public void backupDue();
+    }
+
+    private final File folder;
+    private final long quietMillis, minIntervalMillis;
+    private final Listener listener;
+    private WatchService watchService;
+    private Thread thread;
+    private volatile String baseline;
+    /**
+     * The state a backup was asked for, null once reported.
+     */
+    private volatile String requested;
+    private volatile long lastBackup;
+
+    /**
+     * @param folder The savegame folder.
+     * @param quietMillis How long the save files must stay unchanged.
+     * @param minIntervalMillis Minimum time between two backups.
+     * @param listener Gets told when to back up.
+     */
+    public AutoBackupWatcher(File folder, long quietMillis, long minIntervalMillis, Listener listener) {
+        this.folder = folder;
+        this.quietMillis = quietMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * @param config The config to read the timings from.
+     * @param listener Gets told when to back up.
+     * @return A watcher for the savegame folder in the config.
+     */
+    public static AutoBackupWatcher fromConfig(Config config, Listener listener) {
+        return new AutoBackupWatcher(new File(config.get(Config.SAVE_FOLDER_PATH, "")),
+                TimeUnit.SECONDS.toMillis(config.getInt(Config.AUTO_BACKUP_QUIET, 5)),
+                TimeUnit.SECONDS.toMillis(config.getInt(Config.AUTO_BACKUP_INTERVAL, 60)), listener);
+    }
+
+    /**
+     * Starts watching, on a daemon thread.
+     *
+     * @throws IOException If the folder can't be watched.
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        folder.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        thread = new Thread(this, "NSS auto backup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching. A backup already asked for isn't affected.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+        }
+        thread = null;
+    }
+
+    /**
+     * Tells the watcher the current save is backed up (or was just restored
+     * from a backup), so it won't be backed up again until it changes.
+     */
+    public void markBackedUp() {
+        baseline = snapshot();
+        lastBackup = System.currentTimeMillis();
+    }
+
+    /**
+     * Tells the watcher the backup it asked for succeeded. The save is
+     * backed up as it was when asked, later changes get a backup of their
+     * own.
+     */
+    public void backupDone() {
+        String state = requested;
+        if (state != null) {
+            baseline = state;
+            requested = null;
+        }
+    }
+
+    /**
+     * Tells the watcher the backup it asked for failed or was cancelled, it
+     * asks again after the minimum interval.
+     */
+    public void backupFailed() {
+        requested = null;
+    }
+
+    @Override
+    public void run() {
+        // When to look at the files next, -1 while nothing changed
+        long due = -1;
+        // The files' state at the last look, must match the next one
+        String candidate = null;
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                WatchKey key = due < 0 ? watchService.take()
+                        : watchService.poll(Math.max(1, due - now), TimeUnit.MILLISECONDS);
+                now = System.currentTimeMillis();
+                if (key != null) {
+                    boolean relevant = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW || BackupManager.savefileFilter.accept(folder,
+                                ((Path) event.context()).getFileName().toString())) {
+                            relevant = true;
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.err.println("Auto backup stopped: " + folder + " is gone.");
+                        return;
+                    }
+                    if (relevant) {
+                        // The game is still writing, start the quiet window over
+                        due = now + quietMillis;
+                        candidate = null;
+                    }
+                    continue;
+                }
+                if (due < 0 || now < due) {
+                    continue;
+                }
+                String state = snapshot();
+                if (!state.equals(candidate)) {
+                    // Changed without telling, or first look: one more window
+                    candidate = state;
+                    due = now + quietMillis;
+                } else if (state.equals(baseline)) {
+                    // Back to the state of the last backup, nothing to do
+                    due = -1;
+                    candidate = null;
+                } else if (requested != null) {
+                    // The backup asked for isn't over, look again later
+                    due = now + minIntervalMillis;
+                } else if (now < lastBackup + minIntervalMillis) {
+                    due = lastBackup + minIntervalMillis;
+                } else {
+                    // Looked at again after the interval, to retry if it failed
+                    due = now + minIntervalMillis;
+                    requested = state;
+                    lastBackup = now;
+                    listener.backupDue();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Stopped
+        }
+    }
+
+    /**
+     * @return The names, sizes and modification times of the save files.
+     */
+    private String snapshot() {
+        File[] files = folder.listFiles(BackupManager.savefileFilter);
+        if (files == null) {
+            return "";
+        }
+        Arrays.sort(files);
+        StringBuilder sb = new StringBuilder();
+        for (File f : files) {
+            sb.append(f.getName()).append(':').append(f.length()).append(':').append(f.lastModified()).append(';');
+        }
+        return sb.toString();
+    }
+}
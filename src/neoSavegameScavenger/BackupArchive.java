@@ -0,0 +1,410 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Single file, compressed backups. An archive holds every save file of a
+ * backup in one Deflate stream, primed with a preset dictionary trained on
+ * the previous backups; the dictionaries are kept in ".nss/dict", named after
+ * their hash, since every archive needs its own to be restored.
+ * <p>
+ * Layout: "NSSA", a version byte, the dictionary's hash (empty if none), the
+ * number of files, then the raw Deflate stream of: for every file, true, its name, size, bytes and
+ * SHA-256; then false.
+ */
+public class BackupArchive {
+
+    /**
+     * Extension of archive backups.
+     */
+    public static final String EXTENSION = ".nssa";
+    private static final byte[] MAGIC = {'N', 'S', 'S', 'A'};
+    private static final int VERSION = 1;
+    /**
+     * Dictionaries older than this are trained again on newer saves.
+     */
+    private static final long DICT_MAX_AGE = TimeUnit.DAYS.toMillis(30);
+    /**
+     * Where the files that aren't extracted go, they still have to be hashed.
+     */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    private final Path dictFolder;
+
+    /**
+     * @param backupFolder The backup folder the archives are in.
+     */
+    public BackupArchive(File backupFolder) {
+        dictFolder = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "dict").toPath();
+    }
+
+    /**
+     * @param backup A backup, file or folder.
+     * @return true if the backup is an archive.
+     */
+    public static boolean isArchive(File backup) {
+        return backup.getName().endsWith(EXTENSION) && backup.isFile();
+    }
+
+    /**
+     * Writes save files into a new archive. The archive only appears under
+     * its name once it is complete.
+     *
+     * @param sources The save files.
+     * @param archive The archive to create.
+     * @param dictionary The preset dictionary, or null for none.
+     * @param syncPolicy Whether the archive is flushed to the disk.
+     * @param monitor Receives a progress update for every file.
+     * @return How many files were archived, the archive's size, and how long
+     * it took.
+     * @throws IOException If the archive couldn't be written. Nothing is left
+     * behind.
+     */
+    public CopyResult write(File[] sources, File archive, byte[] dictionary, CopyEngine.SyncPolicy syncPolicy,
+            OperationMonitor monitor) throws IOException {
+        long start = System.nanoTime();
+        Path tmp = new File(archive.getPath() + ".tmp").toPath();
+        int done = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            monitor.begin(sources.length);
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                file.write(MAGIC);
+                file.write(VERSION);
+                DataOutputStream header = new DataOutputStream(file);
+                header.writeUTF(dictionary == null ? "" : storeDictionary(dictionary));
+                header.writeInt(sources.length);
+                header.flush();
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(file, deflater, 64 * 1024));
+                byte[] buffer = new byte[64 * 1024];
+                for (File f : sources) {
+                    if (monitor.isCancelled()) {
+                        break;
+                    }
+                    MessageDigest digest = BlobStore.newDigest();
+                    long size = f.length();
+                    out.writeBoolean(true);
+                    out.writeUTF(f.getName());
+                    out.writeLong(size);
+                    // Exactly size bytes, the game may be writing the file
+                    try (InputStream in = Files.newInputStream(f.toPath())) {
+                        long left = size;
+                        while (left > 0) {
+                            int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                            if (n == -1) {
+                                throw new IOException(f.getName() + " shrank while being archived.");
+                            }
+                            digest.update(buffer, 0, n);
+                            out.write(buffer, 0, n);
+                            left -= n;
+                        }
+                    }
+                    out.write(digest.digest());
+                    monitor.progress(++done, f.getName());
+                }
+                out.writeBoolean(false);
+                out.close();
+            }
+            if (done < sources.length) {
+                Files.delete(tmp);
+                return new CopyResult(done, 0, System.nanoTime() - start, true);
+            }
+            if (syncPolicy != CopyEngine.SyncPolicy.NONE) {
+                CopyEngine.syncFile(tmp);
+            }
+            Files.move(tmp, archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deflater.end();
+            Files.deleteIfExists(tmp);
+        }
+        return new CopyResult(done, archive.length(), System.nanoTime() - start, false);
+    }
+
+    /**
+     * Extracts an archive into a folder, streaming every file to the disk.
+     *
+     * @param archive The archive.
+     * @param targetFolder The folder to extract into. Existing files are
+     * replaced.
+     * @param names The files to extract, null for all of them. The others are
+     * still decompressed, the format can't skip them.
+     * @param syncPolicy Whether the extracted files are flushed to the disk.
+     * @param monitor Receives a progress update for every file.
+     * @return How many files and bytes were extracted, and how long it took.
+     * @throws IOException If the archive is unreadable or a file doesn't match
+     * its hash.
+     */
+    public CopyResult extract(File archive, File targetFolder, Set<String> names, CopyEngine.SyncPolicy syncPolicy,
+            OperationMonitor monitor) throws IOException {
+        return inflate(archive, targetFolder, names, syncPolicy, monitor, null, null);
+    }
+
+    /**
+     * Lists the files in an archive, without extracting them.
+     *
+     * @param archive The archive.
+     * @return The names, sizes and hashes of the files.
+     * @throws IOException If the archive is unreadable.
+     */
+    public BackupManifest list(File archive) throws IOException {
+        BackupManifest listing = new BackupManifest();
+        inflate(archive, null, Collections.<String>emptySet(), CopyEngine.SyncPolicy.NONE, OperationMonitor.NONE,
+                listing, null);
+        return listing;
+    }
+
+    /**
+     * Streams the files in an archive to a reader, without extracting them.
+     *
+     * @param archive The archive.
+     * @param reader Gets every file, until it asks to stop.
+     * @throws IOException If the archive is unreadable, or the reader fails.
+     */
+    public void read(File archive, SaveFileReader reader) throws IOException {
+        inflate(archive, null, Collections.<String>emptySet(), CopyEngine.SyncPolicy.NONE, OperationMonitor.NONE,
+                null, reader);
+    }
+
+    private CopyResult inflate(File archive, File targetFolder, Set<String> names, CopyEngine.SyncPolicy syncPolicy,
+            OperationMonitor monitor, BackupManifest listing, SaveFileReader reader) throws IOException {
+        long start = System.nanoTime();
+        int done = 0;
+        long bytes = 0;
+        Inflater inflater = new Inflater(true);
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(archive.toPath()))) {
+            DataInputStream header = new DataInputStream(file);
+            byte[] magic = new byte[MAGIC.length];
+            header.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.read() != VERSION) {
+                throw new IOException(archive.getName() + " isn't an NSS archive, or was made by a newer version.");
+            }
+            String dictId = header.readUTF();
+            int count = header.readInt();
+            if (!dictId.isEmpty()) {
+                inflater.setDictionary(loadDictionary(dictId));
+            }
+            DataInputStream in = new DataInputStream(new InflaterInputStream(file, inflater, 64 * 1024));
+            byte[] buffer = new byte[64 * 1024];
+            byte[] hash = new byte[32];
+            monitor.begin(names == null ? count : names.size());
+            while (in.readBoolean()) {
+                if (monitor.isCancelled()) {
+                    return new CopyResult(done, bytes, System.nanoTime() - start, true);
+                }
+                String name = in.readUTF();
+                long size = in.readLong();
+                if (name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+                    throw new IOException(archive.getName() + " contains an invalid file name: " + name);
+                }
+                boolean wanted = names == null || names.contains(name);
+                Path target = wanted ? new File(targetFolder, name).toPath() : null;
+                MessageDigest digest = BlobStore.newDigest();
+                EntryInputStream entry = new EntryInputStream(in, size);
+                InputStream content = new DigestInputStream(entry, digest);
+                if (reader != null && !reader.read(name, content)) {
+                    break;
+                }
+                try (OutputStream out = wanted ? Files.newOutputStream(target) : NULL_OUTPUT) {
+                    int n;
+                    while ((n = content.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+                if (entry.left > 0) {
+                    throw new IOException(archive.getName() + " is truncated.");
+                }
+                in.readFully(hash);
+                if (!MessageDigest.isEqual(hash, digest.digest())) {
+                    throw new IOException(name + " in " + archive.getName() + " is corrupted.");
+                }
+                if (listing != null) {
+                    listing.add(new BackupManifest.Entry(name, size, BlobStore.toHex(hash)));
+                }
+                if (!wanted) {
+                    continue;
+                }
+                if (syncPolicy != CopyEngine.SyncPolicy.NONE) {
+                    CopyEngine.syncFile(target);
+                }
+                bytes += size;
+                monitor.progress(++done, name);
+            }
+        } finally {
+            inflater.end();
+        }
+        return new CopyResult(done, bytes, System.nanoTime() - start, false);
+    }
+
+    /**
+     * One file inside the decompressed stream: reads stop at its end, and
+     * closing it leaves the stream open.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+
+        private long left;
+
+        EntryInputStream(InputStream in, long size) {
+            super(in);
+            left = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                left--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) {
+                left -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, left));
+            left -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), left);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * @return The most recent dictionary, or null if there is none or it's
+     * old enough to be trained again.
+     * @throws IOException If the dictionary can't be read.
+     */
+    public byte[] currentDictionary() throws IOException {
+        Path current = dictFolder.resolve("current");
+        if (!Files.exists(current)) {
+            return null;
+        }
+        FileTime modified = Files.getLastModifiedTime(current);
+        if (System.currentTimeMillis() - modified.toMillis() > DICT_MAX_AGE) {
+            return null;
+        }
+        return loadDictionary(new String(Files.readAllBytes(current), "UTF-8").trim());
+    }
+
+    /**
+     * Makes a dictionary the one used for the next archives.
+     *
+     * @param dictionary The new dictionary.
+     * @throws IOException If the dictionary can't be stored.
+     */
+    public void setCurrentDictionary(byte[] dictionary) throws IOException {
+        String id = storeDictionary(dictionary);
+        Path tmp = dictFolder.resolve("current.tmp");
+        Files.write(tmp, id.getBytes("UTF-8"));
+        Files.move(tmp, dictFolder.resolve("current"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stores a dictionary under its hash, unless it's already stored.
+     *
+     * @return The dictionary's hash.
+     */
+    private String storeDictionary(byte[] dictionary) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        String id = BlobStore.toHex(digest.digest(dictionary));
+        Path file = dictFolder.resolve(id);
+        if (!Files.exists(file)) {
+            Files.createDirectories(dictFolder);
+            Path tmp = Files.createTempFile(dictFolder, "dict", null);
+            Files.write(tmp, dictionary);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return id;
+    }
+
+    private byte[] loadDictionary(String id) throws IOException {
+        Path file = dictFolder.resolve(id);
+        if (!Files.exists(file)) {
+            throw new IOException("The compression dictionary " + id + " is missing from " + dictFolder);
+        }
+        return Files.readAllBytes(file);
+    }
+}
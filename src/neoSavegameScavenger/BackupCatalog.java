@@ -0,0 +1,249 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Sorted index of the backups in the backup folder, kept in ".nss/catalog" so
+ * the folder doesn't have to be listed every time a backup is looked up.
+ * <p>
+ * The file is a log: "+name" and "-name" lines record added and deleted
+ * backups, "@time" lines the backup folder's modification time once the
+ * catalog matched it. When the folder was modified behind the catalog's back,
+ * it is listed again; when the log gets long, it is rewritten. Packed backups
+ * are listed along with the folder's.
+ */
+public class BackupCatalog {
+
+    private static final String HEADER = "# NSS backup catalog 1";
+    private final File backupFolder;
+    private final PackStore packs;
+    private final Path file;
+    private final List<String> names = new ArrayList<String>();
+    private long stamp = -1;
+    private int logLines;
+    private boolean loaded;
+
+    /**
+     * @param backupFolder The backup folder to index.
+     */
+    public BackupCatalog(File backupFolder) {
+        this(backupFolder, new PackStore(backupFolder));
+    }
+
+    /**
+     * @param backupFolder The backup folder to index.
+     * @param packs The packed backups of the folder.
+     */
+    public BackupCatalog(File backupFolder, PackStore packs) {
+        this.backupFolder = backupFolder;
+        this.packs = packs;
+        file = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "catalog").toPath();
+    }
+
+    /**
+     * @return The names of all the backups, oldest first.
+     */
+    public synchronized List<String> list() {
+        refresh();
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * @return The name of the most recent backup, or null if there are none.
+     */
+    public synchronized String latest() {
+        refresh();
+        return names.isEmpty() ? null : names.get(names.size() - 1);
+    }
+
+    /**
+     * Records a new backup. The folder is not listed again, so the catalog
+     * should be refreshed before the backup is created.
+     *
+     * @param name The backup's name.
+     */
+    public synchronized void add(String name) {
+        if (!loaded) {
+            load();
+        }
+        int i = Collections.binarySearch(names, name, BackupScanner.ORDER);
+        if (i < 0) {
+            names.add(-i - 1, name);
+        }
+        append("+" + name);
+    }
+
+    /**
+     * Records a deleted backup. The folder is not listed again, so the
+     * catalog should be refreshed before the backup is deleted.
+     *
+     * @param name The backup's name.
+     */
+    public synchronized void remove(String name) {
+        if (!loaded) {
+            load();
+        }
+        int i = Collections.binarySearch(names, name, BackupScanner.ORDER);
+        if (i >= 0) {
+            names.remove(i);
+        }
+        append("-" + name);
+    }
+
+    /**
+     * Lists the backup folder again and rewrites the catalog.
+     */
+    public synchronized void rebuild() {
+        names.clear();
+        // Stamped first, so a backup made during the scan triggers another
+        long folderStamp = backupFolder.lastModified();
+        Set<String> found = new TreeSet<String>(BackupScanner.ORDER);
+        found.addAll(packs.list());
+        try {
+            for (BackupScanner.Backup backup : new BackupScanner(backupFolder).scan()) {
+                found.add(backup.getName());
+            }
+        } catch (IOException ex) {
+            // A missing folder has no backups
+        }
+        names.addAll(found);
+        stamp = folderStamp;
+        loaded = true;
+        compact();
+    }
+
+    /**
+     * Compares the catalog with a listing of the backup folder.
+     *
+     * @return true if the catalog was right, otherwise it is rebuilt.
+     */
+    public synchronized boolean validate() {
+        refresh();
+        List<String> before = new ArrayList<String>(names);
+        rebuild();
+        return before.equals(names);
+    }
+
+    /**
+     * Loads the catalog if needed, and lists the folder again if it was
+     * modified since the catalog last matched it. That costs a single stat
+     * when nothing changed.
+     */
+    public synchronized void refresh() {
+        if (!loaded) {
+            load();
+        }
+        if (stamp != backupFolder.lastModified()) {
+            rebuild();
+        }
+    }
+
+    private void load() {
+        loaded = true;
+        if (!Files.exists(file)) {
+            return;
+        }
+        // A backup made twice in the same second is logged twice
+        Set<String> read = new TreeSet<String>(BackupScanner.ORDER);
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.startsWith("+")) {
+                    read.add(s.substring(1));
+                } else if (s.startsWith("-")) {
+                    read.remove(s.substring(1));
+                } else if (s.startsWith("@")) {
+                    stamp = Long.parseLong(s.substring(1));
+                }
+                logLines++;
+            }
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println("Rebuilding the backup catalog: " + ex.getMessage());
+            stamp = -1;
+            return;
+        }
+        names.addAll(read);
+    }
+
+    /**
+     * Appends a change to the log, with the folder's new modification time.
+     */
+    private void append(String line) {
+        stamp = backupFolder.lastModified();
+        if (logLines > 2 * names.size() + 100) {
+            compact();
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(line);
+                out.newLine();
+                out.write("@" + stamp);
+                out.newLine();
+            }
+            logLines += 2;
+        } catch (IOException ex) {
+            System.err.println("Can't update the backup catalog: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the log with only the current backups.
+     */
+    private void compact() {
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling("catalog.tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(HEADER);
+                out.newLine();
+                for (String name : names) {
+                    out.write("+" + name);
+                    out.newLine();
+                }
+                out.write("@" + stamp);
+                out.newLine();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logLines = names.size() + 2;
+        } catch (IOException ex) {
+            System.err.println("Can't write the backup catalog: " + ex.getMessage());
+        }
+    }
+}
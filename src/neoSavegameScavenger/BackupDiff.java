@@ -0,0 +1,402 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares two backups, or a backup and the current save. Save files are
+ * first compared by size and hash, from the manifests where there are any;
+ * only the ones that differ are read. Both versions of such a file are read
+ * at the same time, each on its own thread, and their values are matched by
+ * path as they arrive, so neither file is ever held: only the values seen on
+ * one side and not yet on the other are kept, which are few as long as the
+ * two files list their values in much the same order.
+ */
+public class BackupDiff {
+
+    /**
+     * The most changes kept for a file; the comparison of the file stops
+     * there.
+     */
+    public static final int MAX_CHANGES = 2000;
+    /**
+     * The most values seen on one side only before the comparison of a file
+     * gives up, e.g. because the game wrote the values in another order.
+     */
+    private static final int MAX_PENDING = 100000;
+    private static final int QUEUE_SIZE = 1024;
+    private static final String[] END = new String[0];
+    private final BackupManager manager;
+
+    /**
+     * How a save file differs.
+     */
+    public enum Status {
+
+        SAME, CHANGED, ADDED, REMOVED
+    }
+
+    /**
+     * A value that differs. Either side is null if the value is only on the
+     * other side.
+     */
+    public static class Change {
+
+        private final String path, left, right;
+
+        Change(String path, String left, String right) {
+            this.path = path;
+            this.left = left;
+            this.right = right;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getLeft() {
+            return left;
+        }
+
+        public String getRight() {
+            return right;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + (left == null ? "(none)" : left) + " -> " + (right == null ? "(none)" : right);
+        }
+    }
+
+    /**
+     * The differences in one save file.
+     */
+    public static class FileDiff {
+
+        private final String name;
+        private final Status status;
+        private final List<Change> changes = new ArrayList<Change>();
+        private boolean truncated;
+        private String error;
+
+        FileDiff(String name, Status status) {
+            this.name = name;
+            this.status = status;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The values that differ, in the order of the files.
+         */
+        public List<Change> getChanges() {
+            return Collections.unmodifiableList(changes);
+        }
+
+        /**
+         * @return true if the comparison stopped before the end of the file,
+         * so there may be more changes.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * @return Why the values couldn't be compared, e.g. the file isn't a
+         * shared object; null if they were.
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            String text = name + ": " + status.name().toLowerCase();
+            if (error != null) {
+                return text + ", can't compare the values (" + error + ")";
+            }
+            if (status == Status.CHANGED) {
+                text += ", " + changes.size() + (truncated ? "+" : "") + " values differ";
+            }
+            return text;
+        }
+    }
+
+    /**
+     * @param manager Reads the backups.
+     */
+    public BackupDiff(BackupManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Compares the save files of two backups.
+     *
+     * @param left A backup, or null for the current save.
+     * @param right Another backup, or null for the current save.
+     * @param monitor Receives the progress, a file at a time.
+     * @return Every save file on either side, by name; added and removed are
+     * from left to right.
+     * @throws IOException If a backup can't be listed, or a file can't be
+     * read.
+     */
+    public List<FileDiff> compare(File left, File right, OperationMonitor monitor) throws IOException {
+        OperationTrace trace = OperationTrace.start("diff");
+        try {
+            List<FileDiff> diffs = compareFiles(left, right, monitor);
+            trace.finish(diffs.size(), 0);
+            return diffs;
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private List<FileDiff> compareFiles(File left, File right, OperationMonitor monitor) throws IOException {
+        File leftFolder = folderOf(left), rightFolder = folderOf(right);
+        Map<String, BackupManifest.Entry> leftFiles = list(left), rightFiles = list(right);
+        TreeSet<String> names = new TreeSet<String>(leftFiles.keySet());
+        names.addAll(rightFiles.keySet());
+        List<FileDiff> diffs = new ArrayList<FileDiff>();
+        monitor.begin(names.size());
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            for (String name : names) {
+                if (monitor.isCancelled()) {
+                    break;
+                }
+                BackupManifest.Entry l = leftFiles.get(name), r = rightFiles.get(name);
+                if (r == null) {
+                    diffs.add(new FileDiff(name, Status.REMOVED));
+                } else if (l == null) {
+                    diffs.add(new FileDiff(name, Status.ADDED));
+                } else if (l.getSize() == r.getSize() && hash(leftFolder, l).equals(hash(rightFolder, r))) {
+                    diffs.add(new FileDiff(name, Status.SAME));
+                } else {
+                    FileDiff diff = new FileDiff(name, Status.CHANGED);
+                    compareValues(leftFolder, rightFolder, diff, readers, monitor);
+                    diffs.add(diff);
+                }
+                monitor.progress(diffs.size(), name);
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+        return diffs;
+    }
+
+    /**
+     * Reads both versions of a file at the same time and matches their
+     * values by path.
+     */
+    private void compareValues(File leftFolder, File rightFolder, FileDiff diff, ExecutorService readers,
+            OperationMonitor monitor) throws IOException {
+        BlockingQueue<String[]> leftValues = new ArrayBlockingQueue<String[]>(QUEUE_SIZE);
+        BlockingQueue<String[]> rightValues = new ArrayBlockingQueue<String[]>(QUEUE_SIZE);
+        AtomicBoolean stop = new AtomicBoolean();
+        Future<?> leftReader = readers.submit(stream(leftFolder, diff.name, leftValues, stop));
+        Future<?> rightReader = readers.submit(stream(rightFolder, diff.name, rightValues, stop));
+        // Values seen on one side only so far, in the order they came
+        Map<String, String> leftOnly = new LinkedHashMap<String, String>();
+        Map<String, String> rightOnly = new LinkedHashMap<String, String>();
+        boolean leftDone = false, rightDone = false;
+        try {
+            while (!leftDone || !rightDone) {
+                if (monitor.isCancelled() || diff.changes.size() >= MAX_CHANGES
+                        || leftOnly.size() + rightOnly.size() > MAX_PENDING) {
+                    diff.truncated = true;
+                    break;
+                }
+                String[] l = leftDone ? END : leftValues.take();
+                String[] r = rightDone ? END : rightValues.take();
+                leftDone = l == END;
+                rightDone = r == END;
+                if (!leftDone && !rightDone && l[0].equals(r[0])) {
+                    if (!l[1].equals(r[1])) {
+                        diff.changes.add(new Change(l[0], l[1], r[1]));
+                    }
+                    continue;
+                }
+                if (!leftDone) {
+                    if (rightOnly.containsKey(l[0])) {
+                        String value = rightOnly.remove(l[0]);
+                        if (!l[1].equals(value)) {
+                            diff.changes.add(new Change(l[0], l[1], value));
+                        }
+                    } else {
+                        leftOnly.put(l[0], l[1]);
+                    }
+                }
+                if (!rightDone) {
+                    if (leftOnly.containsKey(r[0])) {
+                        String value = leftOnly.remove(r[0]);
+                        if (!r[1].equals(value)) {
+                            diff.changes.add(new Change(r[0], value, r[1]));
+                        }
+                    } else {
+                        rightOnly.put(r[0], r[1]);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while comparing " + diff.name, ex);
+        } finally {
+            stop.set(true);
+        }
+        for (Future<?> reader : new Future<?>[]{leftReader, rightReader}) {
+            try {
+                reader.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while comparing " + diff.name, ex);
+            } catch (ExecutionException ex) {
+                diff.error = ex.getCause().getMessage() != null ? ex.getCause().getMessage()
+                        : ex.getCause().getClass().getSimpleName();
+                diff.changes.clear();
+                return;
+            }
+        }
+        if (!diff.truncated) {
+            for (Map.Entry<String, String> e : leftOnly.entrySet()) {
+                diff.changes.add(new Change(e.getKey(), e.getValue(), null));
+            }
+            for (Map.Entry<String, String> e : rightOnly.entrySet()) {
+                diff.changes.add(new Change(e.getKey(), null, e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @return A task that reads the values of a save file into a queue, and
+     * always ends it with END unless told to stop.
+     */
+    private Callable<Void> stream(final File folder, final String name, final BlockingQueue<String[]> values,
+            final AtomicBoolean stop) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    manager.readSaveFiles(folder, new SaveFileReader() {
+                        @Override
+                        public boolean read(String fileName, InputStream in) throws IOException {
+                            if (!fileName.equals(name)) {
+                                return true;
+                            }
+                            SolReader.readAll(new BufferedInputStream(in, 64 * 1024), new SolReader.Visitor() {
+                                @Override
+                                public boolean value(String path, String value) throws IOException {
+                                    return put(values, new String[]{path, value}, stop);
+                                }
+                            });
+                            return false;
+                        }
+                    });
+                } finally {
+                    put(values, END, stop);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Waits for room in the queue until the comparison stops.
+     *
+     * @return false if it stopped.
+     */
+    private static boolean put(BlockingQueue<String[]> queue, String[] value, AtomicBoolean stop)
+            throws IOException {
+        try {
+            while (!stop.get()) {
+                if (queue.offer(value, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        }
+    }
+
+    /**
+     * @return The save files of a backup or of the current save, with their
+     * sizes, and their hashes where a manifest has them.
+     */
+    private Map<String, BackupManifest.Entry> list(File backup) throws IOException {
+        Map<String, BackupManifest.Entry> files = new TreeMap<String, BackupManifest.Entry>();
+        BackupManifest manifest = backup == null ? null
+                : manager.getPacks().isPacked(backup) ? manager.getPacks().getManifest(backup.getName())
+                : BackupArchive.isArchive(backup) ? manager.getArchives().list(backup) : BackupManifest.read(backup);
+        if (manifest != null) {
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                files.put(e.getName(), e);
+            }
+            return files;
+        }
+        File folder = folderOf(backup);
+        File[] saveFiles = folder.listFiles(BackupManager.savefileFilter);
+        if (saveFiles == null) {
+            throw new IOException("Can't read " + folder.getPath());
+        }
+        for (File f : saveFiles) {
+            files.put(f.getName(), new BackupManifest.Entry(f.getName(), f.length(), null));
+        }
+        return files;
+    }
+
+    private String hash(File folder, BackupManifest.Entry entry) throws IOException {
+        return entry.getHash() != null ? entry.getHash() : BlobStore.hash(new File(folder, entry.getName()).toPath());
+    }
+
+    private File folderOf(File backup) {
+        return backup != null ? backup : new File(manager.getSavegameFolderPath());
+    }
+}
@@ -0,0 +1,197 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.swing.AbstractListModel;
+import javax.swing.SwingWorker;
+
+/**
+ * The backups shown in the restore window. Names arrive in pages while the
+ * backups are still being listed, and only the visible rows are ever asked
+ * for, so the window opens at once whatever the number of backups.
+ * <p>
+ * A filter keeps the backups whose name starts with it (dashes can stand for
+ * the underscores of the date) or whose label contains it. Filtering runs in
+ * the background; typing more characters only searches the rows already
+ * shown. Must be used on the event dispatch thread.
+ */
+public class BackupListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+    private final List<String> names = new ArrayList<String>();
+    private final Map<String, String> labels;
+    /**
+     * Indexes in names of the backups that pass the filter, in order.
+     */
+    private int[] visible = new int[256];
+    private int size;
+    private String filter = "";
+    private SwingWorker<int[], Void> filtering;
+
+    /**
+     * @param labels The labels of the backups, by name. They may be added
+     * later from another thread, so the map must be thread safe.
+     */
+    public BackupListModel(Map<String, String> labels) {
+        this.labels = labels;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return names.get(visible[index]);
+    }
+
+    /**
+     * Adds a page of backups at the end of the list.
+     *
+     * @param page The backups' names.
+     */
+    public void addAll(List<String> page) {
+        int first = names.size();
+        names.addAll(page);
+        if (filtering != null) {
+            // The filter will pick them up when it ends
+            return;
+        }
+        int oldSize = size;
+        show(first, names.size());
+        if (size > oldSize) {
+            fireIntervalAdded(this, oldSize, size - 1);
+        }
+    }
+
+    /**
+     * @return The number of backups, shown or not.
+     */
+    public int getTotal() {
+        return names.size();
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Shows only the backups matching a filter. The list changes when the
+     * background search ends.
+     *
+     * @param text The filter, empty to show every backup.
+     */
+    public void setFilter(String text) {
+        filter(text.trim().toLowerCase(Locale.ROOT), true);
+    }
+
+    /**
+     * Applies the filter again to every backup, e.g. because new labels are
+     * known.
+     */
+    public void refilter() {
+        if (!filter.isEmpty()) {
+            filter(filter, false);
+        }
+    }
+
+    private void filter(final String newFilter, boolean narrow) {
+        // Narrowing down only needs to look at what's already shown
+        final int[] candidates = narrow && filtering == null && newFilter.startsWith(filter)
+                ? Arrays.copyOf(visible, size) : null;
+        final List<String> snapshot = new ArrayList<String>(names);
+        filter = newFilter;
+        if (filtering != null) {
+            filtering.cancel(false);
+        }
+        filtering = new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                int[] matches = new int[candidates != null ? candidates.length : snapshot.size()];
+                int count = 0;
+                for (int i = 0; i < matches.length && !isCancelled(); i++) {
+                    int index = candidates != null ? candidates[i] : i;
+                    if (matches(snapshot.get(index), newFilter)) {
+                        matches[count++] = index;
+                    }
+                }
+                return Arrays.copyOf(matches, count);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || filtering != this) {
+                    return;
+                }
+                filtering = null;
+                int[] matches;
+                try {
+                    matches = get();
+                } catch (Exception ex) {
+                    return;
+                }
+                // Empty the list first, so the removal covers exactly the old rows
+                int oldSize = size;
+                size = 0;
+                if (oldSize > 0) {
+                    fireIntervalRemoved(BackupListModel.this, 0, oldSize - 1);
+                }
+                visible = Arrays.copyOf(matches, Math.max(256, matches.length * 2));
+                size = matches.length;
+                // Pages that arrived during the search
+                show(snapshot.size(), names.size());
+                if (size > 0) {
+                    fireIntervalAdded(BackupListModel.this, 0, size - 1);
+                }
+            }
+        };
+        filtering.execute();
+    }
+
+    /**
+     * Appends the matching backups among names[from, to) to the visible ones.
+     */
+    private void show(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (matches(names.get(i), filter)) {
+                if (size == visible.length) {
+                    visible = Arrays.copyOf(visible, size * 2);
+                }
+                visible[size++] = i;
+            }
+        }
+    }
+
+    private boolean matches(String name, String text) {
+        if (text.isEmpty() || name.startsWith(text) || name.replace('_', '-').startsWith(text)) {
+            return true;
+        }
+        String label = labels.get(name);
+        return label != null && label.toLowerCase(Locale.ROOT).contains(text);
+    }
+}
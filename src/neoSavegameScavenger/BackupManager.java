@@ -0,0 +1,1316 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.regex.Pattern;
+import java.util.zip.Checksum;
+
+/**
+ * Performs the backup, restore and clear operations on the file system.
+ * Never touches the UI, so it can safely run outside the event dispatch thread.
+ */
+public class BackupManager {
+
+    /**
+     * How new backups are written.
+     */
+    public enum Format {
+
+        /**
+         * A folder with a full copy of every save file.
+         */
+        PLAIN,
+        /**
+         * A folder whose files are hard linked to the blob store, or only
+         * listed in its manifest where links aren't supported.
+         */
+        BLOBS,
+        /**
+         * A folder with only a manifest, listing the chunks of every file in
+         * the chunk store.
+         */
+        CHUNKS,
+        /**
+         * A single compressed file, see BackupArchive.
+         */
+        ARCHIVE
+    }
+
+    /**
+     * A backup just created, and its operation in the journal.
+     */
+    private static class NewBackup {
+
+        private final File file;
+        private final String journalId;
+
+        NewBackup(File file, String journalId) {
+            this.file = file;
+            this.journalId = journalId;
+        }
+    }
+
+    /**
+     * Pattern for "filename.sol"
+     */
+    private static final Pattern saveFilePattern = Pattern.compile("\\w*\\.sol");
+    /**
+     * FilenameFilter that accepts all files with .sol extension.
+     *
+     * @see FilenameFilter
+     */
+    protected static final FilenameFilter savefileFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File current, String name) {
+            return saveFilePattern.matcher(name).matches();
+        }
+    };
+    /**
+     * FilenameFilter that accepts directories and archives named "YYYY_MM_DD
+     * HH-MM-SS anythingelse". Costs a file system call per backup, listings
+     * of the whole folder should use BackupScanner.
+     *
+     * @see FilenameFilter
+     */
+    protected static final FilenameFilter bkpFolderFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File current, String name) {
+            if (!BackupScanner.isBackupName(name)) {
+                return false;
+            }
+            File f = new File(current, name);
+            return name.endsWith(BackupArchive.EXTENSION) ? f.isFile() : f.isDirectory();
+        }
+    };
+    /**
+     * Number of recent backups the archive dictionary is trained on.
+     */
+    private static final int DICT_TRAINING_BACKUPS = 10;
+    private static final long GARBAGE_GRACE_MILLIS = 60 * 60 * 1000L;
+    /**
+     * Save files modified this close to the restore plan, or after it, are
+     * copied even if the plan skips them: the game may have written them
+     * since they were compared.
+     */
+    private static final long CHANGED_SINCE_PLAN_MILLIS = 2000;
+    private static final String STAGING_SUFFIX = ".nss-restore";
+    private final String savegameFolderPath, backupFolderPath;
+    private final CopyEngine copyEngine;
+    private final Format format;
+    private final BlobStore blobStore;
+    private final ChunkStore chunkStore;
+    private final HashCache hashCache;
+    private final BackupArchive archives;
+    private final BackupCatalog catalog;
+    private final PackStore packs;
+    private final Journal journal;
+    private RetentionPolicy retention;
+    private List<String> labelFields = new ArrayList<String>();
+    private SaveLabels labels;
+    private BackupScrubber scrubber;
+    private SaveTrash trash;
+    private SaveSnapshots snapshots;
+    private BackupPacker packer;
+
+    /**
+     * @param savegameFolderPath Absolute path to the savegame folder.
+     * @param backupFolderPath Absolute path to the backup folder.
+     * @param copyEngine Copies the files of backups and restores.
+     * @param format How new backups are written.
+     */
+    public BackupManager(String savegameFolderPath, String backupFolderPath, CopyEngine copyEngine, Format format) {
+        this.savegameFolderPath = savegameFolderPath;
+        this.backupFolderPath = backupFolderPath;
+        this.copyEngine = copyEngine;
+        this.format = format;
+        blobStore = new BlobStore(new File(backupFolderPath), copyEngine.getSyncPolicy());
+        chunkStore = new ChunkStore(new File(backupFolderPath), copyEngine.getSyncPolicy());
+        hashCache = new HashCache(new File(backupFolderPath));
+        archives = new BackupArchive(new File(backupFolderPath));
+        packs = new PackStore(new File(backupFolderPath));
+        catalog = new BackupCatalog(new File(backupFolderPath), packs);
+        journal = new Journal(new File(backupFolderPath));
+        scrubber = new BackupScrubber(this, 1, 0, 0);
+        trash = new SaveTrash(new File(savegameFolderPath), 0);
+        snapshots = new SaveSnapshots(new File(savegameFolderPath), 0);
+        packer = new BackupPacker(this, 0);
+    }
+
+    /**
+     * @param config The config to read the paths and settings from.
+     * @return A manager set up as the config says.
+     */
+    public static BackupManager fromConfig(Config config) {
+        Format format;
+        try {
+            format = Format.valueOf(config.get(Config.BACKUP_FORMAT, Format.BLOBS.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Unknown backup format, using " + Format.BLOBS);
+            format = Format.BLOBS;
+        }
+        BackupManager manager = new BackupManager(config.get(Config.SAVE_FOLDER_PATH, ""),
+                config.get(Config.BACKUP_FOLDER_PATH, ""), CopyEngine.fromConfig(config), format);
+        String retention = config.get(Config.RETENTION, "").trim();
+        if (!retention.isEmpty()) {
+            try {
+                manager.retention = RetentionPolicy.parse(retention);
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Ignoring the retention policy: " + ex.getMessage());
+            }
+        }
+        for (String field : config.get(Config.LABEL_FIELDS, "").split(",")) {
+            if (!field.trim().isEmpty()) {
+                manager.labelFields.add(field.trim());
+            }
+        }
+        manager.scrubber = BackupScrubber.fromConfig(config, manager);
+        manager.trash = SaveTrash.fromConfig(config);
+        manager.snapshots = SaveSnapshots.fromConfig(config);
+        manager.packer = BackupPacker.fromConfig(config, manager);
+        manager.labels = new SaveLabels(new File(manager.backupFolderPath), manager.labelFields.toString());
+        return manager;
+    }
+
+    /**
+     * @return The retention policy to apply after every backup, or null to
+     * keep every backup.
+     */
+    public RetentionPolicy getRetention() {
+        return retention;
+    }
+
+    public String getSavegameFolderPath() {
+        return savegameFolderPath;
+    }
+
+    public String getBackupFolderPath() {
+        return backupFolderPath;
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    public BackupArchive getArchives() {
+        return archives;
+    }
+
+    /**
+     * @return The packs that keep the old backups of this folder.
+     */
+    public PackStore getPacks() {
+        return packs;
+    }
+
+    /**
+     * @return The packer that moves the old backups of this folder to packs.
+     */
+    public BackupPacker getPacker() {
+        return packer;
+    }
+
+    /**
+     * @return The trash that keeps the cleared saves of this folder.
+     */
+    public SaveTrash getTrash() {
+        return trash;
+    }
+
+    /**
+     * @return The snapshots taken before the restores into this folder.
+     */
+    public SaveSnapshots getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return The scrubber that checks the backups of this folder.
+     */
+    public BackupScrubber getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * Copies the current savegame into a new backup folder, named after the
+     * current date and time. A cancelled backup is deleted. Afterwards the
+     * retention policy, if any, deletes the old backups it doesn't keep.
+     *
+     * @param monitor Receives the progress of the copy.
+     * @return The outcome of the backup, the target is the new folder's name.
+     * @throws IOException If the backup could not be created or a file could
+     * not be copied.
+     */
+    public OperationResult backup(OperationMonitor monitor) throws IOException {
+        OperationTrace trace = OperationTrace.start("backup");
+        try {
+            OperationResult result = createBackup(monitor, trace);
+            if (!result.isCancelled() && retention != null) {
+                trace.phase("retention");
+                try {
+                    prune(retention, OperationMonitor.NONE);
+                } catch (IOException ex) {
+                    // The backup itself went fine, the next one will try again
+                    System.err.println("Retention: " + ex.getMessage());
+                }
+            }
+            return trace.finish(result);
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private OperationResult createBackup(OperationMonitor monitor, OperationTrace trace) throws IOException {
+        trace.phase("prepare");
+        catalog.refresh();
+        if (format == Format.ARCHIVE) {
+            return backupArchive(monitor, trace);
+        }
+        // Unchanged files reuse the chunks and checksums of the last backup
+        final Map<String, BackupManifest.Entry> previous = new HashMap<String, BackupManifest.Entry>();
+        if (format == Format.CHUNKS || format == Format.BLOBS) {
+            String last = catalog.latest();
+            BackupManifest manifest = last == null ? null : BackupManifest.read(new File(backupFolderPath, last));
+            if (manifest != null) {
+                for (BackupManifest.Entry e : manifest.getEntries()) {
+                    previous.put(e.getHash(), e);
+                }
+            }
+        }
+        // Create the new backup folder, using the date of creation as name
+        NewBackup created = newBackup("");
+        File saveBak = created.file;
+        String journalId = created.journalId;
+        OperationResult result = null;
+        try {
+            result = copyBackup(saveBak, previous, monitor, trace);
+            return result;
+        } finally {
+            if (result != null && !result.isCancelled()) {
+                journal.commit(journalId);
+            } else {
+                journal.abort(journalId);
+            }
+        }
+    }
+
+    private OperationResult copyBackup(File saveBak, final Map<String, BackupManifest.Entry> previous,
+            OperationMonitor monitor, OperationTrace trace) throws IOException {
+        saveBak.mkdir();
+        // Check if creation succeded
+        if (!saveBak.exists()) {
+            throw new IOException("Failed to create the new save backup.");
+        }
+        // Get all save files (*.sol)
+        File[] sourceFiles = new File(savegameFolderPath).listFiles(savefileFilter);
+        if (sourceFiles == null) {
+            saveBak.delete();
+            throw new IOException("Failed to fetch the save files to backup, "
+                    + "please make sure the save folder path is correct.");
+        }
+        // Copy the files from the current save to the backup folder
+        OperationResult result = new OperationResult(saveBak.getName());
+        trace.phase("copy");
+        try {
+            if (format == Format.BLOBS || format == Format.CHUNKS) {
+                // Only the files changed since the last backup are read
+                hashCache.load();
+                final BackupManifest manifest = new BackupManifest();
+                List<CopyEngine.Job> jobs = new ArrayList<CopyEngine.Job>(sourceFiles.length);
+                for (final File f : sourceFiles) {
+                    final Path target = new File(saveBak, f.getName()).toPath();
+                    jobs.add(new CopyEngine.Job(f.getName()) {
+                        @Override
+                        protected long run() throws IOException {
+                            if (format == Format.CHUNKS) {
+                                return chunkStore.add(f.toPath(), manifest, hashCache, previous);
+                            }
+                            return blobStore.add(f.toPath(), target, manifest, hashCache, previous);
+                        }
+                    });
+                }
+                try {
+                    result.add(copyEngine.run(jobs, monitor));
+                } finally {
+                    hashCache.save();
+                }
+                if (!result.isCancelled()) {
+                    trace.phase("manifest");
+                    manifest.write(saveBak);
+                }
+            } else {
+                result.add(copyEngine.copy(sourceFiles, saveBak, false, monitor));
+                if (!result.isCancelled()) {
+                    trace.phase("manifest");
+                    writePlainManifest(saveBak);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            deleteFolder(saveBak);
+            throw ex;
+        }
+        if (result.isCancelled()) {
+            // Don't leave a partial backup around, quick restore would pick it
+            deleteFolder(saveBak);
+        } else {
+            catalog.add(saveBak.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Lists the files of a plain backup in a manifest, so the scrubber can
+     * check them. The copies are read back, what is checked later is what
+     * actually reached the backup disk.
+     *
+     * @param saveBak The backup folder.
+     * @throws IOException If a copy can't be read.
+     */
+    private void writePlainManifest(File saveBak) throws IOException {
+        File[] copies = saveBak.listFiles(savefileFilter);
+        if (copies == null) {
+            throw new IOException("Can't read the backup " + saveBak.getPath());
+        }
+        BackupManifest manifest = new BackupManifest();
+        for (File f : copies) {
+            Checksum crc = BlobStore.newChecksum();
+            String hash = BlobStore.hash(f.toPath(), crc);
+            manifest.add(new BackupManifest.Entry(f.getName(), f.length(), hash, null, BlobStore.toHex(crc)));
+        }
+        manifest.write(saveBak);
+    }
+
+    /**
+     * Compresses the current savegame into a new archive, named after the
+     * current date and time.
+     *
+     * @param monitor Receives the progress of the compression.
+     * @param trace Told about the training and compression phases.
+     * @return The outcome of the backup, the target is the archive's name.
+     * @throws IOException If the archive couldn't be written.
+     */
+    private OperationResult backupArchive(OperationMonitor monitor, OperationTrace trace) throws IOException {
+        File[] sourceFiles = new File(savegameFolderPath).listFiles(savefileFilter);
+        if (sourceFiles == null) {
+            throw new IOException("Failed to fetch the save files to backup, "
+                    + "please make sure the save folder path is correct.");
+        }
+        byte[] dictionary = archives.currentDictionary();
+        if (dictionary == null) {
+            trace.phase("train");
+            // Remember an empty one too, or every archive would train again
+            dictionary = trainDictionary(sourceFiles);
+            archives.setCurrentDictionary(dictionary);
+        }
+        if (dictionary.length == 0) {
+            dictionary = null;
+        }
+        NewBackup created = newBackup(BackupArchive.EXTENSION);
+        File archive = created.file;
+        String journalId = created.journalId;
+        OperationResult result = new OperationResult(archive.getName());
+        trace.phase("compress");
+        boolean written = false;
+        try {
+            result.add(archives.write(sourceFiles, archive, dictionary, copyEngine.getSyncPolicy(), monitor));
+            written = !result.isCancelled();
+        } finally {
+            if (written) {
+                catalog.add(archive.getName());
+                journal.commit(journalId);
+            } else {
+                Files.deleteIfExists(archive.toPath());
+                journal.abort(journalId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a new backup, empty, named after the current date and time. A
+     * second backup within the same second gets its own name, so a failed one
+     * can be deleted without taking the other with it; the name is taken by
+     * creating the backup, so another process can't take it too.
+     * <p>
+     * The backup is logged in the journal before it's created, so recovery
+     * deletes it if the program dies before it's complete.
+     *
+     * @param extension The extension of the backup, empty for a folder.
+     * @return The new folder, or file, and its open operation.
+     * @throws IOException If the backup can't be created or logged.
+     */
+    private NewBackup newBackup(String extension) throws IOException {
+        DateFormat date = new SimpleDateFormat("yyyy_MM_dd HH-mm-ss");
+        String stamp = date.format(Calendar.getInstance().getTime());
+        for (int n = 1;; n++) {
+            File backup = new File(backupFolderPath, stamp + (n > 1 ? " " + n : "") + extension);
+            if (backup.exists()) {
+                continue;
+            }
+            String journalId = journal.begin(Journal.BACKUP, backup.getName(), "");
+            boolean created = false;
+            try {
+                created = extension.isEmpty() ? backup.mkdir() : backup.createNewFile();
+            } finally {
+                if (!created) {
+                    journal.abort(journalId);
+                }
+            }
+            if (created) {
+                return new NewBackup(backup, journalId);
+            }
+            if (!backup.exists()) {
+                throw new IOException("Failed to create the new save backup.");
+            }
+        }
+    }
+
+    /**
+     * Trains a compression dictionary on the current save and the save files
+     * of the most recent folder backups.
+     *
+     * @param sourceFiles The current save files.
+     * @return The dictionary, empty if there was nothing to learn from.
+     * @throws IOException If a save file can't be read.
+     */
+    private byte[] trainDictionary(File[] sourceFiles) throws IOException {
+        DictionaryTrainer trainer = new DictionaryTrainer();
+        for (File f : sourceFiles) {
+            trainer.addSample(Files.readAllBytes(f.toPath()));
+        }
+        List<String> backups = catalog.list();
+        for (int i = backups.size() - 1; i >= 0 && i >= backups.size() - DICT_TRAINING_BACKUPS; i--) {
+            File[] files = new File(backupFolderPath, backups.get(i)).listFiles(savefileFilter);
+            for (int j = 0; files != null && j < files.length; j++) {
+                if (!trainer.addSample(Files.readAllBytes(files[j].toPath()))) {
+                    return trainer.train();
+                }
+            }
+        }
+        return trainer.train();
+    }
+
+    /**
+     * Copies the savegame from the selected backup to the savegame folder,
+     * only the files that differ. Save files the backup doesn't have are left
+     * alone.
+     *
+     * @param backupFolder The selected backup's directory.
+     * @param monitor Receives the progress of the copy.
+     * @return The outcome of the restore, the target is the backup's name.
+     * @throws IOException If the backup or the savegame folder can't be
+     * found, or a file can't be copied or checked.
+     * @see #planRestore(java.io.File, boolean)
+     */
+    public OperationResult restore(File backupFolder, OperationMonitor monitor) throws IOException {
+        return restore(planRestore(backupFolder, false), monitor);
+    }
+
+    /**
+     * Compares a backup with the current save, to find the files a restore
+     * has to copy. Files of different size differ; for the others the hash
+     * of the save file (cached when possible) is compared with the one in the
+     * backup's manifest. Backups without a manifest are hashed too, unless
+     * size and date already match.
+     *
+     * @param backupFolder The backup to restore.
+     * @param deleteExtras Whether the save files the backup doesn't have are
+     * to be deleted.
+     * @return The plan, to show to the user and then pass to restore.
+     * @throws IOException If the backup or the savegame folder can't be read.
+     */
+    public RestorePlan planRestore(File backupFolder, boolean deleteExtras) throws IOException {
+        OperationTrace trace = OperationTrace.start("plan");
+        try {
+            RestorePlan plan = comparePlan(backupFolder, deleteExtras);
+            trace.finish(plan.getSteps().size(), 0);
+            return plan;
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private RestorePlan comparePlan(File backupFolder, boolean deleteExtras) throws IOException {
+        // Test if the backup to restore still exists
+        boolean packed = packs.isPacked(backupFolder);
+        if (!backupFolder.exists() && !packed) {
+            throw new IOException("Error while restoring: the backup doens't exist!\n"
+                    + "This is probably an invalid path: " + backupFolder.getPath() + "!");
+        }
+        // Test if the savegame directory exists
+        if (!new File(savegameFolderPath).exists()) {
+            throw new IOException("Restore aborted! Please specify a valid path for the savegame directory");
+        }
+        File saveFolder = new File(savegameFolderPath);
+        RestorePlan plan = new RestorePlan(backupFolder);
+        Set<String> inBackup = new HashSet<String>();
+        BackupManifest manifest = packed ? packs.getManifest(backupFolder.getName())
+                : BackupArchive.isArchive(backupFolder) ? archives.list(backupFolder)
+                : BackupManifest.read(backupFolder);
+        hashCache.load();
+        if (manifest != null) {
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                inBackup.add(e.getName());
+                File live = new File(saveFolder, e.getName());
+                if (!live.isFile()) {
+                    plan.add(e.getName(), RestorePlan.Action.COPY, "missing");
+                } else if (live.length() != e.getSize()) {
+                    plan.add(e.getName(), RestorePlan.Action.COPY, "different size");
+                } else if (!hashLive(live).equals(e.getHash())) {
+                    plan.add(e.getName(), RestorePlan.Action.COPY, "different content");
+                } else {
+                    plan.add(e.getName(), RestorePlan.Action.SKIP, "same content");
+                }
+            }
+        } else {
+            File[] sourceFiles = backupFolder.listFiles(savefileFilter);
+            if (sourceFiles == null) {
+                throw new IOException("Restore aborted! Can't read the backup " + backupFolder.getPath());
+            }
+            for (File f : sourceFiles) {
+                inBackup.add(f.getName());
+                File live = new File(saveFolder, f.getName());
+                if (!live.isFile()) {
+                    plan.add(f.getName(), RestorePlan.Action.COPY, "missing");
+                } else if (live.length() != f.length()) {
+                    plan.add(f.getName(), RestorePlan.Action.COPY, "different size");
+                } else if (live.lastModified() == f.lastModified()) {
+                    plan.add(f.getName(), RestorePlan.Action.SKIP, "same size and date");
+                } else if (!hashLive(live).equals(BlobStore.hash(f.toPath()))) {
+                    plan.add(f.getName(), RestorePlan.Action.COPY, "different content");
+                } else {
+                    plan.add(f.getName(), RestorePlan.Action.SKIP, "same content");
+                }
+            }
+        }
+        hashCache.save();
+        File[] liveFiles = saveFolder.listFiles(savefileFilter);
+        for (int i = 0; liveFiles != null && i < liveFiles.length; i++) {
+            if (!inBackup.contains(liveFiles[i].getName())) {
+                plan.add(liveFiles[i].getName(), RestorePlan.Action.KEEP, "not in the backup");
+            }
+        }
+        plan.setDeleteExtras(deleteExtras);
+        return plan;
+    }
+
+    private String hashLive(File live) throws IOException {
+        String path = live.getAbsolutePath();
+        long size = live.length(), mtime = live.lastModified();
+        String hash = hashCache.get(path, size, mtime);
+        if (hash == null) {
+            hash = BlobStore.hash(live.toPath());
+            hashCache.put(path, size, mtime, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Carries out a restore plan. The files to copy are first copied to a
+     * staging folder next to the savegame folder and checked, then moved over
+     * the live ones, so a failed or cancelled restore leaves the save as it
+     * was and the game never reads a half restored one. Files the game wrote
+     * since the plan was made are copied too.
+     *
+     * @param plan The plan, see planRestore.
+     * @param monitor Receives the progress of the copy.
+     * @return The outcome of the restore, the target is the backup's name and
+     * files the number of files copied.
+     * @throws IOException If a file can't be copied, checked or deleted.
+     */
+    public OperationResult restore(RestorePlan plan, OperationMonitor monitor) throws IOException {
+        OperationTrace trace = OperationTrace.start("restore");
+        try {
+            return trace.finish(applyPlan(plan, monitor, trace));
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private OperationResult applyPlan(RestorePlan plan, OperationMonitor monitor, OperationTrace trace)
+            throws IOException {
+        File backupFolder = plan.getBackup();
+        OperationResult result = new OperationResult(backupFolder.getName());
+        Set<String> names = plan.getNames(RestorePlan.Action.COPY);
+        for (String name : plan.getNames(RestorePlan.Action.SKIP)) {
+            if (new File(savegameFolderPath, name).lastModified() >= plan.getCreated() - CHANGED_SINCE_PLAN_MILLIS) {
+                names.add(name);
+            }
+        }
+        Set<String> extras = plan.getNames(RestorePlan.Action.DELETE);
+        if (!names.isEmpty() || !extras.isEmpty()) {
+            trace.phase("snapshot");
+            Set<String> replaced = new HashSet<String>(names);
+            replaced.addAll(extras);
+            try {
+                snapshots.take(replaced);
+            } catch (IOException ex) {
+                throw new IOException("Restore aborted! Can't snapshot the save first: " + ex.getMessage(), ex);
+            }
+        }
+        File staging = getStagingFolder();
+        String journalId = journal.begin(Journal.RESTORE, backupFolder.getName(), staging.getAbsolutePath());
+        boolean complete = false;
+        try {
+            if (!names.isEmpty()) {
+                deleteFolder(staging);
+                if (!staging.mkdir()) {
+                    throw new IOException("Restore aborted! Can't create the staging folder " + staging.getPath());
+                }
+                trace.phase("stage");
+                stage(backupFolder, staging, names, result, monitor);
+                if (result.isCancelled()) {
+                    return result;
+                }
+            }
+            // From here on a crash finishes the restore instead of undoing it
+            journal.swap(journalId, extras);
+            if (!names.isEmpty()) {
+                trace.phase("swap");
+                swapIn(staging, new File(savegameFolderPath));
+            }
+            trace.phase("delete");
+            deleteExtras(extras);
+            complete = true;
+            return result;
+        } finally {
+            deleteFolder(staging);
+            if (complete) {
+                journal.commit(journalId);
+            } else {
+                journal.abort(journalId);
+            }
+        }
+    }
+
+    /**
+     * The folder restores are staged in: a hidden sibling of the savegame
+     * folder, so that moving files from it is a rename on the same disk.
+     *
+     * @return The staging folder.
+     */
+    private File getStagingFolder() {
+        File saveFolder = new File(savegameFolderPath).getAbsoluteFile();
+        return new File(saveFolder.getParentFile(), "." + saveFolder.getName() + STAGING_SUFFIX);
+    }
+
+    private void deleteExtras(Collection<String> extras) throws IOException {
+        for (String name : extras) {
+            File extra = new File(savegameFolderPath, name);
+            if (!extra.delete() && extra.exists()) {
+                throw new IOException("Error: can't delete " + extra.getPath());
+            }
+        }
+    }
+
+    /**
+     * Copies some of a backup's save files to the staging folder and checks
+     * them.
+     */
+    private void stage(File backupFolder, File staging, Set<String> names, OperationResult result,
+            OperationMonitor monitor) throws IOException {
+        BackupManifest manifest = BackupManifest.read(backupFolder);
+        if (BackupArchive.isArchive(backupFolder)) {
+            // Extraction checks the hashes itself
+            result.add(archives.extract(backupFolder, staging, names, copyEngine.getSyncPolicy(), monitor));
+        } else if (packs.isPacked(backupFolder)) {
+            // So does extraction from a pack
+            List<CopyEngine.Job> jobs = new ArrayList<CopyEngine.Job>();
+            for (final BackupManifest.Entry e : packs.getManifest(backupFolder.getName()).getEntries()) {
+                if (names.contains(e.getName())) {
+                    final Path target = new File(staging, e.getName()).toPath();
+                    jobs.add(new CopyEngine.Job(e.getName()) {
+                        @Override
+                        protected long run() throws IOException {
+                            return packs.extract(e, target, copyEngine.getSyncPolicy());
+                        }
+                    });
+                }
+            }
+            result.add(copyEngine.run(jobs, monitor));
+        } else if (manifest != null) {
+            List<BackupManifest.Entry> entries = new ArrayList<BackupManifest.Entry>();
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                if (names.contains(e.getName())) {
+                    entries.add(e);
+                }
+            }
+            // Take the files from the stores if they aren't linked in the backup
+            List<CopyEngine.Job> jobs = new ArrayList<CopyEngine.Job>();
+            for (final BackupManifest.Entry e : entries) {
+                File source = new File(backupFolder, e.getName());
+                final Path target = new File(staging, e.getName()).toPath();
+                if (e.getChunks() != null) {
+                    jobs.add(new CopyEngine.Job(e.getName()) {
+                        @Override
+                        protected long run() throws IOException {
+                            return chunkStore.restore(e, target);
+                        }
+                    });
+                } else {
+                    Path sourcePath = source.exists() ? source.toPath() : blobStore.getBlob(e.getHash());
+                    jobs.add(copyEngine.copyJob(sourcePath, target, true));
+                }
+            }
+            result.add(copyEngine.run(jobs, monitor));
+            if (!result.isCancelled()) {
+                for (BackupManifest.Entry e : entries) {
+                    // Chunked files were checked while being rebuilt
+                    Path staged = new File(staging, e.getName()).toPath();
+                    if (Files.size(staged) != e.getSize()
+                            || (e.getChunks() == null && !BlobStore.hash(staged).equals(e.getHash()))) {
+                        throw new IOException("Restore aborted! " + e.getName() + " doesn't match its backup, "
+                                + "it may be corrupted.");
+                    }
+                }
+            }
+        } else {
+            File[] sourceFiles = new File[names.size()];
+            int i = 0;
+            for (String name : names) {
+                sourceFiles[i++] = new File(backupFolder, name);
+            }
+            // Copy the files from the backup folder to the staging folder
+            result.add(copyEngine.copy(sourceFiles, staging, true, monitor));
+            for (i = 0; !result.isCancelled() && i < sourceFiles.length; i++) {
+                if (new File(staging, sourceFiles[i].getName()).length() != sourceFiles[i].length()) {
+                    throw new IOException("Restore aborted! " + sourceFiles[i].getName() + " wasn't copied whole.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the staged files over the live ones. Each move is a rename, so the
+     * game sees every file either old or new, and all of them change within
+     * milliseconds.
+     *
+     * @param staging The staging folder, on the same disk as the save.
+     * @param save The savegame folder.
+     * @throws IOException If a file can't be moved.
+     */
+    private void swapIn(File staging, File save) throws IOException {
+        File[] staged = staging.listFiles();
+        if (staged == null) {
+            throw new IOException("Restore aborted! Can't read the staging folder " + staging.getPath());
+        }
+        Path saveFolder = save.toPath();
+        for (File f : staged) {
+            Path target = saveFolder.resolve(f.getName());
+            try {
+                Files.move(f.toPath(), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(f.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (copyEngine.getSyncPolicy() != CopyEngine.SyncPolicy.NONE) {
+            CopyEngine.syncFolder(saveFolder);
+        }
+    }
+
+    /**
+     * Restores the most recent backup.
+     *
+     * @param monitor Receives the progress of the copy.
+     * @return The outcome of the restore.
+     * @throws IOException If there is no backup to restore.
+     * @see #restore(java.io.File, neoSavegameScavenger.OperationMonitor)
+     */
+    public OperationResult restoreLatest(OperationMonitor monitor) throws IOException {
+        return restore(getLatestBackup(), monitor);
+    }
+
+    /**
+     * @return The most recent backup.
+     * @throws IOException If there is no backup.
+     */
+    public File getLatestBackup() throws IOException {
+        File backupFolder = new File(backupFolderPath);
+        if (!backupFolder.exists()) {
+            throw new IOException("The backup directory (" + backupFolderPath + ") doesn't exist.");
+        }
+        // Backups still being written don't count
+        Set<String> open = new HashSet<String>();
+        for (Journal.Operation op : journal.pending()) {
+            if (op.getKind().equals(Journal.BACKUP)) {
+                open.add(op.getTarget());
+            }
+        }
+        List<String> backups = open.isEmpty() ? Collections.singletonList(catalog.latest()) : catalog.list();
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            if (backups.get(i) != null && !open.contains(backups.get(i))) {
+                return new File(backupFolder, backups.get(i));
+            }
+        }
+        throw new IOException("The backup directory (" + backupFolderPath + ") is empty.");
+    }
+
+    /**
+     * Empties the savegame directory, moving its contents to the trash in one
+     * step: either everything is cleared or nothing is. The save can be put
+     * back with {@link #undoClear()} for a while.
+     *
+     * @param monitor Receives the progress of the clear.
+     * @return The outcome of the clear.
+     * @throws IOException If the savegame folder doesn't exist or can't be
+     * moved.
+     */
+    public OperationResult clear(OperationMonitor monitor) throws IOException {
+        OperationTrace trace = OperationTrace.start("clear");
+        try {
+            OperationResult result = new OperationResult(new File(savegameFolderPath).getName());
+            monitor.begin(1);
+            int files = trash.moveToTrash();
+            for (int i = 0; i < files; i++) {
+                result.addFile();
+            }
+            monitor.progress(1, result.getTarget());
+            return trace.finish(result);
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+    /**
+     * Puts back the save of the last clear, if it's recent enough.
+     *
+     * @return The outcome of the undo.
+     * @throws IOException If there's no clear to undo or the save can't be
+     * moved back.
+     */
+    public OperationResult undoClear() throws IOException {
+        OperationTrace trace = OperationTrace.start("undo-clear");
+        try {
+            OperationResult result = new OperationResult(new File(savegameFolderPath).getName());
+            int files = trash.undo();
+            for (int i = 0; i < files; i++) {
+                result.addFile();
+            }
+            return trace.finish(result);
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+
+    /**
+     * @return The names of all the backups in the backup folder, oldest
+     * first.
+     */
+    public List<String> listBackups() {
+        return catalog.list();
+    }
+
+    public BackupCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Applies a retention policy to the backups, without deleting anything.
+     *
+     * @param policy The policy.
+     * @return What happens to every backup, newest first.
+     */
+    public List<RetentionPolicy.Decision> planRetention(RetentionPolicy policy) {
+        List<String> names = catalog.list();
+        long[] times = new long[names.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = BackupScanner.parseTime(names.get(i));
+        }
+        return policy.apply(names, times, System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the backups a retention policy doesn't keep, then the stored
+     * files no backup needs anymore.
+     *
+     * @param policy The policy.
+     * @param monitor Receives the progress of the deletion.
+     * @return The outcome, files is the number of deleted backups.
+     * @throws IOException If a backup can't be deleted.
+     */
+    public OperationResult prune(RetentionPolicy policy, OperationMonitor monitor) throws IOException {
+        List<String> doomed = new ArrayList<String>();
+        for (RetentionPolicy.Decision d : planRetention(policy)) {
+            if (!d.isKept()) {
+                doomed.add(d.getName());
+            }
+        }
+        OperationResult result = new OperationResult(new File(backupFolderPath).getName());
+        monitor.begin(doomed.size());
+        for (String name : doomed) {
+            if (monitor.isCancelled()) {
+                result.setCancelled();
+                break;
+            }
+            deleteBackup(name);
+            result.addFile();
+            monitor.progress(result.getFiles(), name);
+        }
+        if (result.getFiles() > 0) {
+            collectGarbage();
+        }
+        return result;
+    }
+
+    /**
+     * Deletes a backup, folder, archive or packed. The content of a packed
+     * backup is only freed once its whole pack is unused, by collectGarbage.
+     *
+     * @param name The backup's name.
+     * @throws IOException If the backup couldn't be deleted.
+     */
+    public void deleteBackup(String name) throws IOException {
+        File backup = new File(backupFolderPath, name);
+        if (packs.isPacked(backup)) {
+            packs.remove(name);
+        } else if (backup.isDirectory()) {
+            deleteFolder(backup);
+        } else {
+            backup.delete();
+        }
+        if (backup.exists()) {
+            throw new IOException("Error: can't delete the backup " + backup.getPath());
+        }
+        catalog.remove(name);
+    }
+
+    /**
+     * Deletes the blobs and chunks that no backup's manifest mentions, and the
+     * packs no packed backup uses. Those created in the last hour are spared,
+     * a backup running elsewhere may not have written its manifest yet.
+     *
+     * @return The number of files deleted.
+     * @throws IOException If a manifest can't be read; nothing is deleted
+     * then, since its files would look unused.
+     */
+    public int collectGarbage() throws IOException {
+        Set<String> used = new HashSet<String>();
+        for (String name : catalog.list()) {
+            BackupManifest manifest = BackupManifest.read(new File(backupFolderPath, name));
+            if (manifest != null) {
+                for (BackupManifest.Entry e : manifest.getEntries()) {
+                    used.add(e.getHash());
+                    if (e.getChunks() != null) {
+                        used.addAll(e.getChunks());
+                    }
+                }
+            }
+        }
+        long limit = System.currentTimeMillis() - GARBAGE_GRACE_MILLIS;
+        File data = new File(backupFolderPath, BlobStore.DATA_FOLDER);
+        return sweep(new File(data, "blobs"), used, limit) + sweep(new File(data, "chunks"), used, limit)
+                + packs.collectGarbage(GARBAGE_GRACE_MILLIS);
+    }
+
+    private static int sweep(File store, Set<String> used, long limit) {
+        int deleted = 0;
+        File[] prefixes = store.listFiles();
+        for (int i = 0; prefixes != null && i < prefixes.length; i++) {
+            File[] files = prefixes[i].listFiles();
+            for (int j = 0; files != null && j < files.length; j++) {
+                if (!used.contains(files[j].getName()) && files[j].lastModified() < limit && files[j].delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return true if backups have labels, i.e. some fields to read from the
+     * save files are set in the config.
+     */
+    public boolean hasLabels() {
+        return !labelFields.isEmpty();
+    }
+
+    /**
+     * Gets the label of a backup: the values of the configured fields in its
+     * save files, comma separated. Each backup is read once, the labels are
+     * cached; call saveLabels to keep them.
+     *
+     * @param name The backup's name.
+     * @return The label, empty if there are no fields or the save has none of
+     * them.
+     * @throws IOException If the backup can't be read.
+     */
+    public String getLabel(String name) throws IOException {
+        if (labelFields.isEmpty()) {
+            return "";
+        }
+        String label = labels.get(name);
+        if (label == null) {
+            label = readLabel(new File(backupFolderPath, name));
+            labels.put(name, label);
+        }
+        return label;
+    }
+
+    /**
+     * Writes the labels read since the last call to the disk.
+     *
+     * @throws IOException If the labels can't be written.
+     */
+    public void saveLabels() throws IOException {
+        if (labels != null) {
+            labels.save();
+        }
+    }
+
+    private String readLabel(File backup) throws IOException {
+        final Map<String, String> values = new HashMap<String, String>();
+        readSaveFiles(backup, new SaveFileReader() {
+            @Override
+            public boolean read(String name, InputStream in) throws IOException {
+                List<String> missing = new ArrayList<String>();
+                for (String field : labelFields) {
+                    if (!values.containsKey(field)) {
+                        missing.add(field);
+                    }
+                }
+                try {
+                    values.putAll(SolReader.read(new BufferedInputStream(in), missing));
+                } catch (IOException ex) {
+                    // Not a shared object, or one using what SolReader can't skip
+                }
+                return values.size() < labelFields.size();
+            }
+        });
+        StringBuilder label = new StringBuilder();
+        for (String field : labelFields) {
+            if (values.containsKey(field)) {
+                label.append(label.length() > 0 ? ", " : "").append(values.get(field));
+            }
+        }
+        return label.toString().replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    /**
+     * Passes the save files of a backup to a reader, one at a time, straight
+     * from where they are stored.
+     *
+     * @param backup The backup.
+     * @param reader The reader.
+     * @throws IOException If a file can't be read.
+     */
+    public void readSaveFiles(File backup, SaveFileReader reader) throws IOException {
+        if (BackupArchive.isArchive(backup)) {
+            archives.read(backup, reader);
+            return;
+        }
+        if (packs.isPacked(backup)) {
+            for (BackupManifest.Entry e : packs.getManifest(backup.getName()).getEntries()) {
+                try (InputStream file = packs.open(e)) {
+                    if (!reader.read(e.getName(), file)) {
+                        return;
+                    }
+                }
+            }
+            return;
+        }
+        BackupManifest manifest = BackupManifest.read(backup);
+        if (manifest != null) {
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                InputStream in;
+                if (e.getChunks() != null) {
+                    in = chunkStore.open(e);
+                } else {
+                    File source = new File(backup, e.getName());
+                    in = Files.newInputStream(source.exists() ? source.toPath() : blobStore.getBlob(e.getHash()));
+                }
+                try (InputStream file = in) {
+                    if (!reader.read(e.getName(), file)) {
+                        return;
+                    }
+                }
+            }
+            return;
+        }
+        File[] files = backup.listFiles(savefileFilter);
+        if (files == null) {
+            throw new IOException("Can't read the backup " + backup.getPath());
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            try (InputStream file = Files.newInputStream(f.toPath())) {
+                if (!reader.read(f.getName(), file)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes or undoes the backups and restores a crash cut short, as
+     * logged in the journal: complete backups are kept and partial ones
+     * deleted, restores that were swapping their files in are finished and
+     * the others dropped. Operations of processes still running are left
+     * alone. Expired restore snapshots are deleted too. Should run before
+     * anything else touches the backup folder.
+     *
+     * @return What was done, a line per operation; empty if nothing.
+     * @throws IOException If the journal can't be read or an operation can't
+     * be recovered.
+     */
+    public List<String> recover() throws IOException {
+        List<String> done = new ArrayList<String>();
+        List<Journal.Operation> pending = journal.pending();
+        // A backup is logged before its name is taken, a dead process may
+        // have logged the name a running one then took
+        Set<String> running = new HashSet<String>();
+        for (Journal.Operation op : pending) {
+            if (op.isOwnerAlive() && op.getKind().equals(Journal.BACKUP)) {
+                running.add(op.getTarget());
+            }
+        }
+        for (Journal.Operation op : pending) {
+            if (op.isOwnerAlive()) {
+                continue;
+            }
+            if (op.getKind().equals(Journal.BACKUP)) {
+                File backup = new File(backupFolderPath, op.getTarget());
+                File tmp = new File(backup.getPath() + ".tmp");
+                if (running.contains(backup.getName()) || !backup.exists() && !tmp.exists()) {
+                    // Never created, or not this operation's
+                    journal.abort(op.getId());
+                } else if (isComplete(backup)) {
+                    catalog.add(backup.getName());
+                    journal.commit(op.getId());
+                    done.add("Kept the backup " + backup.getName() + ", it was complete.");
+                } else {
+                    if (backup.isDirectory()) {
+                        deleteFolder(backup);
+                    } else {
+                        Files.deleteIfExists(backup.toPath());
+                    }
+                    Files.deleteIfExists(tmp.toPath());
+                    catalog.remove(backup.getName());
+                    journal.abort(op.getId());
+                    done.add("Deleted the partial backup " + backup.getName() + ".");
+                }
+            } else if (op.getKind().equals(Journal.RESTORE)) {
+                File staging = new File(op.getStaging());
+                if (op.isSwapping()) {
+                    // The staged files were all checked, put the rest in place
+                    String name = staging.getName();
+                    File save = new File(staging.getParentFile(),
+                            name.substring(1, name.length() - STAGING_SUFFIX.length()));
+                    if (staging.isDirectory()) {
+                        swapIn(staging, save);
+                    }
+                    for (String extra : op.getDeletes()) {
+                        new File(save, extra).delete();
+                    }
+                    deleteFolder(staging);
+                    journal.commit(op.getId());
+                    done.add("Finished restoring " + op.getTarget() + ".");
+                } else {
+                    deleteFolder(staging);
+                    journal.abort(op.getId());
+                    done.add("Undid the restore of " + op.getTarget() + ", the save wasn't changed.");
+                }
+            }
+        }
+        journal.compact();
+        snapshots.expire();
+        return done;
+    }
+
+    /**
+     * @param backup A backup left open in the journal.
+     * @return true if all its files were written: archives only get their
+     * name once complete, folders get their manifest last.
+     */
+    private boolean isComplete(File backup) {
+        try {
+            if (backup.getName().endsWith(BackupArchive.EXTENSION)) {
+                // The name is taken by an empty file until the archive is written
+                archives.list(backup);
+                return true;
+            }
+            BackupManifest manifest = BackupManifest.read(backup);
+            if (manifest == null) {
+                return false;
+            }
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                File f = new File(backup, e.getName());
+                if (f.exists() ? f.length() != e.getSize()
+                        : e.getChunks() == null && !blobStore.contains(e.getHash())) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a folder and the files it contains.
+     *
+     * @param folder The folder to delete.
+     */
+    static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        folder.delete();
+    }
+}
@@ -0,0 +1,240 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The list of save files in a backup, with their sizes and checksums. It is
+ * stored in the backup's folder, and lets the files be found in the blob
+ * store when the folder doesn't hold them.
+ */
+public class BackupManifest {
+
+    /**
+     * Name of the manifest file inside a backup folder.
+     */
+    public static final String FILE_NAME = "manifest.nss";
+    private static final String HEADER = "# NSS backup manifest 1";
+    private static final String CHUNKS_TAG = "chunks=";
+    private static final String CRC_TAG = "crc32c=";
+
+    /**
+     * A save file in the backup.
+     */
+    public static class Entry {
+
+        private final String name, hash, crc;
+        private final long size;
+        private final List<String> chunks;
+
+        public Entry(String name, long size, String hash) {
+            this(name, size, hash, null, null);
+        }
+
+        /**
+         * @param name The name of the save file.
+         * @param size The size of the file.
+         * @param hash The SHA-256 of the file.
+         * @param chunks The hashes of the file's chunks in the chunk store, in
+         * order, or null if the file is stored whole.
+         * @param crc The CRC32C of the file, or null if it isn't known.
+         */
+        public Entry(String name, long size, String hash, List<String> chunks, String crc) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+            this.chunks = chunks;
+            this.crc = crc;
+        }
+
+        /**
+         * @return The name of the save file.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The SHA-256 of the file, as a lowercase hex string.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return The hashes of the file's chunks, in order, or null if the
+         * file is stored whole.
+         */
+        public List<String> getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return The CRC32C of the file, as 8 lowercase hex digits, or null
+         * if the backup was made before they were recorded. Much cheaper to
+         * check than the hash.
+         */
+        public String getCrc() {
+            return crc;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Adds a file to the manifest. Safe to call from the copying threads.
+     *
+     * @param entry The file to add.
+     */
+    public synchronized void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * @return The files in the backup, sorted by name.
+     */
+    public synchronized List<Entry> getEntries() {
+        // The copy threads add the entries in whatever order they finish
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @param name The name of a save file.
+     * @return The file's entry, or null if it isn't in the backup.
+     */
+    public synchronized Entry get(String name) {
+        for (Entry e : entries) {
+            if (e.getName().equals(name)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param backupFolder A backup folder.
+     * @return true if the backup has a manifest.
+     */
+    public static boolean exists(File backupFolder) {
+        return new File(backupFolder, FILE_NAME).exists();
+    }
+
+    /**
+     * Reads the manifest of a backup.
+     *
+     * @param backupFolder The backup's folder.
+     * @return The manifest, or null if the backup doesn't have one.
+     * @throws IOException If the manifest can't be read or is malformed.
+     */
+    public static BackupManifest read(File backupFolder) throws IOException {
+        Path file = new File(backupFolder, FILE_NAME).toPath();
+        if (!Files.exists(file)) {
+            return null;
+        }
+        BackupManifest manifest = new BackupManifest();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.startsWith("#") || s.isEmpty()) {
+                    continue;
+                }
+                String[] fields = s.split("\t");
+                if (fields.length < 3) {
+                    throw new IOException("Malformed manifest line in " + file + ": " + s);
+                }
+                // Optional fields are tagged, so new ones can be added later
+                List<String> chunks = null;
+                String crc = null;
+                for (int i = 3; i < fields.length; i++) {
+                    if (fields[i].startsWith(CHUNKS_TAG)) {
+                        String list = fields[i].substring(CHUNKS_TAG.length());
+                        chunks = list.isEmpty() ? new ArrayList<String>()
+                                : new ArrayList<String>(Arrays.asList(list.split(",")));
+                    } else if (fields[i].startsWith(CRC_TAG)) {
+                        crc = fields[i].substring(CRC_TAG.length());
+                    }
+                }
+                try {
+                    manifest.add(new Entry(fields[0], Long.parseLong(fields[1]), fields[2], chunks, crc));
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Malformed manifest line in " + file + ": " + s, ex);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest in a backup folder. The file is replaced atomically,
+     * so a crash never leaves a half-written manifest behind.
+     *
+     * @param backupFolder The backup's folder.
+     * @throws IOException If the manifest can't be written.
+     */
+    public void write(File backupFolder) throws IOException {
+        List<Entry> sorted = getEntries();
+        Path tmp = new File(backupFolder, FILE_NAME + ".tmp").toPath();
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            for (Entry e : sorted) {
+                out.write(e.getName() + "\t" + e.getSize() + "\t" + e.getHash());
+                if (e.getCrc() != null) {
+                    out.write("\t" + CRC_TAG + e.getCrc());
+                }
+                if (e.getChunks() != null) {
+                    out.write("\t" + CHUNKS_TAG);
+                    for (int i = 0; i < e.getChunks().size(); i++) {
+                        out.write((i > 0 ? "," : "") + e.getChunks().get(i));
+                    }
+                }
+                out.newLine();
+            }
+        }
+        Files.move(tmp, new File(backupFolder, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,197 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the backups older than a few days from their folders to packs, on a
+ * low priority thread in the background. The latest backup is never packed,
+ * nor are archives, which are a single file already.
+ */
+public class BackupPacker implements Runnable {
+
+    private final BackupManager manager;
+    private final long ageMillis;
+    /**
+     * Held by a pack run. Not the packer itself, stop() must not wait for it.
+     */
+    private final Object runLock = new Object();
+    /**
+     * Null once stopped, the running thread checks it between backups.
+     */
+    private volatile Thread thread;
+
+    /**
+     * @param manager The manager of the backups to pack.
+     * @param ageMillis How old backups must be to be packed, 0 to never pack
+     * in the background.
+     */
+    public BackupPacker(BackupManager manager, long ageMillis) {
+        this.manager = manager;
+        this.ageMillis = ageMillis;
+    }
+
+    /**
+     * @param config The config to read the age from.
+     * @param manager The manager of the backups to pack.
+     * @return A packer for the backups of the manager.
+     */
+    public static BackupPacker fromConfig(Config config, BackupManager manager) {
+        return new BackupPacker(manager, TimeUnit.DAYS.toMillis(config.getInt(Config.PACK_AFTER, 30)));
+    }
+
+    /**
+     * @return How old backups must be to be packed in the background, 0 if
+     * they never are.
+     */
+    public long getAgeMillis() {
+        return ageMillis;
+    }
+
+    /**
+     * @param ageMillis How old backups must be.
+     * @return The backup folders at least that old, oldest first.
+     */
+    public List<File> candidates(long ageMillis) {
+        List<File> candidates = new ArrayList<File>();
+        List<String> backups = manager.listBackups();
+        long limit = System.currentTimeMillis() - ageMillis;
+        for (int i = 0; i < backups.size() - 1; i++) {
+            File backup = new File(manager.getBackupFolderPath(), backups.get(i));
+            long time = BackupScanner.parseTime(backups.get(i));
+            if (time >= 0 && time <= limit && backup.isDirectory()) {
+                candidates.add(backup);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Packs the backups at least some days old, then deletes their folders
+     * and whatever they alone used in the stores.
+     *
+     * @param ageMillis How old backups must be.
+     * @param monitor Receives a progress update for every backup.
+     * @return The names of the packed backups.
+     * @throws IOException If the pack couldn't be written; the backups are
+     * left as they were then.
+     */
+    public List<String> pack(long ageMillis, OperationMonitor monitor) throws IOException {
+        synchronized (runLock) {
+            OperationTrace trace = OperationTrace.start("pack");
+            try {
+                List<File> candidates = candidates(ageMillis);
+                List<String> packed = new ArrayList<String>();
+                long bytes = 0;
+                // A pack at a time, until the candidates run out
+                while (!candidates.isEmpty() && !monitor.isCancelled()) {
+                    List<String> names = manager.getPacks().pack(candidates, manager, monitor);
+                    if (names.isEmpty()) {
+                        break;
+                    }
+                    trace.phase("delete");
+                    for (String name : names) {
+                        for (BackupManifest.Entry e : manager.getPacks().getManifest(name).getEntries()) {
+                            bytes += e.getSize();
+                        }
+                        // Not deleteBackup, which would unlist the packed backup too
+                        BackupManager.deleteFolder(new File(manager.getBackupFolderPath(), name));
+                    }
+                    packed.addAll(names);
+                    // A full pack stops after its last backup
+                    int last = candidates.indexOf(new File(manager.getBackupFolderPath(),
+                            names.get(names.size() - 1)));
+                    candidates = new ArrayList<File>(candidates.subList(last + 1, candidates.size()));
+                }
+                if (!packed.isEmpty()) {
+                    trace.phase("gc");
+                    manager.collectGarbage();
+                }
+                trace.finish(packed.size(), bytes);
+                return packed;
+            } catch (IOException ex) {
+                throw trace.fail(ex);
+            } finally {
+                trace.end();
+            }
+        }
+    }
+
+    /**
+     * Packs in the background, on a low priority daemon thread, if some
+     * backups are old enough.
+     */
+    public synchronized void start() {
+        if (thread != null || ageMillis <= 0) {
+            return;
+        }
+        thread = new Thread(this, "NSS pack");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops packing in the background. The backups packed so far stay packed.
+     * Returns at once, the thread finishes the backup it's on first.
+     */
+    public synchronized void stop() {
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        final Thread self = Thread.currentThread();
+        try {
+            if (candidates(ageMillis).isEmpty()) {
+                return;
+            }
+            pack(ageMillis, new OperationMonitor() {
+                @Override
+                public void begin(int total) {
+                }
+
+                @Override
+                public void progress(int done, String item) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return thread != self;
+                }
+            });
+        } catch (IOException ex) {
+            System.err.println("Pack: " + ex.getMessage());
+        } finally {
+            synchronized (this) {
+                if (thread == self) {
+                    thread = null;
+                }
+            }
+        }
+    }
+}
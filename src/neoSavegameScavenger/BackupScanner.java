@@ -0,0 +1,239 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Lists the backups in the backup folder in a single pass: each entry's name
+ * is checked without a regex, and its type comes with the listing instead of
+ * costing another file system call (on Windows and network shares the
+ * directory listing already holds it).
+ */
+public class BackupScanner {
+
+    /**
+     * Length of the date at the start of a backup's name,
+     * "YYYY_MM_DD HH-MM-SS".
+     */
+    private static final int DATE_LENGTH = 19;
+    /**
+     * Orders backups by name, oldest first, as if archives had no extension:
+     * "... 2.nssa" comes after "....nssa" like "... 2" after "...".
+     */
+    public static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int cmp = stripExtension(a).compareTo(stripExtension(b));
+            return cmp != 0 ? cmp : a.compareTo(b);
+        }
+    };
+    private final Path folder;
+
+    /**
+     * A backup found in the folder.
+     */
+    public static class Backup implements Comparable<Backup> {
+
+        private final String name;
+        private final long time, size;
+        private final boolean archive;
+
+        Backup(String name, long time, boolean archive, long size) {
+            this.name = name;
+            this.time = time;
+            this.archive = archive;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return When the backup was made, in milliseconds, read from its
+         * name; -1 if the name isn't a valid date.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return true for an archive, false for a folder.
+         */
+        public boolean isArchive() {
+            return archive;
+        }
+
+        /**
+         * @return The size of an archive, 0 for a folder.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public int compareTo(Backup other) {
+            return ORDER.compare(name, other.name);
+        }
+    }
+
+    /**
+     * @param folder The backup folder.
+     */
+    public BackupScanner(File folder) {
+        this.folder = folder.toPath();
+    }
+
+    /**
+     * @return The backups, sorted by name (oldest first). Entries that can't
+     * be read are left out.
+     * @throws IOException If the backup folder can't be listed.
+     */
+    public List<Backup> scan() throws IOException {
+        OperationTrace trace = OperationTrace.start("scan");
+        try {
+            List<Backup> backups = walk();
+            trace.finish(backups.size(), 0);
+            return backups;
+        } catch (IOException ex) {
+            throw trace.fail(ex);
+        } finally {
+            trace.end();
+        }
+    }
+
+    private List<Backup> walk() throws IOException {
+        final List<Backup> backups = new ArrayList<Backup>();
+        final ZoneId zone = ZoneId.systemDefault();
+        Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (isBackupName(name)) {
+                    boolean archive = name.endsWith(BackupArchive.EXTENSION);
+                    if (archive ? attrs.isRegularFile() : attrs.isDirectory()) {
+                        backups.add(new Backup(name, parseTime(name, zone), archive, archive ? attrs.size() : 0));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException {
+                if (file.equals(folder)) {
+                    throw ex;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(backups);
+        return backups;
+    }
+
+    private static String stripExtension(String name) {
+        return name.endsWith(BackupArchive.EXTENSION)
+                ? name.substring(0, name.length() - BackupArchive.EXTENSION.length()) : name;
+    }
+
+    /**
+     * @param name A file name.
+     * @return true if the name starts with a date, "YYYY_MM_DD HH-MM-SS".
+     */
+    public static boolean isBackupName(String name) {
+        if (name.length() < DATE_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < DATE_LENGTH; i++) {
+            char c = name.charAt(i);
+            switch (i) {
+                case 4:
+                case 7:
+                    if (c != '_') {
+                        return false;
+                    }
+                    break;
+                case 10:
+                    if (c != ' ') {
+                        return false;
+                    }
+                    break;
+                case 13:
+                case 16:
+                    if (c != '-') {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (c < '0' || c > '9') {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name A backup's name.
+     * @return When the backup was made, in milliseconds, or -1 if the name
+     * doesn't start with a valid date.
+     */
+    public static long parseTime(String name) {
+        return parseTime(name, ZoneId.systemDefault());
+    }
+
+    private static long parseTime(String name, ZoneId zone) {
+        if (!isBackupName(name)) {
+            return -1;
+        }
+        try {
+            return LocalDateTime.of(number(name, 0, 4), number(name, 5, 7), number(name, 8, 10),
+                    number(name, 11, 13), number(name, 14, 16), number(name, 17, 19))
+                    .atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeException ex) {
+            return -1;
+        }
+    }
+
+    private static int number(String s, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            n = n * 10 + s.charAt(i) - '0';
+        }
+        return n;
+    }
+}
@@ -0,0 +1,224 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backs up several profiles at the same time, each with its own manager, so
+ * the whole run takes about as long as the slowest profile. At most a fixed
+ * number of profiles run at once, and a profile that fails doesn't stop the
+ * others.
+ */
+public class BackupScheduler {
+
+    /**
+     * How the backup of a single profile went.
+     */
+    public static class Outcome {
+
+        private final String profile;
+        private final OperationResult result;
+        private final Exception error;
+
+        Outcome(String profile, OperationResult result, Exception error) {
+            this.profile = profile;
+            this.result = result;
+            this.error = error;
+        }
+
+        public String getProfile() {
+            return profile;
+        }
+
+        /**
+         * @return The result of the backup, or null if it failed or never
+         * started because the run was cancelled.
+         */
+        public OperationResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return Why the backup failed, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the backup completed.
+         */
+        public boolean isDone() {
+            return result != null && !result.isCancelled();
+        }
+    }
+
+    private final Map<String, BackupManager> managers;
+    private final int maxConcurrent;
+
+    /**
+     * @param managers The manager of each profile, by profile name.
+     * @param maxConcurrent How many profiles may run at the same time.
+     * @throws IllegalArgumentException If two profiles share the save or the
+     * backup folder, since their backups would step on each other.
+     */
+    public BackupScheduler(Map<String, BackupManager> managers, int maxConcurrent) {
+        Map<File, String> folders = new HashMap<File, String>();
+        for (Map.Entry<String, BackupManager> e : managers.entrySet()) {
+            for (String path : new String[]{e.getValue().getSavegameFolderPath(), e.getValue().getBackupFolderPath()}) {
+                if (path.isEmpty()) {
+                    continue;
+                }
+                String other = folders.put(new File(path).getAbsoluteFile(), e.getKey());
+                if (other != null && !other.equals(e.getKey())) {
+                    throw new IllegalArgumentException("Profiles " + other + " and " + e.getKey()
+                            + " share the folder " + path);
+                }
+            }
+        }
+        this.managers = new LinkedHashMap<String, BackupManager>(managers);
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * @param config The config listing the profiles.
+     * @return A scheduler for every profile, limited by MaxConcurrentBackups.
+     * The default profile is left out if it has no save folder.
+     * @throws IllegalArgumentException If two profiles share a folder.
+     */
+    public static BackupScheduler fromConfig(Config config) {
+        Map<String, BackupManager> managers = new LinkedHashMap<String, BackupManager>();
+        for (String profile : config.getProfiles()) {
+            if (profile.equals(Config.DEFAULT_PROFILE) && config.get(Config.SAVE_FOLDER_PATH, "").isEmpty()) {
+                continue;
+            }
+            managers.put(profile, BackupManager.fromConfig(config.getProfile(profile)));
+        }
+        return new BackupScheduler(managers, config.getInt(Config.MAX_CONCURRENT_BACKUPS, 2));
+    }
+
+    /**
+     * @return The names of the profiles, in the order of the config.
+     */
+    public List<String> getProfiles() {
+        return new ArrayList<String>(managers.keySet());
+    }
+
+    /**
+     * @param profile The name of a profile.
+     * @return Its manager, or null.
+     */
+    public BackupManager getManager(String profile) {
+        return managers.get(profile);
+    }
+
+    /**
+     * Backs up every profile. The monitor counts finished profiles; the
+     * files copied are reported as "profile: file" without changing the
+     * count. Once cancelled, running backups stop and the others don't start.
+     *
+     * @param monitor Receives the progress, may be called from several
+     * threads at once.
+     * @return The outcome of each profile, in the order of getProfiles().
+     */
+    public List<Outcome> backupAll(final OperationMonitor monitor) {
+        final AtomicInteger finished = new AtomicInteger();
+        monitor.begin(managers.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxConcurrent, Math.max(1, managers.size())));
+        List<Future<Outcome>> pending = new ArrayList<Future<Outcome>>(managers.size());
+        try {
+            for (final Map.Entry<String, BackupManager> e : managers.entrySet()) {
+                pending.add(pool.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call() {
+                        Outcome outcome = backup(e.getKey(), e.getValue(), new OperationMonitor() {
+                            @Override
+                            public void begin(int total) {
+                            }
+
+                            @Override
+                            public void progress(int done, String item) {
+                                monitor.progress(finished.get(), e.getKey() + ": " + item);
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return monitor.isCancelled();
+                            }
+                        });
+                        monitor.progress(finished.incrementAndGet(), e.getKey());
+                        return outcome;
+                    }
+                }));
+            }
+            List<Outcome> outcomes = new ArrayList<Outcome>(pending.size());
+            List<String> profiles = getProfiles();
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    outcomes.add(pending.get(i).get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    outcomes.add(new Outcome(profiles.get(i), null, cause instanceof Exception ? (Exception) cause : ex));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    outcomes.add(new Outcome(profiles.get(i), null, ex));
+                }
+            }
+            return outcomes;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Backs up a single profile, turning every failure into an outcome.
+     */
+    private static Outcome backup(String profile, BackupManager manager, OperationMonitor monitor) {
+        if (monitor.isCancelled()) {
+            return new Outcome(profile, null, null);
+        }
+        if (manager.getSavegameFolderPath().isEmpty() || !new File(manager.getBackupFolderPath()).isDirectory()) {
+            return new Outcome(profile, null, new IOException("The savegame and/or backup folder paths are invalid."));
+        }
+        try {
+            for (String line : manager.recover()) {
+                System.err.println(profile + ": " + line);
+            }
+            return new Outcome(profile, manager.backup(monitor), null);
+        } catch (Exception ex) {
+            return new Outcome(profile, null, ex);
+        }
+    }
+}
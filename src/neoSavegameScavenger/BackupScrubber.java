@@ -0,0 +1,648 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+/**
+ * Reads the backups back and checks them against their checksums, so a
+ * backup damaged on the disk is noticed before it's needed. Files are read
+ * through a buffer each checking thread reuses, and checked by CRC32C where
+ * the manifest has one, by SHA-256 otherwise; chunks and blobs shared by several backups are read once per
+ * run. Several backups are checked at a time, within a bandwidth limit.
+ * <p>
+ * Checks are made in passes over every backup. The results are logged in
+ * ".nss/scrub" as soon as each backup is done, so an interrupted pass
+ * carries on where it stopped; a new pass starts once the last one is
+ * complete and old enough.
+ */
+public class BackupScrubber implements Runnable {
+
+    /**
+     * What the last check of a backup found.
+     */
+    public enum Status {
+
+        /**
+         * Every file matched its checksum.
+         */
+        OK,
+        /**
+         * Some files are missing or don't match their checksums.
+         */
+        DAMAGED,
+        /**
+         * The backup has no checksums to check against.
+         */
+        UNVERIFIABLE
+    }
+
+    /**
+     * The last check of a backup.
+     */
+    public static class Health {
+
+        private final String name, detail;
+        private final Status status;
+        private final long time;
+
+        Health(String name, Status status, long time, String detail) {
+            this.name = name;
+            this.status = status;
+            this.time = time;
+            this.detail = detail;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return When the backup was checked, in milliseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return What is wrong with the backup, empty if nothing.
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            String when = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(time));
+            switch (status) {
+                case OK:
+                    return "Verified on " + when;
+                case DAMAGED:
+                    return "Damaged, found on " + when + ": " + detail;
+                default:
+                    return "No checksums to verify, " + detail;
+            }
+        }
+    }
+
+    private static final String HEADER = "# NSS scrub 1";
+    private static final String PASS_TAG = "pass=";
+    /**
+     * Largest part of a file read at once, also the unit of throttling. Not
+     * mapped: a mapping is only released by the garbage collector, and keeps
+     * the file from being deleted on Windows meanwhile.
+     */
+    private static final int READ_WINDOW = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(READ_WINDOW);
+        }
+    };
+    private final BackupManager manager;
+    private final Path file;
+    private final int threads;
+    private final long bytesPerSecond, intervalMillis;
+    private final Map<String, Health> health = new ConcurrentHashMap<String, Health>();
+    private volatile long passStart;
+    private volatile boolean loaded;
+    private long nextSlot;
+    private final AtomicLong bytesRead = new AtomicLong();
+    /**
+     * Runs take turns on this rather than on the scrubber, so stop() doesn't
+     * wait for a run to finish.
+     */
+    private final Object runLock = new Object();
+    /**
+     * The background thread, a thread that isn't it anymore stops.
+     */
+    private volatile Thread thread;
+
+    /**
+     * @param manager The manager of the backups to check.
+     * @param threads How many backups are checked at a time.
+     * @param bytesPerSecond Limit to the reading speed, 0 for none.
+     * @param intervalMillis Time between the starts of two passes in the
+     * background, 0 to never scrub in the background.
+     */
+    public BackupScrubber(BackupManager manager, int threads, long bytesPerSecond, long intervalMillis) {
+        this.manager = manager;
+        file = new File(new File(manager.getBackupFolderPath(), BlobStore.DATA_FOLDER), "scrub").toPath();
+        this.threads = Math.max(1, threads);
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @param config The config to read the limits from.
+     * @param manager The manager of the backups to check.
+     * @return A scrubber for the backups of the manager.
+     */
+    public static BackupScrubber fromConfig(Config config, BackupManager manager) {
+        return new BackupScrubber(manager, config.getInt(Config.SCRUB_THREADS, 2),
+                config.getInt(Config.SCRUB_RATE, 20) * 1024L * 1024L,
+                TimeUnit.DAYS.toMillis(config.getInt(Config.SCRUB_INTERVAL, 7)));
+    }
+
+    /**
+     * @param name The name of a backup.
+     * @return Its last check, or null if it was never checked.
+     */
+    public Health getHealth(String name) {
+        load();
+        return health.get(name);
+    }
+
+    /**
+     * @return true if a new pass is due, or the last one was interrupted.
+     */
+    public boolean isDue() {
+        load();
+        return intervalMillis > 0 && (System.currentTimeMillis() - passStart >= intervalMillis
+                || !pending(manager.listBackups()).isEmpty());
+    }
+
+    /**
+     * Checks the backups left in the current pass, or every backup in a new
+     * pass if the current one is complete. Backups deleted while being
+     * checked aren't recorded.
+     *
+     * @param newPass true to start a new pass even if the current one isn't
+     * complete or old enough.
+     * @param monitor Receives a progress update for every backup, from
+     * several threads at once.
+     * @return The checks made by this run.
+     * @throws IOException If the checks couldn't run at all; damaged backups
+     * are results, not errors.
+     */
+    public List<Health> scrub(boolean newPass, OperationMonitor monitor) throws IOException {
+        synchronized (runLock) {
+            OperationTrace trace = OperationTrace.start("scrub");
+            long before = bytesRead.get();
+            try {
+                List<Health> checked = checkPending(newPass, monitor);
+                trace.finish(checked.size(), bytesRead.get() - before);
+                return checked;
+            } catch (IOException ex) {
+                throw trace.fail(ex);
+            } finally {
+                trace.end();
+            }
+        }
+    }
+
+    private List<Health> checkPending(boolean newPass, final OperationMonitor monitor) throws IOException {
+        load();
+        List<String> backups = manager.listBackups();
+        List<String> todo = pending(backups);
+        if (newPass || todo.isEmpty()) {
+            startPass(backups);
+            todo = backups;
+        }
+        final List<Health> checked = new ArrayList<Health>();
+        final Map<Object, Boolean> seen = new ConcurrentHashMap<Object, Boolean>();
+        final AtomicInteger done = new AtomicInteger();
+        monitor.begin(todo.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, todo.size())));
+        List<Future<Void>> pending = new ArrayList<Future<Void>>(todo.size());
+        try {
+            for (final String name : todo) {
+                pending.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                        if (monitor.isCancelled()) {
+                            return null;
+                        }
+                        File backup = new File(manager.getBackupFolderPath(), name);
+                        Health result = verify(backup, seen, monitor);
+                        if (result == null) {
+                            return null;
+                        }
+                        if (backup.exists() || manager.getPacks().isPacked(backup)) {
+                            record(result);
+                            synchronized (checked) {
+                                checked.add(result);
+                            }
+                        }
+                        monitor.progress(done.incrementAndGet(), name);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> task : pending) {
+                try {
+                    task.get();
+                } catch (ExecutionException ex) {
+                    throw ex.getCause() instanceof IOException ? (IOException) ex.getCause()
+                            : new IOException(ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while checking the backups", ex);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return checked;
+    }
+
+    /**
+     * Scrubs in the background, on a low priority daemon thread, if a pass is
+     * due.
+     */
+    public synchronized void start() {
+        if (thread != null || intervalMillis <= 0) {
+            return;
+        }
+        thread = new Thread(this, "NSS scrub");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the background scrub. The backups checked so far are kept, the
+     * next start carries on from there. Doesn't wait for the thread, which
+     * stops after the backups it's checking.
+     */
+    public synchronized void stop() {
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        // The monitor is asked from the checking threads
+        final Thread self = Thread.currentThread();
+        try {
+            if (!isDue()) {
+                return;
+            }
+            int damaged = 0;
+            for (Health h : scrub(false, new OperationMonitor() {
+                @Override
+                public void begin(int total) {
+                }
+
+                @Override
+                public void progress(int done, String item) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return thread != self;
+                }
+            })) {
+                if (h.getStatus() == Status.DAMAGED) {
+                    damaged++;
+                }
+            }
+            if (damaged > 0) {
+                System.err.println("Scrub: " + damaged + " damaged backups, see the restore window.");
+            }
+        } catch (IOException ex) {
+            System.err.println("Scrub: " + ex.getMessage());
+        } finally {
+            synchronized (this) {
+                if (thread == self) {
+                    thread = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a single backup.
+     *
+     * @param backup The backup.
+     * @param seen The blobs, chunks and files already checked by this run.
+     * @param monitor Checked for cancellation between files.
+     * @return The result, or null if the check was cancelled.
+     */
+    private Health verify(File backup, Map<Object, Boolean> seen, OperationMonitor monitor)
+            throws InterruptedException {
+        String name = backup.getName();
+        long now = System.currentTimeMillis();
+        try {
+            if (BackupArchive.isArchive(backup)) {
+                // Every file in an archive carries its own hash
+                throttle(backup.length());
+                manager.getArchives().list(backup);
+                return new Health(name, Status.OK, now, "");
+            }
+            if (manager.getPacks().isPacked(backup)) {
+                return verifyPacked(backup, now, seen, monitor);
+            }
+            BackupManifest manifest = BackupManifest.read(backup);
+            if (manifest == null) {
+                return new Health(name, Status.UNVERIFIABLE, now, "made before checksums were recorded");
+            }
+            List<String> problems = new ArrayList<String>();
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                if (monitor.isCancelled()) {
+                    return null;
+                }
+                String problem = e.getChunks() != null ? verifyChunks(e, seen) : verifyFile(backup, e, seen);
+                if (problem != null) {
+                    problems.add(e.getName() + " " + problem);
+                }
+            }
+            return problems.isEmpty() ? new Health(name, Status.OK, now, "")
+                    : new Health(name, Status.DAMAGED, now, join(problems));
+        } catch (IOException ex) {
+            return new Health(name, Status.DAMAGED, now, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Checks a packed backup, whose contents are read from the packs.
+     */
+    private Health verifyPacked(File backup, long now, Map<Object, Boolean> seen, OperationMonitor monitor)
+            throws InterruptedException {
+        List<String> problems = new ArrayList<String>();
+        for (BackupManifest.Entry e : manager.getPacks().getManifest(backup.getName()).getEntries()) {
+            if (monitor.isCancelled()) {
+                return null;
+            }
+            // A content is packed once, whatever the backups that have it
+            String key = "pack:" + e.getHash();
+            String problem = null;
+            if (!seen.containsKey(key)) {
+                throttle(e.getSize());
+                problem = manager.getPacks().check(e);
+                seen.put(key, problem == null);
+            } else if (!seen.get(key)) {
+                problem = "doesn't match its checksum";
+            }
+            if (problem != null) {
+                problems.add(e.getName() + " " + problem);
+            }
+        }
+        return problems.isEmpty() ? new Health(backup.getName(), Status.OK, now, "")
+                : new Health(backup.getName(), Status.DAMAGED, now, join(problems));
+    }
+
+    /**
+     * @return What is wrong with a file stored whole, or null.
+     */
+    private String verifyFile(File backup, BackupManifest.Entry e, Map<Object, Boolean> seen)
+            throws IOException, InterruptedException {
+        File linked = new File(backup, e.getName());
+        Path source = linked.exists() ? linked.toPath() : manager.getBlobStore().getBlob(e.getHash());
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return "is missing";
+        }
+        if (attributes.size() != e.getSize()) {
+            return "has the wrong size";
+        }
+        // Hard links to the same blob are the same file
+        Object key = attributes.fileKey() != null ? attributes.fileKey() : source;
+        Boolean ok = seen.get(key);
+        if (ok == null) {
+            if (e.getCrc() != null) {
+                Checksum crc = BlobStore.newChecksum();
+                digest(source, crc, null);
+                ok = BlobStore.toHex(crc).equals(e.getCrc());
+            } else {
+                MessageDigest sha = BlobStore.newDigest();
+                digest(source, null, sha);
+                ok = BlobStore.toHex(sha.digest()).equals(e.getHash());
+            }
+            seen.put(key, ok);
+        }
+        return ok ? null : "doesn't match its checksum";
+    }
+
+    /**
+     * @return What is wrong with a chunked file, or null. Chunks are named
+     * after their hash, which is what they're checked against.
+     */
+    private String verifyChunks(BackupManifest.Entry e, Map<Object, Boolean> seen)
+            throws IOException, InterruptedException {
+        long size = 0;
+        for (String hash : e.getChunks()) {
+            Path chunk = manager.getChunkStore().getChunk(hash);
+            if (!Files.exists(chunk)) {
+                return "is missing chunk " + hash;
+            }
+            size += Files.size(chunk);
+            Boolean ok = seen.get(hash);
+            if (ok == null) {
+                MessageDigest sha = BlobStore.newDigest();
+                digest(chunk, null, sha);
+                ok = BlobStore.toHex(sha.digest()).equals(hash);
+                seen.put(hash, ok);
+            }
+            if (!ok) {
+                return "has a damaged chunk " + hash;
+            }
+        }
+        return size == e.getSize() ? null : "has the wrong size";
+    }
+
+    /**
+     * Feeds a file to a checksum or a digest, a window at a time.
+     */
+    private void digest(Path source, Checksum crc, MessageDigest sha) throws IOException, InterruptedException {
+        ByteBuffer window = buffers.get();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += window.limit()) {
+                window.clear();
+                window.limit((int) Math.min(READ_WINDOW, size - position));
+                throttle(window.limit());
+                while (window.hasRemaining()) {
+                    if (channel.read(window, position + window.position()) < 0) {
+                        throw new IOException(source.getFileName() + " got shorter while being checked");
+                    }
+                }
+                window.flip();
+                if (crc != null) {
+                    crc.update(window);
+                } else {
+                    sha.update(window);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until reading some more bytes keeps every thread together within
+     * the bandwidth limit.
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        bytesRead.addAndGet(bytes);
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (health) {
+            long now = System.nanoTime();
+            if (nextSlot - now < 0) {
+                nextSlot = now;
+            }
+            wait = nextSlot - now;
+            nextSlot += bytes * 1000000000L / bytesPerSecond;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private static String join(List<String> problems) {
+        StringBuilder s = new StringBuilder();
+        for (String p : problems) {
+            s.append(s.length() > 0 ? "; " : "").append(p);
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return The backups not checked since the current pass started.
+     */
+    private List<String> pending(List<String> backups) {
+        List<String> todo = new ArrayList<String>();
+        for (String name : backups) {
+            Health h = health.get(name);
+            if (h == null || h.getTime() < passStart) {
+                todo.add(name);
+            }
+        }
+        return todo;
+    }
+
+    /**
+     * Reads the log once. Doesn't wait for a running scrub, so the window can
+     * show the results while it goes on.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (file) {
+            if (!loaded) {
+                read();
+                loaded = true;
+            }
+        }
+    }
+
+    private void read() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s;
+            while ((s = in.readLine()) != null) {
+                String[] fields = s.split("\t", 4);
+                if (s.startsWith(PASS_TAG)) {
+                    passStart = Long.parseLong(s.substring(PASS_TAG.length()));
+                } else if (!s.startsWith("#") && fields.length == 4) {
+                    // Later lines replace earlier ones
+                    health.put(fields[0], new Health(fields[0], Status.valueOf(fields[1]),
+                            Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Ignoring the scrub log: " + ex.getMessage());
+            health.clear();
+            passStart = 0;
+        }
+    }
+
+    /**
+     * Starts a new pass, rewriting the log with only the existing backups.
+     */
+    private void startPass(List<String> backups) throws IOException {
+        passStart = System.currentTimeMillis();
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling("scrub.tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            out.write(PASS_TAG + passStart);
+            out.newLine();
+            for (String name : backups) {
+                Health h = health.get(name);
+                if (h != null) {
+                    out.write(format(h));
+                    out.newLine();
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        health.keySet().retainAll(backups);
+    }
+
+    /**
+     * Keeps the result of a check and appends it to the log.
+     */
+    private void record(Health h) throws IOException {
+        synchronized (file) {
+            health.put(h.getName(), h);
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(format(h));
+                out.newLine();
+            }
+        }
+    }
+
+    private static String format(Health h) {
+        return h.getName() + "\t" + h.getStatus() + "\t" + h.getTime() + "\t"
+                + h.getDetail().replaceAll("[\t\r\n]", " ");
+    }
+}
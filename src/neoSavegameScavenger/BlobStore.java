@@ -0,0 +1,232 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import static java.nio.file.StandardOpenOption.READ;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Content addressed store for save files, kept in the ".nss/blobs" folder of
+ * the backup folder. Every distinct file content is stored once, named after
+ * its SHA-256; backups hard link their files to the blobs, or only list them
+ * in their manifest where the file system can't link.
+ */
+public class BlobStore {
+
+    /**
+     * Folder, inside the backup folder, that holds the NSS's own data.
+     */
+    public static final String DATA_FOLDER = ".nss";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final Path root, tmp;
+    private final CopyEngine.SyncPolicy syncPolicy;
+
+    /**
+     * @param backupFolder The backup folder the store belongs to.
+     * @param syncPolicy When new blobs are flushed to the disk.
+     */
+    public BlobStore(File backupFolder, CopyEngine.SyncPolicy syncPolicy) {
+        root = new File(new File(backupFolder, DATA_FOLDER), "blobs").toPath();
+        tmp = root.resolve("tmp");
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * @param hash The SHA-256 of a file, as a lowercase hex string.
+     * @return Where the blob with that hash is (or would be) stored.
+     */
+    public Path getBlob(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * @param hash The SHA-256 of a file, as a lowercase hex string.
+     * @return true if the store holds the blob.
+     */
+    public boolean contains(String hash) {
+        return Files.exists(getBlob(hash));
+    }
+
+    /**
+     * Puts a save file in the store and adds it to a backup. Files that the
+     * cache knows as unchanged are neither read nor written; the others are
+     * read once, hashed while being copied into the store.
+     *
+     * @param source The save file.
+     * @param target Where the file goes in the backup folder. It is hard
+     * linked to the blob if possible, otherwise only the manifest lists it.
+     * @param manifest The manifest of the backup.
+     * @param cache The hashes of the save files, updated with new ones.
+     * @param previous The files of the previous backup, by hash, whose
+     * checksums unchanged files reuse.
+     * @return The number of bytes written, 0 if the content was already
+     * stored.
+     * @throws IOException If the file couldn't be stored.
+     */
+    public long add(Path source, Path target, BackupManifest manifest, HashCache cache,
+            Map<String, BackupManifest.Entry> previous) throws IOException {
+        String key = source.toAbsolutePath().toString();
+        BasicFileAttributes before = Files.readAttributes(source, BasicFileAttributes.class);
+        long size = before.size();
+        String hash = cache.get(key, size, before.lastModifiedTime().toMillis());
+        String crc = null;
+        long written = 0;
+        if (hash != null && contains(hash)) {
+            if (previous.containsKey(hash)) {
+                crc = previous.get(hash).getCrc();
+            }
+        } else {
+            // Hash what is actually copied, the game may be writing the file
+            Files.createDirectories(tmp);
+            Path copy = Files.createTempFile(tmp, "blob", null);
+            try {
+                MessageDigest digest = newDigest();
+                Checksum checksum = newChecksum();
+                try (InputStream in = new CheckedInputStream(new DigestInputStream(Files.newInputStream(source), digest),
+                        checksum)) {
+                    size = Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+                }
+                if (syncPolicy != CopyEngine.SyncPolicy.NONE) {
+                    CopyEngine.syncFile(copy);
+                }
+                hash = toHex(digest.digest());
+                crc = toHex(checksum);
+                Path blob = getBlob(hash);
+                // Changed files may have gone back to a content already stored
+                if (!Files.exists(blob)) {
+                    Files.createDirectories(blob.getParent());
+                    try {
+                        Files.move(copy, blob, StandardCopyOption.ATOMIC_MOVE);
+                        written = size;
+                    } catch (FileAlreadyExistsException ex) {
+                        // Another thread stored the same content meanwhile
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(copy);
+            }
+        }
+        // Only cache the hash if the file didn't change while being read
+        BasicFileAttributes after = Files.readAttributes(source, BasicFileAttributes.class);
+        if (after.size() == size && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            cache.put(key, size, before.lastModifiedTime().toMillis(), hash);
+        }
+        link(hash, target);
+        manifest.add(new BackupManifest.Entry(target.getFileName().toString(), size, hash, null, crc));
+        return written;
+    }
+
+    /**
+     * Hard links a blob into a backup folder.
+     *
+     * @param hash The blob to link.
+     * @param target The link to create.
+     * @return false if the file system refused the link, in which case the
+     * file is only reachable through the manifest.
+     */
+    public boolean link(String hash, Path target) {
+        try {
+            Files.createLink(target, getBlob(hash));
+            return true;
+        } catch (UnsupportedOperationException | IOException ex) {
+            // FAT drives, some network shares, or too many links to the blob
+            return false;
+        }
+    }
+
+    /**
+     * @param file The file to hash.
+     * @return The SHA-256 of the file, as a lowercase hex string.
+     * @throws IOException If the file can't be read.
+     */
+    public static String hash(Path file) throws IOException {
+        return hash(file, null);
+    }
+
+    /**
+     * Hashes a file, computing its checksum in the same read.
+     *
+     * @param file The file to hash.
+     * @param checksum Updated with every byte of the file, or null.
+     * @return The SHA-256 of the file, as a lowercase hex string.
+     * @throws IOException If the file can't be read.
+     */
+    public static String hash(Path file, Checksum checksum) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream stream = new DigestInputStream(Files.newInputStream(file, READ), digest);
+        try (InputStream in = checksum == null ? stream : new CheckedInputStream(stream, checksum)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                // The digest sees every byte read
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    protected static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM must provide SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return A new CRC32C, the checksum recorded in the manifests. The JIT
+     * turns it into the CPU's CRC32C instructions where there are some.
+     */
+    protected static Checksum newChecksum() {
+        return new CRC32C();
+    }
+
+    /**
+     * @param checksum A 32 bit checksum.
+     * @return Its value, as 8 lowercase hex digits.
+     */
+    protected static String toHex(Checksum checksum) {
+        return String.format("%08x", checksum.getValue());
+    }
+
+    protected static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,319 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Store for pieces of save files, kept in the ".nss/chunks" folder of the
+ * backup folder. Files are cut where their content says so (FastCDC), not at
+ * fixed offsets, so an object changing inside a save only changes the chunks
+ * around it, and the rest are shared with the previous backups.
+ */
+public class ChunkStore {
+
+    /**
+     * Chunks are never smaller than this, unless the file ends.
+     */
+    protected static final int MIN_CHUNK = 2 * 1024;
+    /**
+     * Chunks are cut with the strict mask until this size, with the loose
+     * one after it, so their sizes cluster around it.
+     */
+    protected static final int AVG_CHUNK = 8 * 1024;
+    /**
+     * Chunks are never bigger than this.
+     */
+    protected static final int MAX_CHUNK = 64 * 1024;
+    /**
+     * The 15 and 11 bits masks of the FastCDC paper, for 8 KB chunks.
+     */
+    private static final long MASK_S = 0x0003590703530000L, MASK_L = 0x0000d90003530000L;
+    /**
+     * Random value for every byte, fixed forever: changing it would change
+     * every cut point and defeat deduplication with the older backups.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x4E53532D43444331L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+    private final Path root, tmp;
+    private final CopyEngine.SyncPolicy syncPolicy;
+
+    /**
+     * @param backupFolder The backup folder the store belongs to.
+     * @param syncPolicy When new chunks are flushed to the disk.
+     */
+    public ChunkStore(File backupFolder, CopyEngine.SyncPolicy syncPolicy) {
+        root = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "chunks").toPath();
+        tmp = root.resolve("tmp");
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * @param hash The SHA-256 of a chunk, as a lowercase hex string.
+     * @return Where the chunk with that hash is (or would be) stored.
+     */
+    public Path getChunk(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Cuts a save file in chunks, stores the new ones and adds the file to
+     * a backup's manifest. The file is read once, in a buffer of MAX_CHUNK
+     * bytes; files that the cache knows as unchanged since the previous
+     * backup take its chunk list and aren't read at all.
+     *
+     * @param source The save file.
+     * @param manifest The manifest of the backup.
+     * @param cache The hashes of the save files, updated with new ones.
+     * @param previous The files of the previous backup, by hash.
+     * @return The number of bytes written, only new chunks count.
+     * @throws IOException If the file couldn't be stored.
+     */
+    public long add(Path source, BackupManifest manifest, HashCache cache,
+            Map<String, BackupManifest.Entry> previous) throws IOException {
+        String key = source.toAbsolutePath().toString();
+        BasicFileAttributes before = Files.readAttributes(source, BasicFileAttributes.class);
+        String cached = cache.get(key, before.size(), before.lastModifiedTime().toMillis());
+        BackupManifest.Entry unchanged = cached == null ? null : previous.get(cached);
+        if (unchanged != null && unchanged.getChunks() != null) {
+            manifest.add(new BackupManifest.Entry(source.getFileName().toString(), unchanged.getSize(),
+                    unchanged.getHash(), unchanged.getChunks(), unchanged.getCrc()));
+            return 0;
+        }
+        long written = 0, size = 0;
+        List<String> chunks = new ArrayList<String>();
+        MessageDigest fileDigest = BlobStore.newDigest();
+        Checksum fileCrc = BlobStore.newChecksum();
+        byte[] buffer = new byte[MAX_CHUNK];
+        int length = 0;
+        boolean eof = false;
+        try (InputStream in = Files.newInputStream(source)) {
+            while (!eof || length > 0) {
+                // Fill the buffer, a chunk can't be cut before it's full
+                while (!eof && length < buffer.length) {
+                    int n = in.read(buffer, length, buffer.length - length);
+                    if (n == -1) {
+                        eof = true;
+                    } else {
+                        length += n;
+                    }
+                }
+                if (length == 0) {
+                    break;
+                }
+                int cut = cutPoint(buffer, length);
+                fileDigest.update(buffer, 0, cut);
+                fileCrc.update(buffer, 0, cut);
+                MessageDigest chunkDigest = BlobStore.newDigest();
+                chunkDigest.update(buffer, 0, cut);
+                String hash = BlobStore.toHex(chunkDigest.digest());
+                written += put(hash, buffer, cut);
+                chunks.add(hash);
+                size += cut;
+                System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                length -= cut;
+            }
+        }
+        String hash = BlobStore.toHex(fileDigest.digest());
+        // Only cache the hash if the file didn't change while being read
+        BasicFileAttributes after = Files.readAttributes(source, BasicFileAttributes.class);
+        if (after.size() == size && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            cache.put(key, size, before.lastModifiedTime().toMillis(), hash);
+        }
+        manifest.add(new BackupManifest.Entry(source.getFileName().toString(), size, hash, chunks,
+                BlobStore.toHex(fileCrc)));
+        return written;
+    }
+
+    /**
+     * Rebuilds a file from its chunks, streaming them one at a time.
+     *
+     * @param entry The file's manifest entry, which must have chunks.
+     * @param target The file to write, replaced if it exists.
+     * @return The number of bytes written.
+     * @throws IOException If a chunk is missing or the rebuilt file doesn't
+     * match the hash in the manifest.
+     */
+    public long restore(BackupManifest.Entry entry, Path target) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        long size = 0;
+        try (OutputStream out = new DigestOutputStream(Files.newOutputStream(target), digest)) {
+            for (String hash : entry.getChunks()) {
+                Path chunk = getChunk(hash);
+                if (!Files.exists(chunk)) {
+                    throw new IOException("Missing chunk " + hash + " of " + entry.getName());
+                }
+                size += Files.copy(chunk, out);
+            }
+        }
+        if (!BlobStore.toHex(digest.digest()).equals(entry.getHash())) {
+            throw new IOException("The rebuilt " + entry.getName() + " doesn't match its backup, it may be corrupted.");
+        }
+        if (syncPolicy != CopyEngine.SyncPolicy.NONE) {
+            CopyEngine.syncFile(target);
+        }
+        return size;
+    }
+
+    /**
+     * Opens a chunked save file for reading, chunk after chunk. Unlike
+     * restore, the content isn't checked against the file's hash.
+     *
+     * @param entry The file's entry in the manifest, with its chunks.
+     * @return The file's content.
+     */
+    public InputStream open(final BackupManifest.Entry entry) {
+        return new InputStream() {
+            private int next;
+            private InputStream chunk;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (true) {
+                    if (chunk == null) {
+                        if (next == entry.getChunks().size()) {
+                            return -1;
+                        }
+                        String hash = entry.getChunks().get(next++);
+                        if (!Files.exists(getChunk(hash))) {
+                            throw new IOException("Missing chunk " + hash + " of " + entry.getName());
+                        }
+                        chunk = Files.newInputStream(getChunk(hash));
+                    }
+                    int n = chunk.read(b, off, len);
+                    if (n != -1) {
+                        return n;
+                    }
+                    chunk.close();
+                    chunk = null;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (chunk != null) {
+                    chunk.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param hash The hash of a chunk.
+     * @return true if the store holds the chunk.
+     */
+    public boolean contains(String hash) {
+        return Files.exists(getChunk(hash));
+    }
+
+    /**
+     * Stores a chunk, unless it's already there.
+     *
+     * @return The number of bytes written.
+     */
+    private long put(String hash, byte[] data, int length) throws IOException {
+        Path chunk = getChunk(hash);
+        if (Files.exists(chunk)) {
+            return 0;
+        }
+        Files.createDirectories(tmp);
+        Path copy = Files.createTempFile(tmp, "chunk", null);
+        try {
+            try (OutputStream out = Files.newOutputStream(copy)) {
+                out.write(data, 0, length);
+            }
+            if (syncPolicy != CopyEngine.SyncPolicy.NONE) {
+                CopyEngine.syncFile(copy);
+            }
+            Files.createDirectories(chunk.getParent());
+            Files.move(copy, chunk, StandardCopyOption.ATOMIC_MOVE);
+            return length;
+        } catch (FileAlreadyExistsException ex) {
+            // Another thread stored the same chunk meanwhile
+            return 0;
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    /**
+     * FastCDC cut point: a gear rolling hash, tested with a strict mask
+     * before AVG_CHUNK and a loose one after.
+     *
+     * @param data The bytes to cut, starting at the beginning of a chunk.
+     * @param length How many bytes of data are valid.
+     * @return The length of the first chunk.
+     */
+    protected static int cutPoint(byte[] data, int length) {
+        if (length <= MIN_CHUNK) {
+            return length;
+        }
+        int n = Math.min(length, MAX_CHUNK);
+        int normal = Math.min(n, AVG_CHUNK);
+        long fp = 0;
+        int i = MIN_CHUNK;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[data[i] & 0xff];
+            if ((fp & MASK_S) == 0) {
+                return i;
+            }
+        }
+        for (; i < n; i++) {
+            fp = (fp << 1) + GEAR[data[i] & 0xff];
+            if ((fp & MASK_L) == 0) {
+                return i;
+            }
+        }
+        return n;
+    }
+}
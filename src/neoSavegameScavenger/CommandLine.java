@@ -0,0 +1,515 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless entry point, for scripts. It reads the same config file as the
+ * window and runs the same operations, but never loads AWT or Swing, so it
+ * starts in a fraction of the time.
+ * <p>
+ * Usage: CommandLine [-v] [-t] [-p profile] backup | backup-all | restore [--dry-run] [--delete]
+ * &lt;name&gt; | restore-latest [--dry-run] [--delete] |
+ * list | clear --yes | prune [--dry-run] [policy] | scrub [--restart] | pack [days] |
+ * daemon
+ */
+public class CommandLine {
+
+    public static final int EXIT_OK = 0;
+    /**
+     * The operation failed.
+     */
+    public static final int EXIT_FAILED = 1;
+    /**
+     * Wrong command or arguments.
+     */
+    public static final int EXIT_USAGE = 2;
+    /**
+     * The config file is missing or the paths in it are invalid.
+     */
+    public static final int EXIT_CONFIG = 3;
+    /**
+     * The operation was interrupted (Ctrl+C) and stopped cleanly.
+     */
+    public static final int EXIT_CANCELLED = 130;
+    private static final String USAGE = "Usage: CommandLine [-v] [-t] [-p profile] <command>\n"
+            + "Commands:\n"
+            + "  backup             back up the current save\n"
+            + "  backup-all         back up every profile, several at a time\n"
+            + "  restore [--dry-run] [--delete] <name>\n"
+            + "                     restore the named backup, copying only the files\n"
+            + "                     that differ; --delete removes the save files the\n"
+            + "                     backup doesn't have, --dry-run only shows the plan\n"
+            + "  restore-latest [--dry-run] [--delete]\n"
+            + "                     restore the most recent backup\n"
+            + "  diff <name> [other]\n"
+            + "                     show the save values that differ between a backup\n"
+            + "                     and the current save, or another backup\n"
+            + "  list               list the backups, oldest first, then the snapshots\n"
+            + "                     of the save taken before the last restores\n"
+            + "  clear --yes        empty the save folder, the save goes to the trash\n"
+            + "  undo-clear         put back the save of the last clear, if recent\n"
+            + "  prune [--dry-run] [policy]\n"
+            + "                     delete the backups the retention policy doesn't\n"
+            + "                     keep (default: the one in the config)\n"
+            + "  scrub [--restart]  check the backups against their checksums, carrying\n"
+            + "                     on the last pass unless it's complete or --restart\n"
+            + "  pack [days]        move the backups older than that (default: the age\n"
+            + "                     in the config) from their folders to packs\n"
+            + "  daemon             keep running and take backup, restore, list and\n"
+            + "                     status commands from a local socket, see the readme\n"
+            + "Options:\n"
+            + "  -v                 print every file processed\n"
+            + "  -t                 print the time from JVM start to the end\n"
+            + "  -p profile         use the named profile of the config";
+    private static final long CANCEL_WAIT_MILLIS = 10000;
+    private final PrintStream out, err;
+    private boolean verbose;
+    private String profile = Config.DEFAULT_PROFILE;
+    private volatile boolean cancelled;
+
+    public CommandLine(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new CommandLine(System.out, System.err);
+        int code = commandLine.run(args);
+        // After Ctrl+C the JVM is already shutting down, exiting would block
+        // until the cancel hook stops waiting for this thread
+        if (!commandLine.cancelled) {
+            System.exit(code);
+        }
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param args The command line.
+     * @return The exit code.
+     */
+    public int run(String[] args) {
+        long start = System.nanoTime();
+        boolean timed = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if (args[i].equals("-v")) {
+                verbose = true;
+            } else if (args[i].equals("-t")) {
+                timed = true;
+            } else if (args[i].equals("-p") && i + 1 < args.length) {
+                profile = args[++i];
+            } else {
+                err.println(USAGE);
+                return EXIT_USAGE;
+            }
+        }
+        if (i == args.length) {
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        int code = execute(args[i], Arrays.copyOfRange(args, i + 1, args.length));
+        if (timed) {
+            long sinceStart = ProcessHandle.current().info().startInstant().isPresent()
+                    ? System.currentTimeMillis() - ProcessHandle.current().info().startInstant().get().toEpochMilli() : -1;
+            err.println("Done in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                    + sinceStart + " ms since the JVM started.");
+        }
+        return code;
+    }
+
+    private int execute(String command, String[] params) {
+        Config config;
+        try {
+            config = Config.load();
+        } catch (IOException ex) {
+            err.println("Can't read the config file: " + ex.getMessage());
+            return EXIT_CONFIG;
+        }
+        if (!config.exists()) {
+            err.println("Config file missing, run the program once without arguments to create it.");
+            return EXIT_CONFIG;
+        }
+        if (command.equals("backup-all") && params.length == 0) {
+            return backupAll(config);
+        }
+        if (command.equals("daemon") && params.length == 0) {
+            return daemon(config);
+        }
+        try {
+            config = config.getProfile(profile);
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage() + ", add it to " + Config.PROFILES + " in the config.");
+            return EXIT_CONFIG;
+        }
+        BackupManager manager = BackupManager.fromConfig(config);
+        if (manager.getSavegameFolderPath().equals("") || !new File(manager.getBackupFolderPath()).isDirectory()) {
+            err.println("The savegame and/or backup folder paths in the config are invalid.");
+            return EXIT_CONFIG;
+        }
+        try {
+            for (String line : manager.recover()) {
+                err.println(line);
+            }
+        } catch (IOException ex) {
+            err.println("Can't recover the last interrupted operation: " + ex.getMessage());
+            return EXIT_FAILED;
+        }
+        try {
+            manager.getTrash().purge();
+        } catch (IOException ex) {
+            err.println("Can't empty the trash: " + ex.getMessage());
+        }
+        Thread cancelHook = installCancelHook();
+        try {
+            OperationResult result;
+            if (command.equals("backup") && params.length == 0) {
+                result = manager.backup(monitor());
+                report("Backed up", result);
+            } else if (command.equals("restore") || command.equals("restore-latest")) {
+                return restore(manager, command.equals("restore-latest"), params);
+            } else if (command.equals("list") && params.length == 0) {
+                for (String name : manager.listBackups()) {
+                    out.println(name);
+                }
+                for (String name : manager.getSnapshots().list()) {
+                    out.println(name);
+                }
+                return EXIT_OK;
+            } else if (command.equals("clear") && params.length == 1 && params[0].equals("--yes")) {
+                result = manager.clear(monitor());
+                report("Cleared", result);
+            } else if (command.equals("undo-clear") && params.length == 0) {
+                result = manager.undoClear();
+                report("Put back", result);
+            } else if (command.equals("diff") && (params.length == 1 || params.length == 2)) {
+                return diff(manager, params);
+            } else if (command.equals("prune") && params.length <= 2) {
+                return prune(manager, params);
+            } else if (command.equals("scrub") && (params.length == 0
+                    || params.length == 1 && params[0].equals("--restart"))) {
+                return scrub(manager, params.length == 1);
+            } else if (command.equals("pack") && params.length <= 1) {
+                return pack(manager, params);
+            } else {
+                err.println(USAGE);
+                return EXIT_USAGE;
+            }
+            return result.isCancelled() ? EXIT_CANCELLED : EXIT_OK;
+        } catch (IOException ex) {
+            err.println(ex.getMessage());
+            return EXIT_FAILED;
+        } finally {
+            removeCancelHook(cancelHook);
+        }
+    }
+
+    private int backupAll(Config config) {
+        BackupScheduler scheduler;
+        try {
+            scheduler = BackupScheduler.fromConfig(config);
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            return EXIT_CONFIG;
+        }
+        Thread cancelHook = installCancelHook();
+        try {
+            int code = EXIT_OK;
+            for (BackupScheduler.Outcome outcome : scheduler.backupAll(monitor())) {
+                if (outcome.getError() != null) {
+                    err.println(outcome.getProfile() + ": " + outcome.getError().getMessage());
+                    code = EXIT_FAILED;
+                } else if (outcome.getResult() == null) {
+                    err.println(outcome.getProfile() + ": not started");
+                } else {
+                    report(outcome.getProfile() + ": Backed up", outcome.getResult());
+                }
+                if (!outcome.isDone() && code == EXIT_OK) {
+                    code = EXIT_CANCELLED;
+                }
+            }
+            return code;
+        } finally {
+            removeCancelHook(cancelHook);
+        }
+    }
+
+    private int daemon(Config config) {
+        final ControlServer server;
+        try {
+            server = ControlServer.fromConfig(config);
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            return EXIT_CONFIG;
+        }
+        // The daemon is the process worth watching, it runs for days
+        OperationMetrics.get().register();
+        // Ctrl+C stops the server, which cancels the running operations
+        Thread hook = new Thread("NSS daemon stop") {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        Thread cancelHook = installCancelHook();
+        try {
+            server.serve(err);
+            return cancelled ? EXIT_CANCELLED : EXIT_OK;
+        } catch (IOException ex) {
+            err.println(ex.getMessage());
+            return EXIT_FAILED;
+        } finally {
+            removeCancelHook(cancelHook);
+            removeCancelHook(hook);
+        }
+    }
+
+    private int restore(BackupManager manager, boolean latest, String[] params) throws IOException {
+        boolean dryRun = false, delete = false;
+        String name = null;
+        for (String param : params) {
+            if (param.equals("--dry-run")) {
+                dryRun = true;
+            } else if (param.equals("--delete")) {
+                delete = true;
+            } else if (name == null && !latest && !param.startsWith("--")) {
+                name = param;
+            } else {
+                err.println(USAGE);
+                return EXIT_USAGE;
+            }
+        }
+        File backup;
+        if (latest) {
+            backup = manager.getLatestBackup();
+        } else if (name == null) {
+            err.println(USAGE);
+            return EXIT_USAGE;
+        } else if ((backup = find(manager, name)) == null) {
+            return EXIT_FAILED;
+        }
+        RestorePlan plan = manager.planRestore(backup, delete);
+        if (dryRun || verbose) {
+            for (RestorePlan.Step step : plan.getSteps()) {
+                (dryRun ? out : err).println(step);
+            }
+        }
+        if (dryRun) {
+            return EXIT_OK;
+        }
+        OperationResult result = manager.restore(plan, monitor());
+        report("Restored", result);
+        return result.isCancelled() ? EXIT_CANCELLED : EXIT_OK;
+    }
+
+    private int prune(BackupManager manager, String[] params) throws IOException {
+        boolean dryRun = false;
+        RetentionPolicy policy = manager.getRetention();
+        for (String param : params) {
+            if (param.equals("--dry-run")) {
+                dryRun = true;
+            } else {
+                try {
+                    policy = RetentionPolicy.parse(param);
+                } catch (IllegalArgumentException ex) {
+                    err.println(ex.getMessage());
+                    return EXIT_USAGE;
+                }
+            }
+        }
+        if (policy == null) {
+            err.println("No retention policy, pass one or set " + Config.RETENTION + " in the config.");
+            return EXIT_USAGE;
+        }
+        if (dryRun) {
+            for (RetentionPolicy.Decision d : manager.planRetention(policy)) {
+                out.println(d);
+            }
+            return EXIT_OK;
+        }
+        OperationResult result = manager.prune(policy, monitor());
+        if (result.isCancelled()) {
+            err.println("Deleted " + result.getFiles() + " backups before being cancelled.");
+            return EXIT_CANCELLED;
+        }
+        out.println("Deleted " + result.getFiles() + " backups.");
+        return EXIT_OK;
+    }
+
+    private int diff(BackupManager manager, String[] params) throws IOException {
+        File left = find(manager, params[0]);
+        File right = params.length > 1 ? find(manager, params[1]) : null;
+        if (left == null || params.length > 1 && right == null) {
+            return EXIT_FAILED;
+        }
+        OperationMonitor monitor = monitor();
+        int same = 0;
+        for (BackupDiff.FileDiff diff : new BackupDiff(manager).compare(left, right, monitor)) {
+            if (diff.getStatus() == BackupDiff.Status.SAME) {
+                same++;
+                continue;
+            }
+            out.println(diff);
+            for (BackupDiff.Change change : diff.getChanges()) {
+                out.println("  " + change);
+            }
+        }
+        out.println(same + " files are the same.");
+        return monitor.isCancelled() ? EXIT_CANCELLED : EXIT_OK;
+    }
+
+    /**
+     * @return The backup or snapshot with that name, or null if there's none
+     * (after saying so).
+     */
+    private File find(BackupManager manager, String name) {
+        if (SaveSnapshots.isSnapshot(name)) {
+            if (!manager.getSnapshots().list().contains(name)) {
+                err.println("No snapshot named \"" + name + "\", see the list command.");
+                return null;
+            }
+            return manager.getSnapshots().getSnapshot(name);
+        }
+        if (!manager.listBackups().contains(name)) {
+            err.println("No backup named \"" + name + "\", see the list command.");
+            return null;
+        }
+        return new File(manager.getBackupFolderPath(), name);
+    }
+
+    private int scrub(BackupManager manager, boolean restart) throws IOException {
+        int damaged = 0, unverifiable = 0;
+        OperationMonitor monitor = monitor();
+        List<BackupScrubber.Health> checked = manager.getScrubber().scrub(restart, monitor);
+        for (BackupScrubber.Health h : checked) {
+            if (h.getStatus() == BackupScrubber.Status.DAMAGED) {
+                out.println(h.getName() + ": " + h);
+                damaged++;
+            } else if (h.getStatus() == BackupScrubber.Status.UNVERIFIABLE) {
+                unverifiable++;
+            }
+        }
+        out.println("Checked " + checked.size() + " backups: " + damaged + " damaged, "
+                + unverifiable + " without checksums.");
+        if (monitor.isCancelled()) {
+            err.println("Cancelled, the next scrub carries on from here.");
+            return EXIT_CANCELLED;
+        }
+        return damaged > 0 ? EXIT_FAILED : EXIT_OK;
+    }
+
+    private int pack(BackupManager manager, String[] params) throws IOException {
+        long ageMillis = manager.getPacker().getAgeMillis();
+        if (params.length == 1) {
+            try {
+                ageMillis = TimeUnit.DAYS.toMillis(Integer.parseInt(params[0]));
+            } catch (NumberFormatException ex) {
+                err.println("Not a number of days: " + params[0]);
+                return EXIT_USAGE;
+            }
+        }
+        if (ageMillis <= 0) {
+            err.println("No age to pack after, pass one or set " + Config.PACK_AFTER + " in the config.");
+            return EXIT_USAGE;
+        }
+        OperationMonitor monitor = monitor();
+        List<String> packed = manager.getPacker().pack(ageMillis, monitor);
+        out.println("Packed " + packed.size() + " backups.");
+        if (monitor.isCancelled()) {
+            err.println("Cancelled, the backups not packed yet are left as they were.");
+            return EXIT_CANCELLED;
+        }
+        return EXIT_OK;
+    }
+
+    private void report(String what, OperationResult result) {
+        if (result.isCancelled()) {
+            err.println(what + " " + result.getFiles() + " files of " + result.getTarget() + " before being cancelled.");
+        } else {
+            out.println(what + " " + result.getTarget() + ": " + result.getFiles() + " files, "
+                    + result.getBytes() + " bytes in " + result.getElapsedMillis() + " ms");
+        }
+    }
+
+    private OperationMonitor monitor() {
+        return new OperationMonitor() {
+            private int total;
+
+            @Override
+            public void begin(int total) {
+                this.total = total;
+            }
+
+            @Override
+            public void progress(int done, String item) {
+                if (verbose) {
+                    err.println("[" + done + "/" + total + "] " + item);
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled;
+            }
+        };
+    }
+
+    /**
+     * Lets Ctrl+C stop the operation cleanly (a cancelled backup is deleted)
+     * instead of killing it halfway. Must be removed once the operation is
+     * over.
+     *
+     * @return The hook.
+     */
+    private Thread installCancelHook() {
+        final Thread main = Thread.currentThread();
+        Thread hook = new Thread("NSS cancel") {
+            @Override
+            public void run() {
+                cancelled = true;
+                try {
+                    main.join(CANCEL_WAIT_MILLIS);
+                } catch (InterruptedException ex) {
+                    // Exiting anyway
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    private static void removeCancelHook(Thread hook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException ex) {
+            // Ctrl+C was pressed, the JVM is already running the hook
+        }
+    }
+}
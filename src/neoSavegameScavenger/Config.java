@@ -0,0 +1,305 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The "key=value" config file of the NSS. Keys that aren't known by the
+ * program are kept when the file is written back.
+ */
+public class Config {
+
+    public static final String SAVE_FOLDER_PATH = "SaveFolderPath";
+    public static final String BACKUP_FOLDER_PATH = "BackupFolderPath";
+    /**
+     * Number of files copied at the same time.
+     */
+    public static final String COPY_THREADS = "CopyThreads";
+    /**
+     * One of the CopyEngine.SyncPolicy names.
+     */
+    public static final String SYNC_POLICY = "SyncPolicy";
+    /**
+     * One of the BackupManager.Format names.
+     */
+    public static final String BACKUP_FORMAT = "BackupFormat";
+    /**
+     * "true" to back up whenever the game saves.
+     */
+    public static final String AUTO_BACKUP = "AutoBackup";
+    /**
+     * Seconds the save files must stay unchanged before an auto backup.
+     */
+    public static final String AUTO_BACKUP_QUIET = "AutoBackupQuietSeconds";
+    /**
+     * Minimum seconds between two auto backups.
+     */
+    public static final String AUTO_BACKUP_INTERVAL = "AutoBackupIntervalSeconds";
+    /**
+     * Which old backups to delete after every backup, see RetentionPolicy.
+     * Empty to keep them all.
+     */
+    public static final String RETENTION = "Retention";
+    /**
+     * The values of the save files shown next to each backup, comma
+     * separated paths such as "player.name,day". Empty for none.
+     */
+    public static final String LABEL_FIELDS = "LabelFields";
+    /**
+     * Comma separated names of extra backup profiles. The keys of a profile
+     * are prefixed by its name, such as "work.SaveFolderPath", and fall back
+     * to the unprefixed ones, which form the default profile.
+     */
+    public static final String PROFILES = "Profiles";
+    /**
+     * How many profiles may be backed up at the same time.
+     */
+    public static final String MAX_CONCURRENT_BACKUPS = "MaxConcurrentBackups";
+    /**
+     * How many backups the scrubber checks at a time.
+     */
+    public static final String SCRUB_THREADS = "ScrubThreads";
+    /**
+     * How fast the scrubber may read the backup disk, in MB per second. 0
+     * for no limit.
+     */
+    public static final String SCRUB_RATE = "ScrubMegabytesPerSecond";
+    /**
+     * Days between two checks of every backup in the background, 0 to only
+     * check them from the command line.
+     */
+    public static final String SCRUB_INTERVAL = "ScrubIntervalDays";
+    /**
+     * Minutes a clear can be undone for, 0 to delete the cleared save right
+     * away.
+     */
+    public static final String CLEAR_UNDO = "ClearUndoMinutes";
+    /**
+     * Hours the snapshot of the save taken before a restore is kept, 0 to
+     * not take any.
+     */
+    public static final String SNAPSHOT_HOURS = "SnapshotHours";
+    /**
+     * Days after which backups are moved to packs, 0 to never pack them in
+     * the background.
+     */
+    public static final String PACK_AFTER = "PackAfterDays";
+    /**
+     * The Unix domain socket the daemon listens on.
+     */
+    public static final String CONTROL_SOCKET = "ControlSocket";
+    /**
+     * The loopback port the daemon listens on instead of the socket, 0 for
+     * none.
+     */
+    public static final String CONTROL_PORT = "ControlPort";
+    /**
+     * The file the daemon listening on a port writes its token to, readable
+     * by its user only. Clients must send the token before their command.
+     */
+    public static final String CONTROL_TOKEN = "ControlTokenFile";
+    /**
+     * The name of the profile made by the unprefixed keys.
+     */
+    public static final String DEFAULT_PROFILE = "default";
+    private static final String HEADER = "# Config file for Neo Savegame Scavenger, DO NOT MODIFY MANUALLY!";
+    private final File file;
+    private final Map<String, String> values = new LinkedHashMap<String, String>();
+    private final String profile;
+
+    /**
+     * @param file The config file, which may not exist yet.
+     */
+    public Config(File file) {
+        this(file, DEFAULT_PROFILE);
+    }
+
+    private Config(File file, String profile) {
+        this.file = file;
+        this.profile = profile;
+    }
+
+    /**
+     * @return The config file in the working directory, read if it exists.
+     * @throws IOException If the file exists but can't be read.
+     */
+    public static Config load() throws IOException {
+        Config config = new Config(new File("./config.txt"));
+        if (config.exists()) {
+            config.read();
+        }
+        return config;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Reads the config file, ignoring comments and malformed lines.
+     *
+     * @throws IOException If the file can't be read.
+     */
+    public void read() throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String s;
+            while ((s = in.readLine()) != null) {
+                int sep = s.indexOf('=');
+                if (!s.startsWith("#") && sep > 0 && sep < s.length() - 1) {
+                    values.put(s.substring(0, sep).trim(), s.substring(sep + 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes every value to the config file, creating it if needed.
+     *
+     * @throws IOException If the file can't be written.
+     */
+    public void write() throws IOException {
+        if (!DEFAULT_PROFILE.equals(profile)) {
+            throw new IllegalStateException("Profile " + profile + " is a read only view");
+        }
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(HEADER);
+            out.newLine();
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                out.write(e.getKey() + "=" + e.getValue());
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param key The name of the value.
+     * @param def Returned if the value is missing.
+     * @return The value, or def.
+     */
+    public String get(String key, String def) {
+        String value = values.get(key);
+        return value == null ? def : value;
+    }
+
+    /**
+     * @param key The name of the value.
+     * @param def Returned if the value is missing or isn't a number.
+     * @return The value, or def.
+     */
+    public int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(get(key, "").trim());
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+    }
+
+    /**
+     * @param key The name of the value.
+     * @param def Returned if the value is missing.
+     * @return true if the value is "true", ignoring case.
+     */
+    public boolean getBoolean(String key, boolean def) {
+        String value = values.get(key);
+        return value == null ? def : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * @param key The name of the value.
+     * @param value The new value, or null to remove it.
+     */
+    public void set(String key, String value) {
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+    }
+
+    /**
+     * @return The name of the profile this config belongs to.
+     */
+    public String getProfileName() {
+        return profile;
+    }
+
+    /**
+     * @return The default profile followed by the ones listed in Profiles,
+     * without duplicates.
+     */
+    public List<String> getProfiles() {
+        Set<String> names = new LinkedHashSet<String>();
+        names.add(DEFAULT_PROFILE);
+        for (String name : get(PROFILES, "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * @param name The name of a profile, see getProfiles.
+     * @return A read only view of the values of the profile, where the
+     * prefixed keys hide the unprefixed ones.
+     * @throws IllegalArgumentException If there's no such profile.
+     */
+    public Config getProfile(String name) {
+        if (DEFAULT_PROFILE.equals(name)) {
+            return this;
+        }
+        if (!getProfiles().contains(name)) {
+            throw new IllegalArgumentException("Unknown profile: " + name);
+        }
+        Config view = new Config(file, name);
+        String prefix = name + ".";
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                view.values.put(e.getKey(), e.getValue());
+            }
+        }
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                view.values.put(e.getKey().substring(prefix.length()), e.getValue());
+            }
+        }
+        return view;
+    }
+}
@@ -0,0 +1,604 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the backups of every profile to other programs through a local
+ * socket, so a script or a hotkey can back up or restore without starting a
+ * JVM of its own. It listens on a Unix domain socket, or on a port of the
+ * loopback address if one is set in the config.
+ * <p>
+ * A client sends a single line, a command optionally preceded by
+ * "-p profile", with the name of a backup unquoted, and reads the reply until the socket is closed. Every line
+ * of the reply starts with its kind: "progress done/total item" while an
+ * operation runs, "item ..." for the listed values, then "ok ..." or
+ * "error ..." last. For example: <code>echo backup | nc -U nss.sock</code>.
+ * <p>
+ * Only its user can open the socket. Any local user can connect to the port
+ * though, so there a client must first send a line with the token the
+ * server writes to a file only its user can read:
+ * <code>(cat nss.token; echo backup) | nc 127.0.0.1 port</code>.
+ */
+public class ControlServer {
+
+    private static final String USAGE = "Commands: backup | restore [--delete] [name] | list | status";
+    /**
+     * Longest command line read, a client sending more is cut off.
+     */
+    private static final int MAX_LINE = 1024;
+    private static final long STOP_WAIT_MILLIS = 10000;
+    /**
+     * How long a client may take to send its command.
+     */
+    private static final long READ_TIMEOUT_MILLIS = 10000;
+    /**
+     * Clients served at once, and waiting for a thread; more are turned
+     * away.
+     */
+    private static final int MAX_CLIENTS = 8, MAX_WAITING = 32;
+
+    /**
+     * What a profile is doing, for the status command. Operations on a
+     * profile run one at a time, the others wait for the lock.
+     */
+    private static class Slot {
+
+        private final BackupManager manager;
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private volatile String running, item = "", last = "none";
+        private volatile int done, total;
+
+        Slot(BackupManager manager) {
+            this.manager = manager;
+        }
+    }
+
+    private final Map<String, Slot> slots = new LinkedHashMap<String, Slot>();
+    private final SocketAddress address;
+    private final Path tokenFile;
+    private final long started = System.currentTimeMillis();
+    private final ThreadPoolExecutor clients;
+    private ServerSocketChannel server;
+    private volatile byte[] token;
+    private volatile boolean stopped;
+
+    /**
+     * @param scheduler The profiles to serve.
+     * @param address Where to listen: a Unix domain socket, or a port of the
+     * loopback address.
+     * @param tokenFile Where to write the token clients of a port must send,
+     * unused for a Unix domain socket.
+     */
+    public ControlServer(BackupScheduler scheduler, SocketAddress address, Path tokenFile) {
+        for (String profile : scheduler.getProfiles()) {
+            slots.put(profile, new Slot(scheduler.getManager(profile)));
+        }
+        this.address = address;
+        this.tokenFile = tokenFile;
+        clients = new ThreadPoolExecutor(MAX_CLIENTS, MAX_CLIENTS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_WAITING), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NSS control client");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        clients.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param config The config listing the profiles and the socket.
+     * @return A server for every profile, on the configured socket.
+     * @throws IllegalArgumentException If two profiles share a folder.
+     */
+    public static ControlServer fromConfig(Config config) {
+        int port = config.getInt(Config.CONTROL_PORT, 0);
+        SocketAddress address = port > 0 ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : UnixDomainSocketAddress.of(config.get(Config.CONTROL_SOCKET, "nss.sock"));
+        return new ControlServer(BackupScheduler.fromConfig(config), address,
+                Paths.get(config.get(Config.CONTROL_TOKEN, "nss.token")));
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Finishes what a crash interrupted in every profile, starts their
+     * background checks and packing, then answers clients until stopped.
+     *
+     * @param log Receives what happens, a line at a time.
+     * @throws IOException If the socket can't be opened, e.g. because another
+     * server is using it.
+     */
+    public void serve(PrintStream log) throws IOException {
+        for (Map.Entry<String, Slot> e : slots.entrySet()) {
+            BackupManager manager = e.getValue().manager;
+            if (!new File(manager.getBackupFolderPath()).isDirectory()) {
+                log.println(e.getKey() + ": the backup folder doesn't exist.");
+                continue;
+            }
+            for (String line : manager.recover()) {
+                log.println(e.getKey() + ": " + line);
+            }
+            manager.getScrubber().start();
+            manager.getPacker().start();
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            server = open();
+        }
+        log.println("Listening on " + address + (token != null ? ", token in " + tokenFile : ""));
+        try {
+            while (!stopped) {
+                final SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (AsynchronousCloseException ex) {
+                    break;
+                }
+                try {
+                    clients.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(client);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    refuse(client);
+                }
+            }
+        } finally {
+            stop();
+            clients.shutdown();
+            try {
+                // Running operations see stopped and cancel themselves
+                clients.awaitTermination(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (Slot slot : slots.values()) {
+                slot.manager.getScrubber().stop();
+                slot.manager.getPacker().stop();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients and cancels the running operations. serve
+     * returns once they're over.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (server == null) {
+            return;
+        }
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // Closed anyway
+        }
+        if (address instanceof UnixDomainSocketAddress) {
+            try {
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            } catch (IOException ex) {
+                // A stale socket is replaced by the next server
+            }
+        } else {
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (IOException ex) {
+                // Its token is useless once the server is gone
+            }
+        }
+    }
+
+    /**
+     * Binds the socket. A Unix domain socket left by a server that died is
+     * replaced, one still answering is not.
+     */
+    private ServerSocketChannel open() throws IOException {
+        if (!(address instanceof UnixDomainSocketAddress)) {
+            writeToken();
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(address);
+            return channel;
+        }
+        Path path = ((UnixDomainSocketAddress) address).getPath();
+        if (Files.exists(path)) {
+            boolean answering;
+            try {
+                SocketChannel.open(address).close();
+                answering = true;
+            } catch (IOException ex) {
+                answering = false;
+            }
+            if (answering) {
+                throw new IOException("Another server is listening on " + path);
+            }
+            Files.delete(path);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(address);
+        // Only the user running the server may send it commands; if the file
+        // system can't tell, the folder's permissions apply
+        makePrivate(path);
+        return channel;
+    }
+
+    /**
+     * Writes a new random token to the token file, readable by the user
+     * running the server only.
+     *
+     * @throws IOException If the file can't be written or made private.
+     */
+    private void writeToken() throws IOException {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        String hex = BlobStore.toHex(secret);
+        Files.deleteIfExists(tokenFile);
+        Files.createFile(tokenFile);
+        if (!makePrivate(tokenFile)) {
+            Files.delete(tokenFile);
+            throw new IOException("Can't make " + tokenFile + " private, use the socket instead of a port");
+        }
+        Files.write(tokenFile, (hex + "\n").getBytes(StandardCharsets.US_ASCII));
+        token = hex.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Lets only the file's owner read and write it.
+     *
+     * @return false if the file system has no permissions to set.
+     */
+    private static boolean makePrivate(Path path) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            return true;
+        } catch (UnsupportedOperationException ex) {
+            AclFileAttributeView acl = Files.getFileAttributeView(path, AclFileAttributeView.class);
+            if (acl == null) {
+                return false;
+            }
+            acl.setAcl(Collections.singletonList(AclEntry.newBuilder().setType(AclEntryType.ALLOW)
+                    .setPrincipal(Files.getOwner(path)).setPermissions(AclEntryPermission.values()).build()));
+            return true;
+        }
+    }
+
+    /**
+     * Reads a client's command, runs it and closes the connection.
+     */
+    private void handle(SocketChannel client) {
+        byte[] expected = token;
+        try (SocketChannel channel = client) {
+            List<String> lines;
+            try {
+                lines = readLines(channel, expected != null ? 2 : 1);
+            } catch (SocketTimeoutException ex) {
+                return;
+            }
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                    StandardCharsets.UTF_8));
+            Reply reply = new Reply(out);
+            if (lines == null) {
+                reply.send("error", "Command too long");
+                return;
+            }
+            if (expected != null) {
+                // Compared in constant time, not to tell how much was right
+                if (lines.isEmpty() || !MessageDigest.isEqual(expected,
+                        lines.remove(0).trim().getBytes(StandardCharsets.US_ASCII))) {
+                    reply.send("error", "Wrong token, send the line in " + tokenFile + " first");
+                    return;
+                }
+            }
+            try {
+                execute(lines.isEmpty() ? "" : lines.get(0).trim(), reply);
+            } catch (IOException ex) {
+                reply.send("error", String.valueOf(ex.getMessage()));
+            }
+        } catch (IOException ex) {
+            // The client left, nothing to tell it
+        }
+    }
+
+    /**
+     * Reads the first lines sent, giving up on a client that takes longer
+     * than READ_TIMEOUT_MILLIS. A line may end with the connection rather
+     * than a newline.
+     *
+     * @param count How many lines to read.
+     * @return The lines, fewer if the client closed the connection first, or
+     * null if one is too long.
+     * @throws SocketTimeoutException If the client was too slow.
+     */
+    private static List<String> readLines(SocketChannel channel, int count) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MILLIS);
+        boolean ended = false;
+        channel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (lines.size() < count && !ended) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    throw new SocketTimeoutException("No command after " + READ_TIMEOUT_MILLIS + " ms");
+                }
+                selector.select(left);
+                buffer.clear();
+                int n = channel.read(buffer);
+                ended = n < 0;
+                for (int i = 0; i < n && lines.size() < count; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        lines.add(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        line.reset();
+                    } else if (line.size() == MAX_LINE) {
+                        return null;
+                    } else {
+                        line.write(b);
+                    }
+                }
+            }
+        } finally {
+            // Closing the selector deregistered the channel
+            channel.configureBlocking(true);
+        }
+        if (ended && line.size() > 0 && lines.size() < count) {
+            lines.add(new String(line.toByteArray(), StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    /**
+     * Tells a client there's no thread left to serve it.
+     */
+    private static void refuse(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            String reply = "error Too many clients, try again later\n";
+            channel.write(ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ex) {
+            // It'll try again anyway
+        }
+    }
+
+    private void execute(String line, Reply reply) throws IOException {
+        String profile = Config.DEFAULT_PROFILE;
+        if (line.startsWith("-p ")) {
+            String[] split = line.substring(3).trim().split(" ", 2);
+            profile = split[0];
+            line = split.length > 1 ? split[1].trim() : "";
+        }
+        // Backup names have spaces, the parameters are the rest of the line
+        String[] split = line.split(" ", 2);
+        String command = split[0];
+        String params = split.length > 1 ? split[1].trim() : "";
+        if (command.equals("status") && params.isEmpty()) {
+            status(reply);
+            return;
+        }
+        Slot slot = slots.get(profile);
+        if (slot == null) {
+            reply.send("error", "Unknown profile: " + profile);
+            return;
+        }
+        BackupManager manager = slot.manager;
+        if (command.equals("list") && params.isEmpty()) {
+            List<String> backups = manager.listBackups();
+            for (String name : backups) {
+                reply.send("item", name);
+            }
+            for (String name : manager.getSnapshots().list()) {
+                reply.send("item", name);
+            }
+            reply.send("ok", backups.size() + " backups");
+        } else if (command.equals("backup") && params.isEmpty()) {
+            OperationResult result = run(slot, "backup", null, reply);
+            report("Backed up", result, reply);
+        } else if (command.equals("restore")) {
+            boolean delete = params.equals("--delete") || params.startsWith("--delete ");
+            String name = (delete ? params.substring("--delete".length()) : params).trim();
+            File backup;
+            if (name.isEmpty()) {
+                backup = null;
+            } else if (SaveSnapshots.isSnapshot(name) && manager.getSnapshots().list().contains(name)) {
+                backup = manager.getSnapshots().getSnapshot(name);
+            } else if (manager.listBackups().contains(name)) {
+                backup = new File(manager.getBackupFolderPath(), name);
+            } else {
+                reply.send("error", "No backup named \"" + name + "\", see the list command.");
+                return;
+            }
+            OperationResult result = run(slot, delete ? "restore-delete" : "restore", backup, reply);
+            report("Restored", result, reply);
+        } else {
+            reply.send("error", USAGE);
+        }
+    }
+
+    /**
+     * Runs an operation on a profile once the previous one is over,
+     * streaming its progress to the client.
+     *
+     * @param backup The backup to restore, null for the latest.
+     */
+    private OperationResult run(final Slot slot, String operation, File backup, final Reply reply)
+            throws IOException {
+        if (!slot.lock.tryLock()) {
+            reply.send("progress", "waiting for " + slot.running);
+            slot.lock.lock();
+        }
+        try {
+            slot.running = operation;
+            slot.done = 0;
+            slot.total = 0;
+            slot.item = "";
+            OperationMonitor monitor = new OperationMonitor() {
+                @Override
+                public void begin(int total) {
+                    slot.total = total;
+                }
+
+                @Override
+                public void progress(int done, String item) {
+                    slot.done = done;
+                    slot.item = item;
+                    reply.sendQuietly("progress", done + "/" + slot.total + " " + item);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return stopped;
+                }
+            };
+            BackupManager manager = slot.manager;
+            OperationResult result;
+            try {
+                if (operation.equals("backup")) {
+                    result = manager.backup(monitor);
+                } else {
+                    File source = backup != null ? backup : manager.getLatestBackup();
+                    result = manager.restore(manager.planRestore(source, operation.equals("restore-delete")), monitor);
+                }
+            } catch (IOException ex) {
+                slot.last = operation + " failed at " + now() + ": " + ex.getMessage();
+                throw ex;
+            }
+            slot.last = operation + (result.isCancelled() ? " cancelled" : " done") + " at " + now() + ": "
+                    + result.getTarget();
+            return result;
+        } finally {
+            slot.running = null;
+            slot.lock.unlock();
+        }
+    }
+
+    private void status(Reply reply) throws IOException {
+        reply.send("item", "uptime " + (System.currentTimeMillis() - started) / 1000 + " s");
+        for (Map.Entry<String, Slot> e : slots.entrySet()) {
+            Slot slot = e.getValue();
+            String running = slot.running;
+            reply.send("item", e.getKey() + ": " + (running == null ? "idle"
+                    : running + " " + slot.done + "/" + slot.total + " " + slot.item));
+            reply.send("item", e.getKey() + ": last " + slot.last);
+        }
+        reply.send("ok", slots.size() + " profiles");
+    }
+
+    private static void report(String what, OperationResult result, Reply reply) throws IOException {
+        if (result.isCancelled()) {
+            reply.send("error", what + " " + result.getFiles() + " files of " + result.getTarget()
+                    + " before being cancelled.");
+        } else {
+            reply.send("ok", what + " " + result.getTarget() + ": " + result.getFiles() + " files, "
+                    + result.getBytes() + " bytes in " + result.getElapsedMillis() + " ms");
+        }
+    }
+
+    private static String now() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    }
+
+    /**
+     * Writes the lines of a reply, each flushed at once.
+     */
+    private static class Reply {
+
+        private final BufferedWriter out;
+        private boolean gone;
+
+        Reply(BufferedWriter out) {
+            this.out = out;
+        }
+
+        synchronized void send(String kind, String text) throws IOException {
+            // Always \n, whatever the platform, for the scripts reading it
+            out.write(kind + " " + text.replaceAll("[\\r\\n]+", " ") + "\n");
+            out.flush();
+        }
+
+        /**
+         * Sends a line if the client is still there; an operation goes on
+         * without it.
+         */
+        synchronized void sendQuietly(String kind, String text) {
+            if (gone) {
+                return;
+            }
+            try {
+                send(kind, text);
+            } catch (IOException ex) {
+                gone = true;
+            }
+        }
+    }
+}
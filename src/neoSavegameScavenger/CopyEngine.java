@@ -0,0 +1,319 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies batches of files into a folder, several at a time. Large files are
+ * copied channel to channel, so the data doesn't go through the Java heap.
+ */
+public class CopyEngine {
+
+    /**
+     * When copied files are flushed to the disk.
+     */
+    public enum SyncPolicy {
+
+        /**
+         * Leave it to the operating system.
+         */
+        NONE,
+        /**
+         * Flush every copied file before the copy is reported as done.
+         */
+        FILES,
+        /**
+         * Flush every copied file, then the target folder, so the new
+         * entries survive a crash too.
+         */
+        ALL
+    }
+
+    /**
+     * A unit of work for the engine, usually the copy of one file.
+     */
+    public static abstract class Job {
+
+        private final String name;
+
+        /**
+         * @param name Name of the job, reported to the monitor.
+         */
+        public Job(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of bytes written.
+         * @throws IOException If the job failed.
+         */
+        protected abstract long run() throws IOException;
+    }
+
+    /**
+     * Files at least this big are copied with FileChannel.transferTo().
+     */
+    protected static final long LARGE_FILE = 256 * 1024;
+    private final int threads;
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * @param threads Maximum number of files copied at the same time.
+     * @param syncPolicy When copied files are flushed to the disk.
+     */
+    public CopyEngine(int threads, SyncPolicy syncPolicy) {
+        this.threads = Math.max(1, threads);
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * @param config The config to read the settings from.
+     * @return A copy engine set up as the config says.
+     */
+    public static CopyEngine fromConfig(Config config) {
+        SyncPolicy policy;
+        try {
+            policy = SyncPolicy.valueOf(config.get(Config.SYNC_POLICY, SyncPolicy.NONE.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Unknown sync policy, using " + SyncPolicy.NONE);
+            policy = SyncPolicy.NONE;
+        }
+        return new CopyEngine(config.getInt(Config.COPY_THREADS, 4), policy);
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Copies the given files into a folder, keeping their names.
+     *
+     * @param sources The files to copy.
+     * @param targetFolder The folder to copy them into, which must exist.
+     * @param replace true to overwrite files already in the target folder.
+     * @param monitor Receives a progress update for every copied file, from
+     * the copying threads.
+     * @return How many files and bytes were copied, and how long it took.
+     * @throws IOException If any file couldn't be copied. The other files are
+     * still copied.
+     */
+    public CopyResult copy(File[] sources, File targetFolder, boolean replace,
+            OperationMonitor monitor) throws IOException {
+        List<Job> jobs = new ArrayList<Job>(sources.length);
+        for (File f : sources) {
+            jobs.add(copyJob(f.toPath(), new File(targetFolder, f.getName()).toPath(), replace));
+        }
+        try {
+            return run(jobs, monitor);
+        } finally {
+            if (syncPolicy == SyncPolicy.ALL) {
+                syncFolder(targetFolder.toPath());
+            }
+        }
+    }
+
+    /**
+     * @param source The file to copy.
+     * @param target The copy.
+     * @param replace true to overwrite the target if it exists.
+     * @return A job that copies source to target, following the sync policy.
+     */
+    public Job copyJob(final Path source, final Path target, final boolean replace) {
+        return new Job(target.getFileName().toString()) {
+            @Override
+            protected long run() throws IOException {
+                return copyFile(source, target, replace);
+            }
+        };
+    }
+
+    /**
+     * Runs a batch of jobs, several at a time.
+     *
+     * @param jobs The jobs to run.
+     * @param monitor Receives a progress update for every finished job, from
+     * the copying threads.
+     * @return How many jobs ran and bytes were written, and how long it took.
+     * @throws IOException If any job failed. The other jobs still run.
+     */
+    public CopyResult run(List<? extends Job> jobs, final OperationMonitor monitor) throws IOException {
+        long start = System.nanoTime();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        monitor.begin(jobs.size());
+        IOException failure = null;
+        if (threads == 1 || jobs.size() < 2) {
+            for (Job job : jobs) {
+                if (monitor.isCancelled()) {
+                    break;
+                }
+                try {
+                    bytes.addAndGet(job.run());
+                    monitor.progress(done.incrementAndGet(), job.getName());
+                } catch (IOException ex) {
+                    failure = keepFirst(failure, ex);
+                }
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+            List<Future<Void>> pending = new ArrayList<Future<Void>>(jobs.size());
+            try {
+                for (final Job job : jobs) {
+                    pending.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            if (!monitor.isCancelled()) {
+                                bytes.addAndGet(job.run());
+                                monitor.progress(done.incrementAndGet(), job.getName());
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> task : pending) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException ex) {
+                        failure = keepFirst(failure, ex.getCause() instanceof IOException
+                                ? (IOException) ex.getCause() : new IOException(ex.getCause()));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while copying files", ex);
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return new CopyResult(done.get(), bytes.get(), System.nanoTime() - start, done.get() < jobs.size());
+    }
+
+    /**
+     * Copies a single file, following the sync policy.
+     *
+     * @param source The file to copy. Symbolic links are copied as links.
+     * @param target The copy.
+     * @param replace true to overwrite the target if it exists.
+     * @return The number of bytes copied.
+     * @throws IOException If the copy failed.
+     */
+    protected long copyFile(Path source, Path target, boolean replace) throws IOException {
+        if (Files.isSymbolicLink(source)) {
+            if (replace) {
+                Files.copy(source, target, NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.copy(source, target, NOFOLLOW_LINKS);
+            }
+            return 0;
+        }
+        long size = Files.size(source);
+        if (size < LARGE_FILE && syncPolicy == SyncPolicy.NONE) {
+            // Let the platform do small copies, it may keep attributes cheaply
+            if (replace) {
+                Files.copy(source, target, NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.copy(source, target, NOFOLLOW_LINKS);
+            }
+            return size;
+        }
+        try (FileChannel in = FileChannel.open(source, READ);
+                FileChannel out = replace ? FileChannel.open(target, WRITE, CREATE, TRUNCATE_EXISTING)
+                        : FileChannel.open(target, WRITE, CREATE_NEW)) {
+            long position = 0;
+            long count = in.size();
+            while (position < count) {
+                long n = in.transferTo(position, count - position, out);
+                if (n <= 0) {
+                    // The source shrank while being copied
+                    break;
+                }
+                position += n;
+            }
+            if (syncPolicy != SyncPolicy.NONE) {
+                out.force(true);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Flushes a file's content to the disk.
+     *
+     * @param file The file to flush.
+     * @throws IOException If the file can't be opened or flushed.
+     */
+    protected static void syncFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flushes a folder's entries to the disk. Not every platform allows
+     * opening a folder, in which case nothing is done.
+     *
+     * @param folder The folder to flush.
+     */
+    protected static void syncFolder(Path folder) {
+        try (FileChannel dir = FileChannel.open(folder, READ)) {
+            dir.force(true);
+        } catch (IOException ex) {
+            // Folders can't be opened on Windows, NTFS journals them anyway
+        }
+    }
+
+    private static IOException keepFirst(IOException first, IOException ex) {
+        if (first == null) {
+            return ex;
+        }
+        first.addSuppressed(ex);
+        return first;
+    }
+}
@@ -0,0 +1,172 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds a preset dictionary for Deflater out of sample save files. Small
+ * files compress poorly on their own, since Deflater has nothing to refer
+ * to; a dictionary of the strings common to many saves fixes that.
+ * <p>
+ * The samples are cut in segments, each scored by how many samples share its
+ * 8 byte substrings; the best segments are picked greedily, discounting the
+ * substrings already in the dictionary, and the best ones are put last, where
+ * Deflater reaches them with the shortest distances.
+ */
+public class DictionaryTrainer {
+
+    /**
+     * Deflater can't look further back than its 32 KB window.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+    private static final int SEGMENT = 256;
+    private static final int DMER = 8;
+    /**
+     * Samples past this many bytes are ignored, to bound the training time.
+     */
+    private static final int MAX_SAMPLE_BYTES = 4 * 1024 * 1024;
+    private final List<byte[]> samples = new ArrayList<byte[]>();
+    private int sampleBytes;
+
+    /**
+     * @param sample A file to learn from.
+     * @return false if the sample was ignored because enough were given.
+     */
+    public boolean addSample(byte[] sample) {
+        if (sampleBytes >= MAX_SAMPLE_BYTES) {
+            return false;
+        }
+        samples.add(sample);
+        sampleBytes += sample.length;
+        return true;
+    }
+
+    /**
+     * @return The dictionary, empty if there were no samples.
+     */
+    public byte[] train() {
+        // How many samples contain each substring
+        Map<Long, Integer> frequency = new HashMap<Long, Integer>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<Long>();
+            for (int i = 0; i + DMER <= sample.length; i++) {
+                Long dmer = dmer(sample, i);
+                if (seen.add(dmer)) {
+                    Integer count = frequency.get(dmer);
+                    frequency.put(dmer, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+        for (byte[] sample : samples) {
+            for (int start = 0; start < sample.length; start += SEGMENT) {
+                Segment segment = new Segment(sample, start, Math.min(SEGMENT, sample.length - start));
+                segment.score(frequency);
+                if (segment.score > 0) {
+                    queue.add(segment);
+                }
+            }
+        }
+        List<Segment> picked = new ArrayList<Segment>();
+        int size = 0;
+        while (!queue.isEmpty() && size < MAX_SIZE) {
+            Segment best = queue.poll();
+            // Scores only go down, so a stale one is rescored and retried
+            long old = best.score;
+            best.score(frequency);
+            if (best.score < old && !queue.isEmpty() && best.score < queue.peek().score) {
+                if (best.score > 0) {
+                    queue.add(best);
+                }
+                continue;
+            }
+            if (best.score == 0) {
+                break;
+            }
+            picked.add(best);
+            size += best.length;
+            for (int i = best.start; i + DMER <= best.start + best.length; i++) {
+                frequency.remove(dmer(best.data, i));
+            }
+        }
+        // The best segment goes last
+        byte[] dict = new byte[Math.min(size, MAX_SIZE)];
+        int end = dict.length;
+        for (Segment s : picked) {
+            int length = Math.min(s.length, end);
+            System.arraycopy(s.data, s.start, dict, end - length, length);
+            end -= length;
+            if (end == 0) {
+                break;
+            }
+        }
+        return dict;
+    }
+
+    private static Long dmer(byte[] data, int i) {
+        long value = 0;
+        for (int j = 0; j < DMER; j++) {
+            value = (value << 8) | (data[i + j] & 0xff);
+        }
+        return value;
+    }
+
+    private static class Segment implements Comparable<Segment> {
+
+        private final byte[] data;
+        private final int start, length;
+        private long score;
+
+        Segment(byte[] data, int start, int length) {
+            this.data = data;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * Substrings found in a single sample don't help compressing others.
+         */
+        void score(Map<Long, Integer> frequency) {
+            score = 0;
+            Set<Long> seen = new HashSet<Long>();
+            for (int i = start; i + DMER <= start + length; i++) {
+                Long dmer = dmer(data, i);
+                Integer count = frequency.get(dmer);
+                if (count != null && count > 1 && seen.add(dmer)) {
+                    score += count;
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            return Long.compare(o.score, score);
+        }
+    }
+}
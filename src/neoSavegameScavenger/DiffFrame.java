@@ -0,0 +1,210 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingWorker;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.DefaultTableModel;
+
+/**
+ * Shows side by side the save values that differ between two backups, or a
+ * backup and the current save, grouped by save file. The comparison runs in
+ * the background and is dropped if the window is closed first.
+ */
+public class DiffFrame extends JFrame {
+
+    private static final long serialVersionUID = 1L;
+    private static final String NONE = "(none)";
+    private final BackupManager manager;
+    private final File left, right;
+    private final JLabel summary;
+    private final DefaultTableModel rows;
+    /**
+     * The rows naming a save file rather than a value.
+     */
+    private final Set<Integer> fileRows = new HashSet<Integer>();
+    private SwingWorker<List<BackupDiff.FileDiff>, String> worker;
+
+    /**
+     * @param parent The main window.
+     * @param left A backup, or null for the current save.
+     * @param leftName How to call it.
+     * @param right Another backup, or null for the current save.
+     * @param rightName How to call it.
+     */
+    public DiffFrame(NeoSavegameScavenger parent, File left, String leftName, File right, String rightName) {
+        manager = parent.getBackupManager();
+        this.left = left;
+        this.right = right;
+        Color backgroundColor = parent.getBgColor();
+        setBounds(80, 50, 600, 400);
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        setTitle("NeoSavegameScavenger - Compare");
+        getContentPane().setBackground(backgroundColor);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                if (worker != null) {
+                    worker.cancel(false);
+                }
+            }
+        });
+
+        summary = new JLabel("Comparing...");
+        summary.setForeground(Color.white);
+        summary.setAlignmentX(CENTER_ALIGNMENT);
+        JPanel topPanel = new JPanel();
+        topPanel.setBackground(backgroundColor);
+        topPanel.setLayout(new BoxLayout(topPanel, BoxLayout.PAGE_AXIS));
+        topPanel.add(Box.createVerticalStrut(3));
+        topPanel.add(summary);
+        topPanel.add(Box.createVerticalStrut(3));
+        add(topPanel, BorderLayout.PAGE_START);
+
+        rows = new DefaultTableModel(new Object[]{"Value", leftName, rightName}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable table = new JTable(rows);
+        table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
+            @Override
+            public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                    boolean hasFocus, int row, int column) {
+                super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+                setToolTipText(value == null || value.toString().isEmpty() ? null : value.toString());
+                if (fileRows.contains(row)) {
+                    setFont(getFont().deriveFont(Font.BOLD));
+                } else if (NONE.equals(value)) {
+                    setFont(getFont().deriveFont(Font.ITALIC));
+                }
+                if (!isSelected) {
+                    // Set every time: the renderer keeps the last color
+                    setForeground(NONE.equals(value) ? Color.gray : table.getForeground());
+                }
+                return this;
+            }
+        });
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JPanel btnPanel = new JPanel();
+        btnPanel.setBackground(backgroundColor);
+        JButton closeBtn = new JButton("Close");
+        closeBtn.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        btnPanel.add(closeBtn);
+        add(btnPanel, BorderLayout.PAGE_END);
+
+        setVisible(true);
+        compare();
+    }
+
+    private void compare() {
+        worker = new SwingWorker<List<BackupDiff.FileDiff>, String>() {
+            @Override
+            protected List<BackupDiff.FileDiff> doInBackground() throws Exception {
+                return new BackupDiff(manager).compare(left, right, new OperationMonitor() {
+                    @Override
+                    public void begin(int total) {
+                    }
+
+                    @Override
+                    public void progress(int done, String item) {
+                        publish(item);
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return worker.isCancelled();
+                    }
+                });
+            }
+
+            @Override
+            protected void process(List<String> done) {
+                summary.setText("Comparing... " + done.get(done.size() - 1) + " done");
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    show(get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    summary.setText("Can't compare: " + (ex.getCause() != null ? ex.getCause().getMessage()
+                            : ex.getMessage()));
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    private void show(List<BackupDiff.FileDiff> diffs) {
+        int same = 0;
+        for (BackupDiff.FileDiff diff : diffs) {
+            if (diff.getStatus() == BackupDiff.Status.SAME) {
+                same++;
+                continue;
+            }
+            fileRows.add(rows.getRowCount());
+            rows.addRow(new Object[]{diff.toString(), diff.getStatus() == BackupDiff.Status.ADDED ? NONE : "",
+                diff.getStatus() == BackupDiff.Status.REMOVED ? NONE : ""});
+            for (BackupDiff.Change change : diff.getChanges()) {
+                rows.addRow(new Object[]{change.getPath(), change.getLeft() == null ? NONE : change.getLeft(),
+                    change.getRight() == null ? NONE : change.getRight()});
+            }
+            if (diff.isTruncated()) {
+                rows.addRow(new Object[]{"...", "more differences not shown", ""});
+            }
+        }
+        summary.setText(diffs.size() - same == 0 ? "The " + same + " save files are the same."
+                : (diffs.size() - same) + " save files differ, " + same + " are the same.");
+    }
+}
@@ -0,0 +1,153 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the size, modification time and hash of the save files, so a
+ * backup only has to read the files that changed since the last one. It is
+ * kept in the ".nss" folder of the backup folder.
+ */
+public class HashCache {
+
+    private static final String HEADER = "# NSS hash cache 1";
+    /**
+     * Files modified this recently aren't cached: another write within the
+     * file system's timestamp resolution wouldn't change their mtime.
+     */
+    private static final long RACY_MILLIS = 2000;
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean modified;
+
+    private static class Entry {
+
+        private final long size, mtime;
+        private final String hash;
+
+        Entry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param backupFolder The backup folder the cache belongs to.
+     */
+    public HashCache(File backupFolder) {
+        file = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "hashcache").toPath();
+    }
+
+    /**
+     * Reads the cache from the disk. A missing or unreadable cache is simply
+     * empty, every file will be hashed again.
+     */
+    public void load() {
+        entries.clear();
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s;
+            while ((s = in.readLine()) != null) {
+                String[] fields = s.split("\t");
+                if (s.startsWith("#") || fields.length != 4) {
+                    continue;
+                }
+                entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+            }
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println("Ignoring the hash cache: " + ex.getMessage());
+            entries.clear();
+        }
+        modified = false;
+    }
+
+    /**
+     * Writes the cache to the disk, if it changed since it was loaded.
+     *
+     * @throws IOException If the cache can't be written.
+     */
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write(e.getKey() + "\t" + entry.size + "\t" + entry.mtime + "\t" + entry.hash);
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        modified = false;
+    }
+
+    /**
+     * @param path The absolute path of a save file.
+     * @param size The current size of the file.
+     * @param mtime The current modification time of the file, in
+     * milliseconds.
+     * @return The hash of the file, or null if it isn't known or the file
+     * changed since it was hashed.
+     */
+    public String get(String path, long size, long mtime) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.mtime == mtime) {
+            return entry.hash;
+        }
+        return null;
+    }
+
+    /**
+     * Records the hash of a file.
+     *
+     * @param path The absolute path of the save file.
+     * @param size The size of the file when it was hashed.
+     * @param mtime The modification time of the file when it was hashed, in
+     * milliseconds.
+     * @param hash The hash of the file.
+     */
+    public void put(String path, long size, long mtime, String hash) {
+        if (System.currentTimeMillis() - mtime < RACY_MILLIS) {
+            entries.remove(path);
+        } else {
+            entries.put(path, new Entry(size, mtime, hash));
+        }
+        modified = true;
+    }
+}
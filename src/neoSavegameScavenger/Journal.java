@@ -0,0 +1,314 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-ahead log of the backups and restores, kept in ".nss/journal", so an
+ * operation cut short by a crash can be finished or undone the next time the
+ * program starts.
+ * <p>
+ * An operation logs BEGIN before touching anything, then COMMIT or ABORT
+ * when it's over; a restore also logs SWAP once its files are staged and
+ * checked, from which point it must be finished rather than undone. BEGIN
+ * and SWAP are flushed to the disk before the program goes on; COMMIT and
+ * ABORT aren't, they reach the disk with the next flush, since recovery can
+ * tell from the files whether an operation was complete.
+ */
+public class Journal {
+
+    /**
+     * An operation that began but didn't end.
+     */
+    public static class Operation {
+
+        private final String id, kind, target, staging;
+        private final long pid;
+        private boolean swapping;
+        private List<String> deletes = new ArrayList<String>();
+
+        Operation(String id, long pid, String kind, String target, String staging) {
+            this.id = id;
+            this.pid = pid;
+            this.kind = kind;
+            this.target = target;
+            this.staging = staging;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return BACKUP or RESTORE.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The name of the backup being written or restored.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return For a restore, the path of the staging folder; empty for a
+         * backup.
+         */
+        public String getStaging() {
+            return staging;
+        }
+
+        /**
+         * @return true if a restore was swapping its files in.
+         */
+        public boolean isSwapping() {
+            return swapping;
+        }
+
+        /**
+         * @return The save files a swapping restore was going to delete.
+         */
+        public List<String> getDeletes() {
+            return deletes;
+        }
+
+        /**
+         * @return true if the process that began the operation is still
+         * running, so the operation may simply be in progress.
+         */
+        public boolean isOwnerAlive() {
+            if (pid == ProcessHandle.current().pid()) {
+                return true;
+            }
+            Optional<ProcessHandle> owner = ProcessHandle.of(pid);
+            return owner.isPresent() && owner.get().isAlive();
+        }
+    }
+
+    public static final String BACKUP = "BACKUP", RESTORE = "RESTORE";
+    private static final String HEADER = "# NSS journal 1";
+    private static final String BEGIN = "BEGIN", SWAP = "SWAP", COMMIT = "COMMIT", ABORT = "ABORT";
+    private static final AtomicLong sequence = new AtomicLong();
+    /**
+     * File locks are held by the whole JVM, threads must also take turns.
+     */
+    private static final Object LOCK = new Object();
+    private final Path file;
+
+    /**
+     * @param backupFolder The backup folder the journal belongs to.
+     */
+    public Journal(File backupFolder) {
+        file = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "journal").toPath();
+    }
+
+    /**
+     * Logs the start of an operation, flushed to the disk.
+     *
+     * @param kind BACKUP or RESTORE.
+     * @param target The name of the backup.
+     * @param staging See Operation.getStaging(), may be empty.
+     * @return The id of the operation.
+     * @throws IOException If the journal can't be written; the operation
+     * must not start.
+     */
+    public String begin(String kind, String target, String staging) throws IOException {
+        long pid = ProcessHandle.current().pid();
+        String id = pid + "-" + sequence.incrementAndGet() + "-" + System.currentTimeMillis();
+        append(true, BEGIN, id, Long.toString(pid), kind, target, staging);
+        return id;
+    }
+
+    /**
+     * Logs that a restore starts swapping its files in, flushed to the disk.
+     *
+     * @param id The operation.
+     * @param deletes The save files it will delete afterwards.
+     * @throws IOException If the journal can't be written; the swap must not
+     * start.
+     */
+    public void swap(String id, Collection<String> deletes) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        fields.add(SWAP);
+        fields.add(id);
+        fields.addAll(deletes);
+        append(true, fields.toArray(new String[fields.size()]));
+    }
+
+    /**
+     * Logs that an operation completed. Not flushed, see the class comment.
+     *
+     * @param id The operation.
+     */
+    public void commit(String id) {
+        end(COMMIT, id);
+    }
+
+    /**
+     * Logs that an operation was undone. Not flushed, see the class comment.
+     *
+     * @param id The operation.
+     */
+    public void abort(String id) {
+        end(ABORT, id);
+    }
+
+    private void end(String type, String id) {
+        try {
+            append(false, type, id);
+        } catch (IOException ex) {
+            // Recovery looks at the files before acting on an open operation
+            System.err.println("Can't update the journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return The operations that began and never ended, oldest first.
+     * @throws IOException If the journal can't be read.
+     */
+    public List<Operation> pending() throws IOException {
+        if (!Files.exists(file)) {
+            return new ArrayList<Operation>();
+        }
+        List<String> lines;
+        synchronized (LOCK) {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        }
+        return parse(lines);
+    }
+
+    private static List<Operation> parse(List<String> lines) {
+        Map<String, Operation> open = new LinkedHashMap<String, Operation>();
+        for (String s : lines) {
+            String[] fields = s.split("\t", -1);
+            if (s.startsWith("#") || fields.length < 2) {
+                continue;
+            }
+            if (fields[0].equals(BEGIN) && fields.length == 6) {
+                try {
+                    open.put(fields[1], new Operation(fields[1], Long.parseLong(fields[2]), fields[3], fields[4],
+                            fields[5]));
+                } catch (NumberFormatException ex) {
+                    // A torn line, its operation never started
+                }
+            } else if (fields[0].equals(SWAP) && open.containsKey(fields[1])) {
+                Operation op = open.get(fields[1]);
+                op.swapping = true;
+                op.deletes = new ArrayList<String>(Arrays.asList(fields).subList(2, fields.length));
+            } else if (fields[0].equals(COMMIT) || fields[0].equals(ABORT)) {
+                open.remove(fields[1]);
+            }
+        }
+        return new ArrayList<Operation>(open.values());
+    }
+
+    /**
+     * Empties the journal, if no operation is open. Other processes sharing
+     * the backup folder are locked out meanwhile.
+     *
+     * @throws IOException If the journal can't be written.
+     */
+    public void compact() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        synchronized (LOCK) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    // Through the locked channel, on Windows the lock keeps
+                    // other handles from reading the file
+                    if (!parse(readLines(channel)).isEmpty()) {
+                        return;
+                    }
+                    channel.truncate(0);
+                    channel.write(ByteBuffer.wrap((HEADER + "\n").getBytes(StandardCharsets.UTF_8)));
+                    channel.force(false);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static List<String> readLines(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        String content = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        return Arrays.asList(content.split("\\r?\\n"));
+    }
+
+    /**
+     * Appends a line, with a single write so lines of other processes don't
+     * interleave with it.
+     */
+    private void append(boolean flush, String... fields) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String field : fields) {
+            line.append(line.length() > 0 ? "\t" : "").append(field.replaceAll("[\t\r\n]", " "));
+        }
+        line.append('\n');
+        Files.createDirectories(file.getParent());
+        synchronized (LOCK) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() == 0) {
+                        line.insert(0, HEADER + "\n");
+                    }
+                    channel.write(ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8)));
+                    if (flush) {
+                        // Also flushes the unflushed lines before this one
+                        channel.force(false);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+}
@@ -30,28 +30,25 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.nio.file.Files;
-import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
-import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.StringTokenizer;
-import java.util.regex.Pattern;
+import java.util.List;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import neoSavegameScavenger.OperationExecutor.Operation;
 
 /**
  * Main class and frame for the NSS.
@@ -60,70 +57,44 @@ import javax.swing.JPanel;
  */
 public class NeoSavegameScavenger extends JFrame {
 
-    private final JButton backupBtn, optionsBtn, restoreBtn, restoreLastBtn, clearBtn, helpBtn;
+    private final JButton backupBtn, optionsBtn, restoreBtn, restoreLastBtn, clearBtn, helpBtn, cancelBtn;
+    private final JProgressBar progressBar;
     private final InputManager inManager;
+    private final OperationExecutor executor;
+    private BackupManager manager;
+    private AutoBackupWatcher autoBackup;
+    private Timer undoClearTimer;
     protected String backupFolderPath = "",
             savegameFolderPath = "";
     // protected final static String configPath = "/neoSavegameScavenger/config.txt";
 
-    /**
-     * Pattern for "filename.sol"
-     */
-    private final Pattern saveFilePattern = Pattern.compile("\\w*\\.sol");
-    /**
-     * Pattern for "YYYY_MM_DD HH-MM-SS anythingelse"
-     */
-    private final Pattern bkpDirPattern = Pattern.compile("\\d\\d\\d\\d_\\d\\d_\\d\\d \\d\\d-\\d\\d-\\d\\d.*");
-    /**
-     * FilenameFilter that accepts all directories.
-     *
-     * @see FilenameFilter
-     */
-    private final FilenameFilter directoryFilter = new FilenameFilter() {
-        @Override
-        public boolean accept(File current, String name) {
-            return new File(current, name).isDirectory();
-        }
-    };
-    /**
-     * FilenameFilter that accepts all files with .sol extension.
-     *
-     * @see FilenameFilter
-     */
-    private final FilenameFilter savefileFilter = new FilenameFilter() {
-        @Override
-        public boolean accept(File current, String name) {
-            return saveFilePattern.matcher(name).matches();
-        }
-    };
-    /**
-     * FilenameFilter that accepts directories that match bkpDirPattern.
-     *
-     * @see FilenameFilter
-     */
-    protected final FilenameFilter bkpFolderFilter = new FilenameFilter() {
-        @Override
-        public boolean accept(File current, String name) {
-            return bkpDirPattern.matcher(name).matches() && new File(current, name).isDirectory();
-        }
-    };
     private final int BTN_OFFSET = 5;
     private final int BTN_PANEL_Y_PADDING = 10;
     private final int INSETS_X = 2, INSETS_Y = 0;
     private final float VERSION = 1.003f;
+    private final int AUTO_BACKUP_RETRY_MILLIS = 5000;
     private final Color backgroundColor;
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // Scripts: no window, see CommandLine (faster when run directly)
+            CommandLine.main(args);
+            return;
+        }
         new NeoSavegameScavenger();
     }
 
     public NeoSavegameScavenger() {
-        setBounds(50, 30, 300, 200);
+        setBounds(50, 30, 300, 230);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setTitle("NSS v" + VERSION);
         setLayout(new BorderLayout());
         setResizable(true);
         inManager = new InputManager();
+        executor = new OperationExecutor(inManager);
+        // Lets JConsole and VisualVM show how the operations perform
+        OperationMetrics.get().register();
+        manager = BackupManager.fromConfig(new Config(new File("./config.txt")));
         addKeyListener(inManager);
         setFocusable(true);
         backgroundColor = Color.darkGray;
@@ -146,6 +117,32 @@ public class NeoSavegameScavenger extends JFrame {
         footPane.setBackground(backgroundColor);
         footPane.setLayout(new BoxLayout(footPane, BoxLayout.PAGE_AXIS));
 
+        //<editor-fold desc="Progress panel">
+        // Shows the progress of the running operation, which can be cancelled.
+        JPanel progressPanel = new JPanel();
+        progressPanel.setLayout(new BoxLayout(progressPanel, BoxLayout.LINE_AXIS));
+        progressPanel.setBackground(backgroundColor);
+        progressPanel.add(Box.createHorizontalStrut(BTN_OFFSET));
+
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setString("Idle");
+        progressPanel.add(progressBar);
+
+        progressPanel.add(Box.createHorizontalStrut(BTN_OFFSET));
+
+        cancelBtn = new JButton("Cancel");
+        cancelBtn.addActionListener(inManager);
+        cancelBtn.setMargin(new java.awt.Insets(INSETS_Y, INSETS_X, INSETS_Y, INSETS_X));
+        cancelBtn.setToolTipText("Stop the running operation.");
+        cancelBtn.setEnabled(false);
+        progressPanel.add(cancelBtn);
+
+        progressPanel.add(Box.createHorizontalStrut(BTN_OFFSET));
+        footPane.add(progressPanel);
+        footPane.add(Box.createVerticalStrut(5));
+        //</editor-fold>
+
         JLabel credits = new JLabel("Made by evil_genius (prez_enquiry@hotmail.com).");
         credits.setForeground(Color.white);
         credits.setFont(new Font("Arial", Font.PLAIN, 10));
@@ -291,36 +288,35 @@ public class NeoSavegameScavenger extends JFrame {
                         + ") doesn't exist.", "Backup error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
+            executor.submit(new Operation<OperationResult>("Backup") {
+                @Override
+                protected OperationResult execute(OperationMonitor monitor) throws Exception {
+                    return manager.backup(monitor);
+                }
 
-            // Create the new backup folder, using the date of creation as name
-            DateFormat date = new SimpleDateFormat("yyyy_MM_dd HH-mm-ss");
-            File saveBak = new File("" + backupFolderPath + "/" + date.format(Calendar.getInstance().getTime()));
-            saveBak.mkdir();
-            // Check if creation succeded
-            if (!saveBak.exists()) {
-                JOptionPane.showMessageDialog(this, "Failed to create the new save backup.", "Backup error", JOptionPane.ERROR_MESSAGE);
-            }
-            // Get all save files (*.sol)
-            File[] sourceFiles = new File(savegameFolderPath).listFiles(savefileFilter);
-            // Copy the files from the current save to the backup folder
-            if (sourceFiles != null) {
-                for (File f : sourceFiles) {
-                    File copy = new File(saveBak, f.getName());
-                    try {
-                        Files.copy(Paths.get(f.getPath()), Paths.get(copy.getPath()), NOFOLLOW_LINKS);
-                    } catch (IOException ex) {
-                        JOptionPane.showMessageDialog(this, "Error while copying files to the backup directory!",
-                                "Backup error", JOptionPane.ERROR_MESSAGE);
-                        System.err.println(ex.getMessage());
+                @Override
+                protected void succeeded(OperationResult result) {
+                    if (result.isCancelled()) {
+                        JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "The backup has been cancelled.",
+                                "Backup cancelled", JOptionPane.WARNING_MESSAGE);
+                    } else {
+                        markBackedUp();
+                        // The backup may have made another one old enough to pack
+                        manager.getPacker().start();
+                        JOptionPane.showMessageDialog(NeoSavegameScavenger.this, result.getFiles()
+                                + " files backed up in folder " + result.getTarget() + " ("
+                                + result.getBytes() / 1024 + " KB in " + result.getElapsedMillis() + " ms)",
+                                "Backup done", JOptionPane.INFORMATION_MESSAGE);
                     }
                 }
-                JOptionPane.showMessageDialog(this, sourceFiles.length + " files backed up in folder "
-                        + saveBak.getName(), "Backup done", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "Failed to fetch the save files to backup, "
-                        + "please make sure the save folder path is correct.", "Backup failure", JOptionPane.ERROR_MESSAGE);
-            }
 
+                @Override
+                protected void failed(Exception ex) {
+                    JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "Error while copying files to the backup directory!\n"
+                            + ex.getMessage(), "Backup error", JOptionPane.ERROR_MESSAGE);
+                    System.err.println(ex.getMessage());
+                }
+            });
         } else {
             // Some paths are missing!
             JOptionPane.showMessageDialog(this, "Savegame and/or backup folder paths are missing. "
@@ -330,29 +326,12 @@ public class NeoSavegameScavenger extends JFrame {
     }
 
     private void restoreLastSave() {
-        // Ask for confirmation
-        // Yes is 0 and No is 1
-        int confirmation = JOptionPane.showConfirmDialog(this,
-                "Are you sure you want to restore your last backup? \nThe current savegame will be overwritten, if present.",
-                "Confirm restore last save", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
-        if (confirmation == 0) {
-            // Perform the actual restore
-            File backupFolder = new File(backupFolderPath);
-            if (backupFolder.exists()) {
-                // get all backup names               
-                String[] subDirs = backupFolder.list(bkpFolderFilter);
-                // Restore the last save
-                if (subDirs.length > 0) {
-                    performRestore(backupFolderPath + "/" + getNewestFile(subDirs));
-                } else {
-                    JOptionPane.showMessageDialog(this, "The backup directory (" + backupFolderPath
-                            + ") is empty.", "Backup folder empty", JOptionPane.ERROR_MESSAGE);
-                }
-            } else {
-                JOptionPane.showMessageDialog(this, "The backup directory (" + backupFolderPath
-                        + ") doesn't exist.", "Backup folder not found", JOptionPane.ERROR_MESSAGE);
+        executor.submit(new PlanOperation() {
+            @Override
+            protected RestorePlan execute(OperationMonitor monitor) throws Exception {
+                return manager.planRestore(manager.getLatestBackup(), false);
             }
-        }
+        });
     }
 
     /**
@@ -362,35 +341,55 @@ public class NeoSavegameScavenger extends JFrame {
      * directory
      */
     protected void performRestore(String backupPath) {
-        File backupFolder = new File(backupPath);
-        // Test if the backup to restore still exists
-        if (backupFolder.exists()) {
-            // Test if the savegame directory exists
-            File saveFolder = new File(savegameFolderPath);
-            if (!saveFolder.exists()) {
-                JOptionPane.showMessageDialog(this, "Restore aborted! Please specify a valid path for the savegame directory",
-                        "Aborting restore", JOptionPane.ERROR_MESSAGE);
-                return;
+        final File backupFolder = new File(backupPath);
+        executor.submit(new PlanOperation() {
+            @Override
+            protected RestorePlan execute(OperationMonitor monitor) throws Exception {
+                return manager.planRestore(backupFolder, false);
             }
-            //<editor-fold desc="Actual restore">
-            // Get all save files (*.sol)
-            File[] sourceFiles = backupFolder.listFiles(savefileFilter);
-            // Copy the files from the backup folder to the current save directory
-            for (File f : sourceFiles) {
-                File copy = new File(savegameFolderPath, f.getName());
-                try {
-                    Files.copy(Paths.get(f.getPath()), Paths.get(copy.getPath()), NOFOLLOW_LINKS);
-                } catch (IOException ex) {
-                    System.err.println(ex.getMessage());
+        });
+    }
+
+    /**
+     * Shows what a restore would change and asks for confirmation, then
+     * restores.
+     *
+     * @param plan The restore plan.
+     */
+    private void confirmRestore(final RestorePlan plan) {
+        String name = plan.getBackup().getName();
+        int extras = plan.getNames(RestorePlan.Action.KEEP).size();
+        if (plan.isEmpty() && extras == 0) {
+            JOptionPane.showMessageDialog(this, "The savegame already matches the backup \"" + name + "\".",
+                    "Nothing to restore", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        StringBuilder steps = new StringBuilder();
+        for (RestorePlan.Step step : plan.getSteps()) {
+            steps.append(step).append('\n');
+        }
+        JTextArea stepsArea = new JTextArea(steps.toString(), Math.min(plan.getSteps().size(), 12), 45);
+        stepsArea.setEditable(false);
+        stepsArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JCheckBox deleteBox = new JCheckBox("Also delete the " + extras + " save files the backup doesn't have");
+        JPanel message = new JPanel(new BorderLayout(0, 5));
+        message.add(new JLabel("<html>Restore the backup \"" + name + "\"?<br>" + plan.getSummary() + ".</html>"),
+                BorderLayout.NORTH);
+        message.add(new JScrollPane(stepsArea), BorderLayout.CENTER);
+        if (extras > 0) {
+            message.add(deleteBox, BorderLayout.SOUTH);
+        }
+        // Yes is 0 and No is 1
+        int confirmation = JOptionPane.showConfirmDialog(this, message, "Confirm restore",
+                JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        if (confirmation == 0 && !isBusy()) {
+            plan.setDeleteExtras(deleteBox.isSelected());
+            executor.submit(new RestoreOperation() {
+                @Override
+                protected OperationResult execute(OperationMonitor monitor) throws Exception {
+                    return manager.restore(plan, monitor);
                 }
-            }
-            //</editor-fold>
-            JOptionPane.showMessageDialog(this, "Restored backup \"" + backupFolder.getName() + "\" successfully.",
-                    "Restore done", JOptionPane.INFORMATION_MESSAGE);
-        } else {
-            JOptionPane.showMessageDialog(this, "Error while restoring: the backup folder doens't exist!\n"
-                    + "This is probably an invalid path: " + backupFolder.getPath() + "!",
-                    "Restore error: Backup folder not found", JOptionPane.ERROR_MESSAGE);
+            });
         }
     }
 
@@ -398,30 +397,207 @@ public class NeoSavegameScavenger extends JFrame {
      * Deletes all the files within the savegame directory.
      */
     private void performClear() {
+        if (undoClearTimer != null) {
+            performUndoClear();
+            return;
+        }
+        final long undoMinutes = manager.getTrash().getUndoMillis() / 60000;
         // Ask for confirmation
         // Yes is 0 and No is 1
-        int confirmation = JOptionPane.showConfirmDialog(this,
-                "Are you sure you want to clear your current savegame?\nAll files in the savegame folder will be DELETED.", "Confirm clear savegame", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        int confirmation = JOptionPane.showConfirmDialog(this, "Are you sure you want to clear your current savegame?\n"
+                + (undoMinutes > 0 ? "You can undo it within " + undoMinutes + " minutes."
+                        : "All files in the savegame folder will be DELETED."),
+                "Confirm clear savegame", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
         if (confirmation == 0) {
             // Delete everything!
-            File saveFolder = new File(savegameFolderPath);
-            if (saveFolder.exists()) {
-                for (File f : saveFolder.listFiles()) {
-                    if (f.exists()) {
-                        f.delete();
-                        if (f.exists()) {
-                            JOptionPane.showMessageDialog(this, "Error: can't delete file " + f.getPath(), "Deletion Error!", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
+            executor.submit(new Operation<OperationResult>("Clear") {
+                @Override
+                protected OperationResult execute(OperationMonitor monitor) throws Exception {
+                    return manager.clear(monitor);
+                }
+
+                @Override
+                protected void succeeded(OperationResult result) {
+                    rewatchSaveFolder();
+                    markBackedUp();
+                    if (undoMinutes > 0) {
+                        offerUndoClear(manager.getTrash().getUndoMillis());
+                        JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "The savegame directory has been cleared.\n"
+                                + "Press \"Undo clear\" within " + undoMinutes + " minutes to get it back.",
+                                "Done clearing", JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "The savegame directory has been cleared.",
+                                "Done clearing", JOptionPane.INFORMATION_MESSAGE);
                     }
                 }
-                JOptionPane.showMessageDialog(this, "The savegame directory has been cleared.", "Done clearing", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "Error: the savegame folder doens't exist!", "Savegame folder not found", JOptionPane.ERROR_MESSAGE);
+
+                @Override
+                protected void failed(Exception ex) {
+                    JOptionPane.showMessageDialog(NeoSavegameScavenger.this, ex.getMessage(), "Clear error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Backs up the save for the auto backup. Nothing pops up, the result is
+     * only shown in the progress bar, so the game isn't interrupted.
+     */
+    private void performAutoBackup() {
+        if (executor.isBusy()) {
+            // Try again once the running operation is over
+            Timer retry = new Timer(AUTO_BACKUP_RETRY_MILLIS, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    performAutoBackup();
+                }
+            });
+            retry.setRepeats(false);
+            retry.start();
+            return;
+        }
+        executor.submit(new Operation<OperationResult>("Auto backup") {
+            @Override
+            protected OperationResult execute(OperationMonitor monitor) throws Exception {
+                return manager.backup(monitor);
+            }
+
+            @Override
+            protected void succeeded(OperationResult result) {
+                progressBar.setString(result.isCancelled() ? "Auto backup cancelled" : "Auto backup: " + result.getTarget());
+                if (result.isCancelled()) {
+                    if (autoBackup != null) {
+                        autoBackup.backupFailed();
+                    }
+                } else {
+                    if (autoBackup != null) {
+                        autoBackup.backupDone();
+                    }
+                    manager.getPacker().start();
+                }
+            }
+
+            @Override
+            protected void failed(Exception ex) {
+                progressBar.setString("Auto backup failed");
+                System.err.println("Auto backup failed: " + ex.getMessage());
+                if (autoBackup != null) {
+                    autoBackup.backupFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts back the save of the last clear.
+     */
+    private void performUndoClear() {
+        executor.submit(new Operation<OperationResult>("Undo clear") {
+            @Override
+            protected OperationResult execute(OperationMonitor monitor) throws Exception {
+                return manager.undoClear();
+            }
+
+            @Override
+            protected void succeeded(OperationResult result) {
+                endUndoClear();
+                rewatchSaveFolder();
+                JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "The cleared save is back ("
+                        + result.getFiles() + " files).", "Done undoing", JOptionPane.INFORMATION_MESSAGE);
+            }
+
+            @Override
+            protected void failed(Exception ex) {
+                if (!manager.getTrash().canUndo()) {
+                    endUndoClear();
+                }
+                JOptionPane.showMessageDialog(NeoSavegameScavenger.this, ex.getMessage(), "Undo error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+    }
+
+    /**
+     * Turns the clear button into an undo button for as long as the clear
+     * can be undone.
+     *
+     * @param undoMillis How long the clear can be undone.
+     */
+    private void offerUndoClear(long undoMillis) {
+        endUndoClear();
+        clearBtn.setText("Undo clear");
+        clearBtn.setToolTipText("Put back the save you just cleared.");
+        undoClearTimer = new Timer((int) Math.min(undoMillis, Integer.MAX_VALUE), new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                endUndoClear();
+            }
+        });
+        undoClearTimer.setRepeats(false);
+        undoClearTimer.start();
+    }
+
+    private void endUndoClear() {
+        if (undoClearTimer != null) {
+            undoClearTimer.stop();
+            undoClearTimer = null;
+        }
+        clearBtn.setText("Clear save");
+        clearBtn.setToolTipText("Clear the savegame folder.");
+    }
+
+    /**
+     * Clearing and undoing put another folder in place of the savegame
+     * folder: the auto backup has to watch the new one.
+     */
+    private void rewatchSaveFolder() {
+        if (autoBackup != null) {
+            autoBackup.stop();
+            try {
+                autoBackup.start();
+            } catch (IOException ex) {
+                System.err.println("Can't watch the savegame folder: " + ex.getMessage());
+                autoBackup = null;
             }
         }
     }
 
+    /**
+     * Tells the auto backup that the save matches a backup now.
+     */
+    private void markBackedUp() {
+        if (autoBackup != null) {
+            autoBackup.markBackedUp();
+        }
+    }
+
+    /**
+     * @return true if an operation is running, in which case the user is told
+     * to wait for it to end.
+     */
+    protected boolean isBusy() {
+        if (executor.isBusy()) {
+            JOptionPane.showMessageDialog(this, "Please wait for the current operation to end, or cancel it.",
+                    "Operation in progress", JOptionPane.INFORMATION_MESSAGE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Enables or disables the buttons that start an operation.
+     *
+     * @param enabled true to enable the buttons.
+     */
+    private void setOperationButtonsEnabled(boolean enabled) {
+        backupBtn.setEnabled(enabled);
+        restoreBtn.setEnabled(enabled);
+        restoreLastBtn.setEnabled(enabled);
+        clearBtn.setEnabled(enabled);
+        // The options replace the manager the operation is using
+        optionsBtn.setEnabled(enabled);
+        cancelBtn.setEnabled(!enabled);
+    }
+
     private ImageIcon createImageIcon(String path) {
         java.net.URL imgURL = getClass().getResource(path);
         if (imgURL != null) {
@@ -454,82 +630,199 @@ public class NeoSavegameScavenger extends JFrame {
     }
 
     /**
-     * Fetches the folder paths from the config file
+     * Fetches the folder paths from the config file, then finishes what a
+     * crash interrupted in the background. Must not be called while an
+     * operation is running, since it replaces the manager.
      */
     protected void readConfig() {
-        File config = new File("./config.txt");
+        Config config = new Config(new File("./config.txt"));
         if (config.exists()) {
             // Read the config
             try {
-                BufferedReader in = new BufferedReader(new FileReader(config));
-                // ignore the config comment
-                in.readLine();
-                // Read save folder path
-                String s = in.readLine();
-                StringTokenizer st = new StringTokenizer(s, "=");
-                if (st.countTokens() > 1) {
-                    st.nextToken();
-                    savegameFolderPath = st.nextToken();
-                }
-
-                // Read backup folder path
-                s = in.readLine();
-                st = new StringTokenizer(s, "=");
-                if (st.countTokens() > 1) {
-                    st.nextToken();
-                    backupFolderPath = st.nextToken();
-                }
-                in.close();
+                config.read();
             } catch (IOException ex) {
                 System.out.println("I/O Read Error: " + ex.getMessage());
             }
+            savegameFolderPath = config.get(Config.SAVE_FOLDER_PATH, savegameFolderPath);
+            backupFolderPath = config.get(Config.BACKUP_FOLDER_PATH, backupFolderPath);
         } else {
             JOptionPane.showMessageDialog(this, "It seems it's the first time you run this program.\nPlease open the options menu to provide the needed folder paths.", "Config file missing", JOptionPane.INFORMATION_MESSAGE);
         }
+        if (manager != null) {
+            manager.getScrubber().stop();
+            manager.getPacker().stop();
+        }
+        manager = BackupManager.fromConfig(config);
+        if (new File(backupFolderPath).isDirectory()) {
+            // Finish or undo what a crash interrupted, before any other operation
+            executor.submit(new Operation<List<String>>("Recovering") {
+                @Override
+                protected List<String> execute(OperationMonitor monitor) throws Exception {
+                    return manager.recover();
+                }
+
+                @Override
+                protected void succeeded(List<String> recovered) {
+                    if (!recovered.isEmpty()) {
+                        StringBuilder text = new StringBuilder("The last session was interrupted:");
+                        for (String line : recovered) {
+                            text.append("\n").append(line);
+                        }
+                        JOptionPane.showMessageDialog(NeoSavegameScavenger.this, text, "Recovered",
+                                JOptionPane.INFORMATION_MESSAGE);
+                    }
+                    startBackgroundWork();
+                }
+
+                @Override
+                protected void failed(Exception ex) {
+                    JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "Can't recover the interrupted operation:\n"
+                            + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    startBackgroundWork();
+                }
+            });
+        }
+        if (new File(savegameFolderPath).isDirectory()) {
+            // Delete what was cleared before the program was last closed
+            manager.getTrash().purgeLater(0);
+        }
+
+        // (Re)start the auto backup on the new save folder
+        if (autoBackup != null) {
+            autoBackup.stop();
+            autoBackup = null;
+        }
+        if (config.getBoolean(Config.AUTO_BACKUP, false) && new File(savegameFolderPath).isDirectory()) {
+            autoBackup = AutoBackupWatcher.fromConfig(config, new AutoBackupWatcher.Listener() {
+                @Override
+                public void backupDue() {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            performAutoBackup();
+                        }
+                    });
+                }
+            });
+            try {
+                autoBackup.start();
+            } catch (IOException ex) {
+                System.err.println("Can't watch the savegame folder: " + ex.getMessage());
+                autoBackup = null;
+            }
+        }
     }
 
     /**
-     * @param names An array of filenames in the "YYYY_MM_DD HH-MM-SS" format.
-     * @return
+     * Starts checking the backups in the background, carrying on the last
+     * check, and moving the old ones to packs.
      */
-    private String getNewestFile(String[] names) {
-        if (names.length > 0) {
-            String max = names[0];
-            for (int i = 1; i < names.length; i++) {
-                if (max.compareTo(names[i]) < 0) {
-                    max = names[i];
-                }
+    private void startBackgroundWork() {
+        manager.getScrubber().start();
+        manager.getPacker().start();
+    }
+
+    protected BackupManager getBackupManager() {
+        return manager;
+    }
+
+    /**
+     * Compares a backup with the save in the background, then shows the plan.
+     */
+    private abstract class PlanOperation extends Operation<RestorePlan> {
+
+        PlanOperation() {
+            super("Comparing");
+        }
+
+        @Override
+        protected void succeeded(RestorePlan plan) {
+            confirmRestore(plan);
+        }
+
+        @Override
+        protected void failed(Exception ex) {
+            JOptionPane.showMessageDialog(NeoSavegameScavenger.this, ex.getMessage(), "Restore error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private abstract class RestoreOperation extends Operation<OperationResult> {
+
+        RestoreOperation() {
+            super("Restore");
+        }
+
+        @Override
+        protected void succeeded(OperationResult result) {
+            // The restored save is already backed up
+            markBackedUp();
+            if (result.isCancelled()) {
+                JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "Restore of \"" + result.getTarget()
+                        + "\" cancelled, the savegame hasn't been changed.", "Restore cancelled", JOptionPane.WARNING_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(NeoSavegameScavenger.this, "Restored backup \"" + result.getTarget()
+                        + "\" successfully (" + result.getFiles() + " files copied).", "Restore done",
+                        JOptionPane.INFORMATION_MESSAGE);
             }
-            return max;
-        } else {
-            return null;
+        }
+
+        @Override
+        protected void failed(Exception ex) {
+            JOptionPane.showMessageDialog(NeoSavegameScavenger.this, ex.getMessage(), "Restore error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private class InputManager implements ActionListener, KeyListener {
+    private class InputManager implements ActionListener, KeyListener, OperationExecutor.Listener {
 
         @Override
         public void actionPerformed(ActionEvent e) {
-            if (e.getSource() == backupBtn) {
+            if (e.getSource() == cancelBtn) {
+                executor.cancel();
+                progressBar.setString("Cancelling...");
+            }
+            if (e.getSource() == backupBtn && !isBusy()) {
                 performBackup();
             }
-            if (e.getSource() == optionsBtn) {
+            if (e.getSource() == optionsBtn && !isBusy()) {
                 openOptionsMenu();
             }
             if (e.getSource() == helpBtn) {
                 openDocumentation();
             }
-            if (e.getSource() == restoreBtn) {
+            if (e.getSource() == restoreBtn && !isBusy()) {
                 openRestoreMenu();
             }
-            if (e.getSource() == restoreLastBtn) {
+            if (e.getSource() == restoreLastBtn && !isBusy()) {
                 restoreLastSave();
             }
-            if (e.getSource() == clearBtn) {
+            if (e.getSource() == clearBtn && !isBusy()) {
                 performClear();
             }
         }
 
+        @Override
+        public void operationStarted(Operation<?> op) {
+            setOperationButtonsEnabled(false);
+            progressBar.setIndeterminate(true);
+            progressBar.setString(op.getName() + "...");
+        }
+
+        @Override
+        public void operationProgress(Operation<?> op, int done, int total, String item) {
+            progressBar.setIndeterminate(false);
+            progressBar.setMaximum(total);
+            progressBar.setValue(done);
+            progressBar.setString(op.getName() + " " + done + "/" + total + (item.equals("") ? "" : ": " + item));
+        }
+
+        @Override
+        public void operationEnded(Operation<?> op) {
+            setOperationButtonsEnabled(true);
+            progressBar.setIndeterminate(false);
+            progressBar.setValue(0);
+            progressBar.setString("Idle");
+        }
+
         @Override
         public void keyTyped(KeyEvent e) {
 
@@ -0,0 +1,210 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+
+/**
+ * Runs backup, restore and clear operations in the background, one at a time,
+ * so the UI stays responsive while files are being copied. Progress and
+ * results are delivered on the event dispatch thread.
+ */
+public class OperationExecutor {
+
+    /**
+     * Gets notified, on the event dispatch thread, about the operation being
+     * executed.
+     */
+    public interface Listener {
+
+        public void operationStarted(Operation<?> op);
+
+        public void operationProgress(Operation<?> op, int done, int total, String item);
+
+        public void operationEnded(Operation<?> op);
+    }
+
+    /**
+     * A job for the executor. execute() runs in the background, the other
+     * callbacks on the event dispatch thread.
+     *
+     * @param <T> The result of the operation.
+     */
+    public static abstract class Operation<T> {
+
+        private final String name;
+
+        /**
+         * @param name Name of the operation, shown in the progress bar.
+         */
+        public Operation(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Does the actual work, outside of the event dispatch thread.
+         *
+         * @param monitor Must be kept updated and checked for cancellation.
+         * @return The result of the operation.
+         * @throws Exception If the operation failed.
+         */
+        protected abstract T execute(OperationMonitor monitor) throws Exception;
+
+        /**
+         * Called when execute() returned normally.
+         *
+         * @param result What execute() returned.
+         */
+        protected void succeeded(T result) {
+        }
+
+        /**
+         * Called when execute() threw an exception.
+         *
+         * @param ex The exception thrown.
+         */
+        protected void failed(Exception ex) {
+        }
+    }
+
+    private final Listener listener;
+    private Worker<?> current;
+
+    /**
+     * @param listener Gets notified about the running operation.
+     */
+    public OperationExecutor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts an operation in the background, unless another one is running.
+     * Must be called on the event dispatch thread.
+     *
+     * @param <T> The result of the operation.
+     * @param op The operation to run.
+     * @return false if the operation was rejected because the executor is
+     * busy.
+     */
+    public <T> boolean submit(Operation<T> op) {
+        if (current != null) {
+            return false;
+        }
+        current = new Worker<T>(op);
+        listener.operationStarted(op);
+        current.execute();
+        return true;
+    }
+
+    /**
+     * @return true if an operation is running.
+     */
+    public boolean isBusy() {
+        return current != null;
+    }
+
+    /**
+     * Asks the running operation to stop as soon as possible. The operation
+     * still ends normally, with its partial result.
+     */
+    public void cancel() {
+        if (current != null) {
+            current.cancelRequested = true;
+        }
+    }
+
+    /**
+     * Worker that runs an operation and relays its progress. Cancellation
+     * doesn't use SwingWorker.cancel(), since that reports the worker as done
+     * while the operation is still running.
+     */
+    private class Worker<T> extends SwingWorker<T, Progress> {
+
+        private final Operation<T> op;
+        private volatile int total;
+        private volatile boolean cancelRequested;
+        private final OperationMonitor monitor = new OperationMonitor() {
+            @Override
+            public void begin(int total) {
+                Worker.this.total = total;
+                publish(new Progress(0, ""));
+            }
+
+            @Override
+            public void progress(int done, String item) {
+                publish(new Progress(done, item));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelRequested;
+            }
+        };
+
+        Worker(Operation<T> op) {
+            this.op = op;
+        }
+
+        @Override
+        protected T doInBackground() throws Exception {
+            return op.execute(monitor);
+        }
+
+        @Override
+        protected void process(List<Progress> chunks) {
+            // Only the most recent progress matters
+            Progress last = chunks.get(chunks.size() - 1);
+            listener.operationProgress(op, last.done, total, last.item);
+        }
+
+        @Override
+        protected void done() {
+            current = null;
+            listener.operationEnded(op);
+            try {
+                op.succeeded(get());
+            } catch (InterruptedException ex) {
+                op.failed(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                op.failed(cause instanceof Exception ? (Exception) cause : ex);
+            }
+        }
+    }
+
+    private static class Progress {
+
+        private final int done;
+        private final String item;
+
+        Progress(int done, String item) {
+            this.done = done;
+            this.item = item;
+        }
+    }
+}
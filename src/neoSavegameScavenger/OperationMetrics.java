@@ -0,0 +1,214 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the operations, their files and bytes, and keeps histograms of
+ * their durations, for the whole life of the process. OperationTrace feeds
+ * it; registered as an MBean it can be watched from any JMX client.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    /**
+     * The name the MBean is registered under.
+     */
+    public static final String OBJECT_NAME = "neoSavegameScavenger:type=OperationMetrics";
+    /**
+     * Bucket i of a histogram holds the durations under 2^i ms, the last
+     * one everything longer.
+     */
+    private static final int BUCKETS = 22;
+    private static final int MINUTES = 60;
+    private static final OperationMetrics INSTANCE = new OperationMetrics();
+    private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private boolean registered;
+
+    /**
+     * Running statistics of an operation.
+     */
+    private static class Stats {
+
+        private long count, failures, cancellations, files, bytes, totalNanos, maxNanos;
+        private final long[] histogram = new long[BUCKETS];
+        // Rolling counters, a slot per minute
+        private final long[] slotMinute = new long[MINUTES], slotCount = new long[MINUTES],
+                slotBytes = new long[MINUTES];
+
+        synchronized void add(long nanos, int files, long bytes, boolean cancelled, boolean failed) {
+            count++;
+            if (failed) {
+                failures++;
+            }
+            if (cancelled) {
+                cancellations++;
+            }
+            this.files += files;
+            this.bytes += bytes;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            histogram[bucket(TimeUnit.NANOSECONDS.toMillis(nanos))]++;
+            long minute = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+            int slot = (int) (minute % MINUTES);
+            if (slotMinute[slot] != minute) {
+                slotMinute[slot] = minute;
+                slotCount[slot] = 0;
+                slotBytes[slot] = 0;
+            }
+            slotCount[slot]++;
+            slotBytes[slot] += bytes;
+        }
+
+        synchronized OperationStats snapshot() {
+            long minute = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+            long lastMinute = 0, lastHour = 0, bytesLastHour = 0;
+            for (int i = 0; i < MINUTES; i++) {
+                if (minute - slotMinute[i] < MINUTES) {
+                    lastHour += slotCount[i];
+                    bytesLastHour += slotBytes[i];
+                    if (slotMinute[i] == minute) {
+                        lastMinute = slotCount[i];
+                    }
+                }
+            }
+            return new OperationStats(count, failures, cancellations, files, bytes,
+                    TimeUnit.NANOSECONDS.toMillis(totalNanos), TimeUnit.NANOSECONDS.toMillis(maxNanos),
+                    percentile(0.5), percentile(0.9), percentile(0.99), lastMinute, lastHour, bytesLastHour,
+                    histogram.clone());
+        }
+
+        /**
+         * @return The upper bound of the bucket holding the percentile, or
+         * the maximum if that's lower.
+         */
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(p * count), seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i < BUCKETS - 1 ? 1L << i : Long.MAX_VALUE,
+                            TimeUnit.NANOSECONDS.toMillis(maxNanos));
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long millis) {
+            int i = 0;
+            while (i < BUCKETS - 1 && millis >= 1L << i) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    private OperationMetrics() {
+    }
+
+    /**
+     * @return The metrics of this process.
+     */
+    public static OperationMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server, once. Not done by
+     * default, since loading JMX slows down the start of the command line.
+     */
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (JMException ex) {
+            System.err.println("Can't register the metrics MBean: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Accounts for a finished operation.
+     *
+     * @param operation The name of the operation.
+     * @param nanos How long it took.
+     * @param files The files it processed.
+     * @param bytes The bytes it processed.
+     * @param cancelled true if it was cancelled.
+     * @param failed true if it failed.
+     */
+    public void record(String operation, long nanos, int files, long bytes, boolean cancelled, boolean failed) {
+        stats(operation).add(nanos, files, bytes, cancelled, failed);
+    }
+
+    /**
+     * Accounts for a phase of an operation.
+     *
+     * @param phase The name of the phase, as "operation.phase".
+     * @param nanos How long it took.
+     */
+    public void recordPhase(String phase, long nanos) {
+        stats(phase).add(nanos, 0, 0, false, false);
+    }
+
+    private Stats stats(String name) {
+        Stats s = stats.get(name);
+        if (s == null) {
+            stats.putIfAbsent(name, new Stats());
+            s = stats.get(name);
+        }
+        return s;
+    }
+
+    @Override
+    public Map<String, OperationStats> getOperations() {
+        Map<String, OperationStats> snapshot = new TreeMap<String, OperationStats>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().snapshot());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public long[] getHistogramBoundsMillis() {
+        long[] bounds = new long[BUCKETS - 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = 1L << i;
+        }
+        return bounds;
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+    }
+}
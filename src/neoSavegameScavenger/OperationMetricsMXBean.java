@@ -0,0 +1,48 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.util.Map;
+
+/**
+ * Management interface of OperationMetrics, for JConsole, VisualVM and
+ * other JMX clients.
+ */
+public interface OperationMetricsMXBean {
+
+    /**
+     * @return The statistics of every operation, and of their phases as
+     * "operation.phase", by name.
+     */
+    public Map<String, OperationStats> getOperations();
+
+    /**
+     * @return The upper bounds, in milliseconds, of the buckets of the
+     * latency histograms; the last bucket has none.
+     */
+    public long[] getHistogramBoundsMillis();
+
+    /**
+     * Forgets every statistic.
+     */
+    public void reset();
+}
@@ -0,0 +1,67 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+/**
+ * Receives the progress of a long running operation and tells it whether it
+ * should stop early.
+ */
+public interface OperationMonitor {
+
+    /**
+     * A monitor that ignores progress and never cancels.
+     */
+    public static final OperationMonitor NONE = new OperationMonitor() {
+        @Override
+        public void begin(int total) {
+        }
+
+        @Override
+        public void progress(int done, String item) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Called once, before the first item is processed.
+     *
+     * @param total The number of items the operation will process.
+     */
+    public void begin(int total);
+
+    /**
+     * Called every time an item has been processed.
+     *
+     * @param done The number of items processed so far.
+     * @param item The name of the last processed item.
+     */
+    public void progress(int done, String item);
+
+    /**
+     * @return true if the operation should stop as soon as possible.
+     */
+    public boolean isCancelled();
+}
@@ -0,0 +1,94 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+/**
+ * Outcome of a backup, restore or clear operation.
+ */
+public class OperationResult {
+
+    private final String target;
+    private int files;
+    private long bytes, elapsedNanos;
+    private boolean cancelled;
+
+    /**
+     * @param target Name of the backup (or folder) the operation worked on.
+     */
+    public OperationResult(String target) {
+        this.target = target;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The number of files processed.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    protected void addFile() {
+        files++;
+    }
+
+    /**
+     * @return The number of bytes copied.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Time spent copying, in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000;
+    }
+
+    /**
+     * Accounts for a batch of copied files.
+     *
+     * @param copy The statistics of the copy.
+     */
+    protected void add(CopyResult copy) {
+        files += copy.getFiles();
+        bytes += copy.getBytes();
+        elapsedNanos += copy.getElapsedNanos();
+        if (copy.isCancelled()) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @return true if the operation was stopped before processing every file.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    protected void setCancelled() {
+        cancelled = true;
+    }
+}
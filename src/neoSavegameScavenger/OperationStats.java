@@ -0,0 +1,134 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+/**
+ * A snapshot of the statistics of an operation.
+ */
+public class OperationStats {
+
+    private final long count, failures, cancellations, files, bytes;
+    private final long totalMillis, maxMillis, p50Millis, p90Millis, p99Millis;
+    private final long lastMinute, lastHour, bytesLastHour;
+    private final long[] histogram;
+
+    OperationStats(long count, long failures, long cancellations, long files, long bytes, long totalMillis,
+            long maxMillis, long p50Millis, long p90Millis, long p99Millis, long lastMinute, long lastHour,
+            long bytesLastHour, long[] histogram) {
+        this.count = count;
+        this.failures = failures;
+        this.cancellations = cancellations;
+        this.files = files;
+        this.bytes = bytes;
+        this.totalMillis = totalMillis;
+        this.maxMillis = maxMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.lastMinute = lastMinute;
+        this.lastHour = lastHour;
+        this.bytesLastHour = bytesLastHour;
+        this.histogram = histogram;
+    }
+
+    /**
+     * @return How many times the operation ran.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getCancellations() {
+        return cancellations;
+    }
+
+    /**
+     * @return The files processed by all the runs.
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    /**
+     * @return The bytes processed by all the runs.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public long getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return The median duration, rounded up to its histogram bucket.
+     */
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    public long getP90Millis() {
+        return p90Millis;
+    }
+
+    public long getP99Millis() {
+        return p99Millis;
+    }
+
+    /**
+     * @return How many runs ended in the current minute.
+     */
+    public long getLastMinute() {
+        return lastMinute;
+    }
+
+    /**
+     * @return How many runs ended in the last 60 minutes.
+     */
+    public long getLastHour() {
+        return lastHour;
+    }
+
+    public long getBytesLastHour() {
+        return bytesLastHour;
+    }
+
+    /**
+     * @return How many runs fell in each bucket, see
+     * OperationMetricsMXBean.getHistogramBoundsMillis().
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+}
@@ -0,0 +1,173 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.IOException;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Times an operation and its phases, for Flight Recorder and for the
+ * OperationMetrics MBean. Every operation is a JFR event, every phase a
+ * nested one on the same thread; both cost next to nothing when no recording
+ * is running.
+ * <p>
+ * Usage: start, then phase() at the start of every phase, finish() with the
+ * outcome or fail() with the error, and always end() in a finally block.
+ */
+public class OperationTrace {
+
+    @Name("neoSavegameScavenger.Operation")
+    @Label("Operation")
+    @Category("Neo Savegame Scavenger")
+    @Description("A backup, restore, clear, scan or scrub")
+    static class OperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+        @Label("Target")
+        @Description("The backup or folder worked on")
+        String target;
+        @Label("Files")
+        int files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Cancelled")
+        boolean cancelled;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("neoSavegameScavenger.Phase")
+    @Label("Operation Phase")
+    @Category("Neo Savegame Scavenger")
+    @Description("A step of an operation, such as copying or swapping in the restored files")
+    static class PhaseEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+        @Label("Phase")
+        String phase;
+    }
+
+    private final String operation;
+    private final OperationEvent event = new OperationEvent();
+    private final long start = System.nanoTime();
+    private PhaseEvent phase;
+    private long phaseStart;
+    private boolean finished, ended;
+
+    private OperationTrace(String operation) {
+        this.operation = operation;
+        event.operation = operation;
+        event.begin();
+    }
+
+    /**
+     * @param operation The name of the operation, such as "backup".
+     * @return The trace of the operation, already running.
+     */
+    public static OperationTrace start(String operation) {
+        return new OperationTrace(operation);
+    }
+
+    /**
+     * Ends the current phase, if any, and starts the next.
+     *
+     * @param name The name of the phase, such as "copy".
+     */
+    public void phase(String name) {
+        endPhase();
+        phase = new PhaseEvent();
+        phase.operation = operation;
+        phase.phase = name;
+        phaseStart = System.nanoTime();
+        phase.begin();
+    }
+
+    /**
+     * Records the outcome of an operation.
+     *
+     * @param result The outcome.
+     * @return The outcome, to be returned.
+     */
+    public OperationResult finish(OperationResult result) {
+        event.target = result.getTarget();
+        event.cancelled = result.isCancelled();
+        finish(result.getFiles(), result.getBytes());
+        return result;
+    }
+
+    /**
+     * Records the outcome of an operation without an OperationResult.
+     *
+     * @param files The number of files, or backups, processed.
+     * @param bytes The number of bytes processed.
+     */
+    public void finish(int files, long bytes) {
+        event.files = files;
+        event.bytes = bytes;
+        finished = true;
+    }
+
+    /**
+     * Records why the operation failed.
+     *
+     * @param ex The error.
+     * @return The error, to be thrown.
+     */
+    public IOException fail(IOException ex) {
+        event.error = String.valueOf(ex.getMessage());
+        return ex;
+    }
+
+    /**
+     * Commits the events and updates the metrics. An operation neither
+     * finished nor failed counts as failed.
+     */
+    public void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        endPhase();
+        if (!finished && event.error == null) {
+            event.error = "Unexpected error";
+        }
+        event.commit();
+        OperationMetrics.get().record(operation, System.nanoTime() - start, event.files, event.bytes,
+                event.cancelled, event.error != null);
+    }
+
+    private void endPhase() {
+        if (phase != null) {
+            phase.commit();
+            OperationMetrics.get().recordPhase(operation + "." + phase.phase, System.nanoTime() - phaseStart);
+            phase = null;
+        }
+    }
+}
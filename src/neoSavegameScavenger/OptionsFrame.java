@@ -28,36 +28,38 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.StringTokenizer;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import static javax.swing.BoxLayout.LINE_AXIS;
 import static javax.swing.BoxLayout.PAGE_AXIS;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingWorker;
 
 public class OptionsFrame extends JFrame {
 
     private final InputManager inManager;
     private final NeoSavegameScavenger parent;
-    private final JButton applyBtn, cancelBtn;
+    private final JButton applyBtn, cancelBtn, previewBtn;
     private final Color backgroundColor;
-    private final JTextField op1Field, op2Field;
+    private final JTextField op1Field, op2Field, retentionField;
+    private final JCheckBox autoBackupBox;
 
     public OptionsFrame(NeoSavegameScavenger nss) {
         parent = nss;
         inManager = new InputManager();
-        setBounds(50, 30, 650, 220);
+        setBounds(50, 30, 650, 310);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         setUndecorated(false);
         setTitle("NeoSavegameScavenger - Options");
@@ -131,6 +133,52 @@ public class OptionsFrame extends JFrame {
         panel.add(op2Wrapper);
         //</editor-fold>
 
+        panel.add(Box.createVerticalStrut(10));
+
+        //<editor-fold desc="Retention policy option">
+        JPanel retentionWrapper = new JPanel();
+        retentionWrapper.setLayout(new BoxLayout(retentionWrapper, LINE_AXIS));
+        retentionWrapper.setBackground(backgroundColor);
+
+        JPanel retentionPanel = new JPanel();
+        retentionPanel.setBackground(backgroundColor);
+        retentionPanel.setLayout(new BoxLayout(retentionPanel, PAGE_AXIS));
+
+        JLabel retentionLabel = new JLabel("Keep old backups (e.g. 1h=all,1d=1h,30d=1d,*=7d; empty keeps all): ");
+        retentionLabel.setForeground(Color.white);
+        retentionPanel.add(retentionLabel);
+
+        retentionPanel.add(Box.createVerticalStrut(5));
+
+        JPanel retentionRow = new JPanel();
+        retentionRow.setBackground(backgroundColor);
+        retentionRow.setLayout(new BoxLayout(retentionRow, LINE_AXIS));
+        retentionRow.setAlignmentX(LEFT_ALIGNMENT);
+        retentionField = new JTextField();
+        retentionField.setMaximumSize(new Dimension(Short.MAX_VALUE, 20));
+        retentionRow.add(retentionField);
+        retentionRow.add(Box.createRigidArea(new Dimension(5, 1)));
+        previewBtn = new JButton("Preview");
+        previewBtn.addActionListener(inManager);
+        retentionRow.add(previewBtn);
+        retentionPanel.add(retentionRow);
+
+        retentionWrapper.add(Box.createRigidArea(new Dimension(15, 1)));
+        retentionWrapper.add(retentionPanel);
+        retentionWrapper.add(Box.createRigidArea(new Dimension(15, 1)));
+        panel.add(retentionWrapper);
+        //</editor-fold>
+
+        panel.add(Box.createVerticalStrut(10));
+
+        //<editor-fold desc="Auto backup option">
+        autoBackupBox = new JCheckBox("Back up automatically whenever the game saves");
+        autoBackupBox.setForeground(Color.white);
+        autoBackupBox.setBackground(backgroundColor);
+        autoBackupBox.setAlignmentX(CENTER_ALIGNMENT);
+        panel.add(autoBackupBox);
+        //</editor-fold>
+
         panel.add(Box.createVerticalGlue());
         panel.add(Box.createVerticalStrut(10));
 
@@ -174,31 +222,20 @@ public class OptionsFrame extends JFrame {
      * menu, then close the window.
      */
     private void applyChanges() {
+        // The config can't change under a running operation
+        if (parent.isBusy()) {
+            return;
+        }
         // Validate paths before recording
-        if (validatePaths(op1Field.getText(), op2Field.getText())) {
-            File config = new File("./config.txt");
-            // Check if the config file exists
-            if (!config.exists()) {
-                //Create the config file
-                try {
-                    config.createNewFile();
-                } catch (java.io.IOException ex) {
-                    System.err.println("Can't create the config file: " + ex.getMessage());
-                }
-            }
-            // Write on the config
+        if (parseRetention() != null && validatePaths(op1Field.getText(), op2Field.getText())) {
+            // Write on the config, keeping the settings not shown in this menu
             try {
-                BufferedWriter out = new BufferedWriter(new FileWriter(config));
-                String s = "# Config file for Neo Savegame Scavenger, DO NOT MODIFY MANUALLY!";
-                out.write(s);
-                out.newLine();
-                s = "SaveFolderPath=" + op1Field.getText();
-                out.write(s);
-                out.newLine();
-                s = "BackupFolderPath=" + op2Field.getText();
-                out.write(s);
-                out.newLine();
-                out.close();
+                Config config = Config.load();
+                config.set(Config.SAVE_FOLDER_PATH, op1Field.getText());
+                config.set(Config.BACKUP_FOLDER_PATH, op2Field.getText());
+                config.set(Config.AUTO_BACKUP, Boolean.toString(autoBackupBox.isSelected()));
+                config.set(Config.RETENTION, retentionField.getText().trim());
+                config.write();
             } catch (IOException ex) {
                 System.err.println("I/O Write Failure: " + ex.getMessage());
             } finally {
@@ -208,6 +245,90 @@ public class OptionsFrame extends JFrame {
         }
     }
 
+    /**
+     * Checks the retention policy typed by the user, telling them what's wrong
+     * with it.
+     *
+     * @return The text if it's empty or a valid policy, null otherwise.
+     */
+    private String parseRetention() {
+        String text = retentionField.getText().trim();
+        if (!text.isEmpty()) {
+            try {
+                RetentionPolicy.parse(text);
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid retention policy", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Shows which backups of the typed backup folder the typed retention
+     * policy would keep and which it would delete, without deleting anything.
+     * The backups are listed in the background.
+     */
+    private void previewRetention() {
+        String text = parseRetention();
+        if (text == null) {
+            return;
+        }
+        if (text.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Without a policy every backup is kept.", "Retention preview",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        final RetentionPolicy policy = RetentionPolicy.parse(text);
+        File backupFolder = new File(op2Field.getText());
+        if (!backupFolder.isDirectory()) {
+            JOptionPane.showMessageDialog(this, "The backup folder doesn't exist, there's nothing to delete yet.",
+                    "Retention preview", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        BackupManager current = parent.getBackupManager();
+        // The current manager has its backups listed already
+        final BackupManager manager = current != null
+                && new File(current.getBackupFolderPath()).getAbsoluteFile().equals(backupFolder.getAbsoluteFile())
+                ? current : new BackupManager(op1Field.getText(), op2Field.getText(),
+                        new CopyEngine(1, CopyEngine.SyncPolicy.NONE), BackupManager.Format.BLOBS);
+        previewBtn.setEnabled(false);
+        new SwingWorker<List<RetentionPolicy.Decision>, Void>() {
+            @Override
+            protected List<RetentionPolicy.Decision> doInBackground() {
+                return manager.planRetention(policy);
+            }
+
+            @Override
+            protected void done() {
+                previewBtn.setEnabled(true);
+                try {
+                    showRetention(get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    JOptionPane.showMessageDialog(OptionsFrame.this, "Can't list the backups: "
+                            + (ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage()),
+                            "Retention preview", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void showRetention(List<RetentionPolicy.Decision> decisions) {
+        StringBuilder report = new StringBuilder();
+        int deleted = 0;
+        for (RetentionPolicy.Decision d : decisions) {
+            report.append(d).append('\n');
+            if (!d.isKept()) {
+                deleted++;
+            }
+        }
+        JTextArea area = new JTextArea(report.length() == 0 ? "No backups yet." : report.toString(), 20, 60);
+        area.setEditable(false);
+        area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JOptionPane.showMessageDialog(this, new JScrollPane(area), "Retention preview: " + deleted + " backups to delete",
+                JOptionPane.INFORMATION_MESSAGE);
+    }
+
     /**
      * Makes sure the user inserted valid paths in the options menu.
      *
@@ -258,32 +379,14 @@ public class OptionsFrame extends JFrame {
      * Read config file for text field initialization and request focus.
      */
     private void init() {
-        File config = new File("./config.txt");
-        if (config.exists()) {
-            // Read the config
-            try {
-                BufferedReader in = new BufferedReader(new FileReader(config));
-                // ignore the config comment
-                in.readLine();
-                // Read save folder path
-                String s = in.readLine();
-                StringTokenizer st = new StringTokenizer(s, "=");
-                if (st.countTokens() > 1) {
-                    st.nextToken();
-                    op1Field.setText(st.nextToken());
-                }
-
-                // Read backup folder path
-                s = in.readLine();
-                st = new StringTokenizer(s, "=");
-                if (st.countTokens() > 1) {
-                    st.nextToken();
-                    op2Field.setText(st.nextToken());
-                }
-                in.close();
-            } catch (IOException ex) {
-                System.out.println("I/O Read Error: " + ex.getMessage());
-            }
+        try {
+            Config config = Config.load();
+            op1Field.setText(config.get(Config.SAVE_FOLDER_PATH, ""));
+            op2Field.setText(config.get(Config.BACKUP_FOLDER_PATH, ""));
+            autoBackupBox.setSelected(config.getBoolean(Config.AUTO_BACKUP, false));
+            retentionField.setText(config.get(Config.RETENTION, ""));
+        } catch (IOException ex) {
+            System.out.println("I/O Read Error: " + ex.getMessage());
         }
         requestFocus();
     }
@@ -298,6 +401,9 @@ public class OptionsFrame extends JFrame {
             if (e.getSource() == cancelBtn) {
                 closeWindow();
             }
+            if (e.getSource() == previewBtn) {
+                previewRetention();
+            }
         }
 
         @Override
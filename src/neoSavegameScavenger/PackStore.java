@@ -0,0 +1,699 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Checksum;
+
+/**
+ * Keeps old backups in a few large pack files instead of a folder each, in
+ * ".nss/packs". A pack is written once, as the contents of the save files of
+ * many backups one after the other, each distinct content once; its index
+ * is a sorted table of the contents' hashes with their offsets in the pack,
+ * searched in place. Which files each packed backup had is listed in
+ * ".nss/packs/backups".
+ * <p>
+ * Packs are read a file at a time with positional reads, and no handle is
+ * kept open, so another instance of the program can delete a pack nobody
+ * needs anymore. The listing and the packs are reloaded whenever they change
+ * on the disk.
+ */
+public class PackStore {
+
+    private static final String LISTING_HEADER = "# NSS packed backups 1";
+    private static final byte[] INDEX_MAGIC = "NSSIDX1\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * A hash, then the offset and size of the content in the pack.
+     */
+    private static final int RECORD_SIZE = 32 + 8 + 8;
+    private static final int HEADER_SIZE = INDEX_MAGIC.length + 4;
+    /**
+     * A pack is only deleted once none of its contents is used, smaller packs
+     * go sooner; the backups left over go to the next pack.
+     */
+    private static final long MAX_PACK_SIZE = 1L << 30;
+    private static final String PACK_EXTENSION = ".pack", INDEX_EXTENSION = ".idx";
+    /**
+     * File locks are held by the whole JVM, threads must also take turns.
+     */
+    private static final Object LOCK = new Object();
+    private final File folder;
+    private Map<String, BackupManifest> backups;
+    private List<Pack> packs;
+    /**
+     * When the listing and the folder were last changed as loaded, to tell
+     * when they are stale.
+     */
+    private FileTime backupsStamp, packsStamp;
+
+    /**
+     * A pack and its index.
+     */
+    private static class Pack {
+
+        private final File file;
+        private final ByteBuffer index;
+        private final int count;
+
+        Pack(File file, ByteBuffer index, int count) {
+            this.file = file;
+            this.index = index;
+            this.count = count;
+        }
+
+        /**
+         * @return The offset and size of a content, or null if it isn't in
+         * this pack.
+         */
+        long[] find(byte[] hash) {
+            int low = 0, high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int at = HEADER_SIZE + mid * RECORD_SIZE;
+                int cmp = 0;
+                for (int i = 0; i < 32 && cmp == 0; i++) {
+                    cmp = (index.get(at + i) & 0xFF) - (hash[i] & 0xFF);
+                }
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return new long[]{index.getLong(at + 32), index.getLong(at + 40)};
+                }
+            }
+            return null;
+        }
+
+        ByteBuffer read(long offset, long size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (offset + size > channel.size()) {
+                    throw new IOException(file.getName() + " is shorter than its index says");
+                }
+                ByteBuffer content = ByteBuffer.allocate((int) size);
+                readFully(channel, content, offset);
+                content.flip();
+                return content;
+            }
+        }
+    }
+
+    /**
+     * @param backupFolder The backup folder.
+     */
+    public PackStore(File backupFolder) {
+        folder = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "packs");
+    }
+
+    /**
+     * @return The names of the packed backups, sorted.
+     */
+    public synchronized List<String> list() {
+        return new ArrayList<String>(loadBackups().keySet());
+    }
+
+    /**
+     * @param backup A backup.
+     * @return true if it's packed, rather than a folder or archive.
+     */
+    public synchronized boolean isPacked(File backup) {
+        return loadBackups().containsKey(backup.getName()) && !backup.exists();
+    }
+
+    /**
+     * @param name A packed backup.
+     * @return Its files, or null if it isn't packed.
+     */
+    public synchronized BackupManifest getManifest(String name) {
+        return loadBackups().get(name);
+    }
+
+    /**
+     * @param entry A file of a packed backup.
+     * @return Its content, read from its pack.
+     * @throws IOException If the content isn't in any pack.
+     */
+    public ByteBuffer read(BackupManifest.Entry entry) throws IOException {
+        byte[] hash = fromHex(entry.getHash());
+        for (Pack pack : loadPacks()) {
+            long[] where = pack.find(hash);
+            if (where != null) {
+                return pack.read(where[0], where[1]);
+            }
+        }
+        throw new IOException(entry.getName() + " is missing from the packs");
+    }
+
+    /**
+     * @param entry A file of a packed backup.
+     * @return A stream over its content.
+     * @throws IOException If the content isn't in any pack.
+     */
+    public InputStream open(BackupManifest.Entry entry) throws IOException {
+        final ByteBuffer content = read(entry);
+        return new InputStream() {
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!content.hasRemaining()) {
+                    return len == 0 ? 0 : -1;
+                }
+                int n = Math.min(len, content.remaining());
+                content.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipped = (int) Math.max(0, Math.min(n, content.remaining()));
+                content.position(content.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    /**
+     * Writes a file of a packed backup out, checking it against its hash.
+     *
+     * @param entry The file.
+     * @param target Where to write it. Must not exist.
+     * @param syncPolicy Whether to force the file to the disk.
+     * @return The number of bytes written.
+     * @throws IOException If the content is missing or damaged, or can't be
+     * written.
+     */
+    public long extract(BackupManifest.Entry entry, Path target, CopyEngine.SyncPolicy syncPolicy)
+            throws IOException {
+        ByteBuffer content = read(entry);
+        MessageDigest sha = BlobStore.newDigest();
+        sha.update(content.duplicate());
+        if (content.remaining() != entry.getSize() || !BlobStore.toHex(sha.digest()).equals(entry.getHash())) {
+            throw new IOException("Restore aborted! " + entry.getName() + " doesn't match its backup, "
+                    + "it may be corrupted.");
+        }
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+            if (syncPolicy != CopyEngine.SyncPolicy.NONE) {
+                out.force(true);
+            }
+        }
+        return entry.getSize();
+    }
+
+    /**
+     * @param entry A file of a packed backup.
+     * @return What's wrong with its content, or null.
+     */
+    public String check(BackupManifest.Entry entry) {
+        ByteBuffer content;
+        try {
+            content = read(entry);
+        } catch (IOException ex) {
+            return "is missing";
+        }
+        if (content.remaining() != entry.getSize()) {
+            return "has the wrong size";
+        }
+        if (entry.getCrc() != null) {
+            Checksum crc = BlobStore.newChecksum();
+            crc.update(content);
+            return BlobStore.toHex(crc).equals(entry.getCrc()) ? null : "doesn't match its checksum";
+        }
+        MessageDigest sha = BlobStore.newDigest();
+        sha.update(content);
+        return BlobStore.toHex(sha.digest()).equals(entry.getHash()) ? null : "doesn't match its checksum";
+    }
+
+    /**
+     * Packs backups into a new pack. Each backup's files are read once and
+     * checked against its manifest; contents already in a pack aren't
+     * written again. A backup that can't be read whole is left out. The
+     * packed backups are listed once the pack is complete, their folders are
+     * left for the caller to delete.
+     *
+     * @param backups The backup folders to pack, oldest first.
+     * @param manager Reads the backups.
+     * @param monitor Receives the progress, a backup at a time.
+     * @return The names of the packed backups.
+     * @throws IOException If the pack or its index can't be written.
+     */
+    public List<String> pack(List<File> backups, BackupManager manager, OperationMonitor monitor)
+            throws IOException {
+        // Locked throughout, the contents left out because they're packed
+        // already must not be collected before the backups are listed
+        synchronized (LOCK) {
+            FileLock lock = lockFolder();
+            try {
+                return writePack(backups, manager, monitor);
+            } finally {
+                lock.channel().close();
+            }
+        }
+    }
+
+    private List<String> writePack(List<File> backups, BackupManager manager, OperationMonitor monitor)
+            throws IOException {
+        String base = "pack-" + System.currentTimeMillis();
+        Path packTmp = new File(folder, base + PACK_EXTENSION + ".tmp").toPath();
+        Path indexTmp = new File(folder, base + INDEX_EXTENSION + ".tmp").toPath();
+        final Map<String, long[]> written = new TreeMap<String, long[]>();
+        Map<String, BackupManifest> packed = new TreeMap<String, BackupManifest>();
+        monitor.begin(backups.size());
+        try {
+            try (final FileChannel out = FileChannel.open(packTmp, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                for (File backup : backups) {
+                    if (monitor.isCancelled() || out.size() >= MAX_PACK_SIZE) {
+                        break;
+                    }
+                    long mark = out.size();
+                    Set<String> added = new HashSet<String>();
+                    try {
+                        packed.put(backup.getName(), packBackup(backup, manager, out, written, added));
+                    } catch (IOException ex) {
+                        System.err.println("Not packing " + backup.getName() + ": " + ex.getMessage());
+                        written.keySet().removeAll(added);
+                        out.truncate(mark);
+                        out.position(mark);
+                    }
+                    monitor.progress(packed.size(), backup.getName());
+                }
+                if (packed.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                out.force(true);
+            }
+            try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(indexTmp)))) {
+                index.write(INDEX_MAGIC);
+                index.writeInt(written.size());
+                // Hex sorts like the bytes it stands for
+                for (Map.Entry<String, long[]> e : written.entrySet()) {
+                    index.write(fromHex(e.getKey()));
+                    index.writeLong(e.getValue()[0]);
+                    index.writeLong(e.getValue()[1]);
+                }
+            }
+            try (FileChannel index = FileChannel.open(indexTmp, StandardOpenOption.WRITE)) {
+                index.force(true);
+            }
+            // The pack first: an index always has its pack
+            Files.move(packTmp, new File(folder, base + PACK_EXTENSION).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTmp, new File(folder, base + INDEX_EXTENSION).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(packTmp);
+            Files.deleteIfExists(indexTmp);
+        }
+        writeListing(packed, Collections.<String>emptySet());
+        return new ArrayList<String>(packed.keySet());
+    }
+
+    /**
+     * Appends the contents of a backup's files that aren't packed yet.
+     *
+     * @param added Gets the hashes of the contents appended.
+     * @return The backup's files.
+     */
+    private BackupManifest packBackup(File backup, BackupManager manager, final FileChannel out,
+            final Map<String, long[]> written, final Set<String> added) throws IOException {
+        final BackupManifest manifest = BackupManifest.read(backup);
+        final BackupManifest listing = new BackupManifest();
+        final byte[] buffer = new byte[64 * 1024];
+        manager.readSaveFiles(backup, new SaveFileReader() {
+            @Override
+            public boolean read(String name, InputStream in) throws IOException {
+                BackupManifest.Entry known = manifest == null ? null : manifest.get(name);
+                if (known != null && known.getCrc() != null
+                        && (written.containsKey(known.getHash()) || contains(known.getHash()))) {
+                    // Already packed, no need to read it
+                    listing.add(new BackupManifest.Entry(name, known.getSize(), known.getHash(), null, known.getCrc()));
+                    return true;
+                }
+                long start = out.size();
+                MessageDigest sha = BlobStore.newDigest();
+                Checksum crc = BlobStore.newChecksum();
+                long size = 0;
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    sha.update(buffer, 0, n);
+                    crc.update(buffer, 0, n);
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                    size += n;
+                }
+                String hash = BlobStore.toHex(sha.digest());
+                if (known != null && (known.getSize() != size || !known.getHash().equals(hash))) {
+                    throw new IOException(name + " doesn't match its checksum");
+                }
+                if (written.containsKey(hash) || contains(hash)) {
+                    out.truncate(start);
+                    out.position(start);
+                } else {
+                    written.put(hash, new long[]{start, size});
+                    added.add(hash);
+                }
+                listing.add(new BackupManifest.Entry(name, size, hash, null, BlobStore.toHex(crc)));
+                return true;
+            }
+        });
+        return listing;
+    }
+
+    /**
+     * Stops listing some packed backups.
+     *
+     * @param name The backup's name.
+     * @throws IOException If the listing can't be written.
+     */
+    public void remove(String name) throws IOException {
+        editListing(Collections.<String, BackupManifest>emptyMap(), Collections.singleton(name));
+    }
+
+    /**
+     * Deletes the packs none of whose contents a packed backup has anymore,
+     * and what a crash left of unfinished packs. A pack is deleted whole or
+     * not at all.
+     *
+     * @param graceMillis How old packs must be, one may still be being
+     * written or not listed yet.
+     * @return The number of packs deleted.
+     * @throws IOException If the listing can't be read, nothing is deleted
+     * then.
+     */
+    public int collectGarbage(long graceMillis) throws IOException {
+        if (!folder.isDirectory()) {
+            return 0;
+        }
+        // Another instance may have packed or listed backups since they were
+        // loaded, only the listing on the disk tells what's used
+        synchronized (LOCK) {
+            FileLock lock = lockFolder();
+            try {
+                FileTime stamp = stamp(listingFile());
+                Map<String, BackupManifest> listing = readListing();
+                synchronized (this) {
+                    backups = listing;
+                    backupsStamp = stamp;
+                }
+                return deleteUnused(listing, graceMillis);
+            } finally {
+                lock.channel().close();
+            }
+        }
+    }
+
+    private int deleteUnused(Map<String, BackupManifest> listing, long graceMillis) {
+        Set<String> used = new HashSet<String>();
+        for (BackupManifest manifest : listing.values()) {
+            for (BackupManifest.Entry e : manifest.getEntries()) {
+                used.add(e.getHash());
+            }
+        }
+        int deleted = 0;
+        long limit = System.currentTimeMillis() - graceMillis;
+        for (Pack pack : loadPacks()) {
+            boolean needed = pack.file.lastModified() >= limit;
+            for (int i = 0; i < pack.count && !needed; i++) {
+                byte[] hash = new byte[32];
+                ByteBuffer record = pack.index.duplicate();
+                record.position(HEADER_SIZE + i * RECORD_SIZE);
+                record.get(hash);
+                needed = used.contains(BlobStore.toHex(hash));
+            }
+            if (!needed) {
+                File index = indexOf(pack.file);
+                if (index.delete()) {
+                    pack.file.delete();
+                    deleted++;
+                }
+            }
+        }
+        File[] files = folder.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            boolean orphan = name.endsWith(".tmp")
+                    || name.endsWith(PACK_EXTENSION) && !indexOf(files[i]).exists();
+            if (orphan && files[i].lastModified() < limit && files[i].delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return true if a content is in one of the packs.
+     */
+    private boolean contains(String hash) {
+        byte[] bytes = fromHex(hash);
+        for (Pack pack : loadPacks()) {
+            if (pack.find(bytes) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized List<Pack> loadPacks() {
+        FileTime stamp = stamp(folder);
+        if (packs != null && Objects.equals(stamp, packsStamp)) {
+            return packs;
+        }
+        List<Pack> loaded = new ArrayList<Pack>();
+        File[] files = folder.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (!files[i].getName().endsWith(INDEX_EXTENSION)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(files[i].toPath(), StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("malformed");
+                }
+                ByteBuffer index = ByteBuffer.allocate((int) channel.size());
+                readFully(channel, index, 0);
+                index.flip();
+                byte[] magic = new byte[INDEX_MAGIC.length];
+                index.get(magic);
+                int count = index.getInt();
+                if (!Arrays.equals(magic, INDEX_MAGIC) || HEADER_SIZE + (long) count * RECORD_SIZE != channel.size()) {
+                    throw new IOException("malformed");
+                }
+                String name = files[i].getName();
+                loaded.add(new Pack(new File(folder, name.substring(0, name.length() - INDEX_EXTENSION.length())
+                        + PACK_EXTENSION), index, count));
+            } catch (IOException ex) {
+                System.err.println("Can't read the pack index " + files[i].getName() + ": " + ex.getMessage());
+            }
+        }
+        packs = loaded;
+        packsStamp = stamp;
+        return packs;
+    }
+
+    private synchronized Map<String, BackupManifest> loadBackups() {
+        FileTime stamp = stamp(listingFile());
+        if (backups == null || !Objects.equals(stamp, backupsStamp)) {
+            try {
+                backups = readListing();
+                backupsStamp = stamp;
+            } catch (IOException ex) {
+                System.err.println("Can't read the packed backups: " + ex.getMessage());
+                return Collections.emptyMap();
+            }
+        }
+        return backups;
+    }
+
+    private Map<String, BackupManifest> readListing() throws IOException {
+        Map<String, BackupManifest> listing = new TreeMap<String, BackupManifest>();
+        Path file = listingFile().toPath();
+        if (!Files.exists(file)) {
+            return listing;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.startsWith("#") || s.isEmpty()) {
+                    continue;
+                }
+                // backup, file, size, hash, then tagged fields
+                String[] fields = s.split("\t");
+                if (fields.length < 4) {
+                    throw new IOException("Malformed line in " + file + ": " + s);
+                }
+                String crc = null;
+                for (int i = 4; i < fields.length; i++) {
+                    if (fields[i].startsWith("crc32c=")) {
+                        crc = fields[i].substring("crc32c=".length());
+                    }
+                }
+                BackupManifest manifest = listing.get(fields[0]);
+                if (manifest == null) {
+                    manifest = new BackupManifest();
+                    listing.put(fields[0], manifest);
+                }
+                try {
+                    manifest.add(new BackupManifest.Entry(fields[1], Long.parseLong(fields[2]), fields[3], null, crc));
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Malformed line in " + file + ": " + s, ex);
+                }
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Adds and removes packed backups, under the lock since another instance
+     * of the program may be packing too.
+     */
+    private void editListing(Map<String, BackupManifest> add, Collection<String> remove) throws IOException {
+        synchronized (LOCK) {
+            FileLock lock = lockFolder();
+            try {
+                writeListing(add, remove);
+            } finally {
+                lock.channel().close();
+            }
+        }
+    }
+
+    /**
+     * Adds and removes packed backups, the lock must be held.
+     */
+    private void writeListing(Map<String, BackupManifest> add, Collection<String> remove) throws IOException {
+        Path file = listingFile().toPath();
+        Map<String, BackupManifest> listing = readListing();
+        listing.putAll(add);
+        listing.keySet().removeAll(remove);
+        Path tmp = file.resolveSibling("backups.tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(LISTING_HEADER);
+            out.newLine();
+            for (Map.Entry<String, BackupManifest> backup : listing.entrySet()) {
+                for (BackupManifest.Entry e : backup.getValue().getEntries()) {
+                    out.write(backup.getKey() + "\t" + e.getName() + "\t" + e.getSize() + "\t" + e.getHash()
+                            + (e.getCrc() != null ? "\tcrc32c=" + e.getCrc() : ""));
+                    out.newLine();
+                }
+            }
+        }
+        try (FileChannel sync = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            sync.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            backups = listing;
+            backupsStamp = stamp(file.toFile());
+        }
+    }
+
+    /**
+     * Locks the packs against the other instances of the program; closing
+     * the lock's channel releases it. Threads must hold LOCK meanwhile.
+     */
+    private FileLock lockFolder() throws IOException {
+        Files.createDirectories(folder.toPath());
+        FileChannel channel = FileChannel.open(new File(folder, "lock").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private File listingFile() {
+        return new File(folder, "backups");
+    }
+
+    /**
+     * @return When a file was last changed, or null if it doesn't exist.
+     */
+    private static FileTime stamp(File file) {
+        try {
+            return Files.getLastModifiedTime(file.toPath());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static File indexOf(File pack) {
+        String name = pack.getName();
+        return new File(pack.getParentFile(), name.substring(0, name.length() - PACK_EXTENSION.length())
+                + INDEX_EXTENSION);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -23,16 +23,26 @@ package neoSavegameScavenger;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.File;
 import java.io.FilenameFilter;
-import java.util.Arrays;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
-import javax.swing.DefaultListModel;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -40,25 +50,33 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import static javax.swing.ListSelectionModel.SINGLE_SELECTION;
+import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import static javax.swing.ListSelectionModel.MULTIPLE_INTERVAL_SELECTION;
 import static javax.swing.ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER;
 import static javax.swing.ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS;
-import static javax.swing.SwingConstants.CENTER;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 public class RestoreFrame extends JFrame {
 
+    private static final int PAGE_SIZE = 500;
     private final InputManager inManager;
     private final NeoSavegameScavenger parent;
-    private final JButton restoreBtn, cancelBtn;
-    private final DefaultListModel listModel;
-    private final JList backupList;
+    private final JButton restoreBtn, compareBtn, cancelBtn;
+    private final BackupListModel listModel;
+    private final JList<String> backupList;
+    private final JTextField filterField;
     private final Color backgroundColor;
+    private final Map<String, String> labels = new ConcurrentHashMap<String, String>();
+    private SwingWorker<List<String>, List<String>> scanner;
+    private SwingWorker<Void, String[]> labeller;
 
     public RestoreFrame(NeoSavegameScavenger nss) {
         parent = nss;
         backgroundColor=parent.getBgColor();
         inManager = new InputManager();
-        setBounds(50, 30, 175, 250);
+        setBounds(50, 30, parent.getBackupManager().hasLabels() ? 400 : 175, 250);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         setUndecorated(false);
         setTitle("NeoSavegameScavenger - Restore");
@@ -71,11 +89,44 @@ public class RestoreFrame extends JFrame {
         panel.setLayout(new BoxLayout(panel, BoxLayout.PAGE_AXIS));
         panel.setBackground(backgroundColor);
 
+        JPanel topPanel = new JPanel();
+        topPanel.setBackground(backgroundColor);
+        topPanel.setLayout(new BoxLayout(topPanel, BoxLayout.PAGE_AXIS));
         // Title
         JLabel title = new JLabel("Choose a backup to restore");
         title.setForeground(Color.white);
-        title.setHorizontalAlignment(CENTER);
-        add(title, BorderLayout.PAGE_START);
+        title.setAlignmentX(CENTER_ALIGNMENT);
+        topPanel.add(title);
+        topPanel.add(Box.createVerticalStrut(3));
+        // Filter box, by date or label
+        filterField = new JTextField();
+        filterField.setToolTipText("Show only the backups whose date starts with, or label contains, this text");
+        filterField.setMaximumSize(new Dimension(Short.MAX_VALUE, 20));
+        filterField.addKeyListener(inManager);
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                listModel.setFilter(filterField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                listModel.setFilter(filterField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        JPanel filterPanel = new JPanel();
+        filterPanel.setBackground(backgroundColor);
+        filterPanel.setLayout(new BoxLayout(filterPanel, BoxLayout.LINE_AXIS));
+        filterPanel.add(Box.createHorizontalStrut(10));
+        filterPanel.add(filterField);
+        filterPanel.add(Box.createHorizontalStrut(10));
+        topPanel.add(filterPanel);
+        topPanel.add(Box.createVerticalStrut(3));
+        add(topPanel, BorderLayout.PAGE_START);
         
         add(Box.createVerticalStrut(5),BorderLayout.CENTER);
 
@@ -86,11 +137,40 @@ public class RestoreFrame extends JFrame {
 
         // Add the backup list
         listPanel.add(Box.createHorizontalStrut(10));
-        listModel = new DefaultListModel();
-        backupList = new JList(listModel);
+        listModel = new BackupListModel(labels);
+        backupList = new JList<String>(listModel);
         backupList.setDragEnabled(false);
         backupList.setLayoutOrientation(JList.VERTICAL);
-        backupList.setSelectionMode(SINGLE_SELECTION);
+        // Two backups can be selected to compare them
+        backupList.setSelectionMode(MULTIPLE_INTERVAL_SELECTION);
+        backupList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                    boolean cellHasFocus) {
+                String label = labels.get((String) value);
+                super.getListCellRendererComponent(list, label == null || label.isEmpty() ? value
+                        : value + "  " + label, index, isSelected, cellHasFocus);
+                if (SaveSnapshots.isSnapshot((String) value)) {
+                    SaveSnapshots snapshots = parent.getBackupManager().getSnapshots();
+                    setFont(getFont().deriveFont(Font.ITALIC));
+                    setToolTipText("The save as it was before a restore, kept until " + DateFormat.getDateTimeInstance()
+                            .format(new Date(snapshots.getExpiry(snapshots.getSnapshot((String) value)))));
+                    return this;
+                }
+                // Health flag, from the last scrub
+                BackupScrubber.Health health = parent.getBackupManager().getScrubber().getHealth((String) value);
+                if (health != null && health.getStatus() == BackupScrubber.Status.DAMAGED) {
+                    setText("(!) " + getText());
+                    if (!isSelected) {
+                        setForeground(Color.red);
+                    }
+                }
+                setToolTipText(health == null ? "Not verified yet" : health.toString());
+                return this;
+            }
+        });
+        // Fixed size rows, so only the visible ones are ever rendered
+        backupList.setPrototypeCellValue(SaveSnapshots.PREFIX + "0000_00_00 00-00-00");
         JScrollPane listScrollPane = new JScrollPane(backupList);
         listScrollPane.setHorizontalScrollBarPolicy(HORIZONTAL_SCROLLBAR_NEVER);
         listScrollPane.setVerticalScrollBarPolicy(VERTICAL_SCROLLBAR_ALWAYS);
@@ -109,6 +189,13 @@ public class RestoreFrame extends JFrame {
         restoreBtn.setAlignmentX(CENTER_ALIGNMENT);
         btnPanel.add(restoreBtn);
         btnPanel.add(Box.createVerticalStrut(3));
+        // Add compare button
+        compareBtn = new JButton("Compare");
+        compareBtn.setToolTipText("Show what differs between the selected backup and the current save, or between two selected backups");
+        compareBtn.addActionListener(inManager);
+        compareBtn.setAlignmentX(CENTER_ALIGNMENT);
+        btnPanel.add(compareBtn);
+        btnPanel.add(Box.createVerticalStrut(3));
         // Add cancel button
         cancelBtn = new JButton("Cancel");
         cancelBtn.addActionListener(inManager);
@@ -121,40 +208,161 @@ public class RestoreFrame extends JFrame {
     }
 
     /**
-     * Initialize the backup list.
+     * Initialize the backup list. The backups are listed in the background
+     * and shown a page at a time, the window doesn't wait for them.
      */
     protected void init() {
         File backupFolder = new File(parent.backupFolderPath);
         if (backupFolder.exists()) {
-            // get all backup names
-            String[] subDirs = backupFolder.list(parent.bkpFolderFilter);
-            Arrays.sort(subDirs);
-            for (String bak : subDirs) {
-                listModel.addElement(bak);
-            }
-            requestFocus();
+            final BackupManager manager = parent.getBackupManager();
+            scanner = new SwingWorker<List<String>, List<String>>() {
+                @Override
+                protected List<String> doInBackground() {
+                    // get all backup names, already sorted by the catalog
+                    List<String> backups = manager.listBackups();
+                    // Read the scrub results here rather than on the first paint
+                    manager.getScrubber().getHealth("");
+                    for (int i = 0; i < backups.size() && !isCancelled(); i += PAGE_SIZE) {
+                        publish(new ArrayList<String>(backups.subList(i, Math.min(backups.size(), i + PAGE_SIZE))));
+                    }
+                    // The snapshots taken before the last restores come last
+                    List<String> snapshots = manager.getSnapshots().list();
+                    if (!snapshots.isEmpty() && !isCancelled()) {
+                        publish(snapshots);
+                    }
+                    return backups;
+                }
+
+                @Override
+                protected void process(List<List<String>> pages) {
+                    for (List<String> page : pages) {
+                        listModel.addAll(page);
+                    }
+                }
+
+                @Override
+                protected void done() {
+                    if (!isCancelled() && manager.hasLabels()) {
+                        try {
+                            readLabels(get());
+                        } catch (InterruptedException | ExecutionException ex) {
+                            System.err.println("Can't list the backups: " + ex.getMessage());
+                        }
+                    }
+                }
+            };
+            scanner.execute();
+            filterField.requestFocusInWindow();
         } else {
             JOptionPane.showMessageDialog(this, "Error: the backup folder doesn't exist!", "Backup folder not found", JOptionPane.ERROR_MESSAGE);           
             closeWindow();
         }
     }
 
+    /**
+     * Reads the labels of the backups in the background, newest first, and
+     * shows each as soon as it's known. Only backups never labelled before
+     * have to be read.
+     *
+     * @param backups The backups.
+     */
+    private void readLabels(final List<String> backups) {
+        final BackupManager manager = parent.getBackupManager();
+        labeller = new SwingWorker<Void, String[]>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                try {
+                    for (int i = backups.size() - 1; i >= 0 && !isCancelled(); i--) {
+                        try {
+                            publish(new String[]{backups.get(i), manager.getLabel(backups.get(i))});
+                        } catch (IOException ex) {
+                            System.err.println("Can't label " + backups.get(i) + ": " + ex.getMessage());
+                        }
+                    }
+                } finally {
+                    manager.saveLabels();
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(List<String[]> chunks) {
+                for (String[] label : chunks) {
+                    labels.put(label[0], label[1]);
+                }
+                // Some may now match the filter
+                listModel.refilter();
+                backupList.repaint();
+            }
+        };
+        labeller.execute();
+    }
+
     /**
      * Close the window.
      */
     private void closeWindow() {
+        if (scanner != null) {
+            scanner.cancel(false);
+        }
+        if (labeller != null) {
+            labeller.cancel(false);
+        }
         this.dispose();
         parent.requestFocus();
     }
 
     private void restoreSelectedBackup() {
+        if (backupList.getSelectedValuesList().size() > 1) {
+            JOptionPane.showMessageDialog(this, "Select only the backup to restore.", "Restore",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
         if(backupList.getSelectedValue()!=null){
-            System.out.println(parent.backupFolderPath+"/"+(String)backupList.getSelectedValue());
-            parent.performRestore(parent.backupFolderPath+"/"+(String)backupList.getSelectedValue());
+            BackupScrubber.Health health = parent.getBackupManager().getScrubber()
+                    .getHealth(backupList.getSelectedValue());
+            if (health != null && health.getStatus() == BackupScrubber.Status.DAMAGED
+                    && JOptionPane.showConfirmDialog(this, "This backup failed its last check:\n" + health.getDetail()
+                            + "\nThe damaged files can't be restored. Try anyway?", "Damaged backup",
+                            JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION) {
+                return;
+            }
+            String path = getBackup(backupList.getSelectedValue()).getPath();
+            System.out.println(path);
+            parent.performRestore(path);
             closeWindow();
         }
     }
 
+    /**
+     * Compares the selected backup with the current save, or the two selected
+     * backups with each other, in a window of its own.
+     */
+    private void compareSelectedBackups() {
+        List<String> selected = backupList.getSelectedValuesList();
+        if (selected.isEmpty() || selected.size() > 2) {
+            JOptionPane.showMessageDialog(this, "Select a backup to compare with the current save, or two backups.",
+                    "Compare", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String older = selected.get(0);
+        if (selected.size() == 1) {
+            new DiffFrame(parent, getBackup(older), older, null, "Current save");
+        } else {
+            String newer = selected.get(1);
+            new DiffFrame(parent, getBackup(older), older, getBackup(newer), newer);
+        }
+    }
+
+    /**
+     * @param name A backup or snapshot, as listed.
+     * @return Where it is.
+     */
+    private File getBackup(String name) {
+        return SaveSnapshots.isSnapshot(name) ? parent.getBackupManager().getSnapshots().getSnapshot(name)
+                : new File(parent.backupFolderPath, name);
+    }
+
     private class InputManager implements ActionListener, KeyListener {
 
         @Override
@@ -162,6 +370,9 @@ public class RestoreFrame extends JFrame {
             if (e.getSource() == restoreBtn) {
                 restoreSelectedBackup();
             }
+            if (e.getSource() == compareBtn) {
+                compareSelectedBackups();
+            }
             if (e.getSource() == cancelBtn) {
                 closeWindow();
             }
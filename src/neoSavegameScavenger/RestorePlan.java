@@ -0,0 +1,179 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a restore will do to every save file: only the files that differ from
+ * the backup are copied, the others are left alone. Save files the backup
+ * doesn't have are deleted only if asked to.
+ */
+public class RestorePlan {
+
+    /**
+     * What happens to a save file.
+     */
+    public enum Action {
+
+        /**
+         * Missing or different, it will be copied from the backup.
+         */
+        COPY,
+        /**
+         * Already the same as in the backup.
+         */
+        SKIP,
+        /**
+         * Not in the backup, it will be deleted.
+         */
+        DELETE,
+        /**
+         * Not in the backup, but left where it is.
+         */
+        KEEP
+    }
+
+    /**
+     * What happens to one save file, and why.
+     */
+    public static class Step {
+
+        private final String name;
+        private final Action action;
+        private final String reason;
+
+        Step(String name, Action action, String reason) {
+            this.name = name;
+            this.action = action;
+            this.reason = reason;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            String verb = action.name().toLowerCase();
+            return verb + "       ".substring(verb.length()) + name + "  (" + reason + ")";
+        }
+    }
+
+    private final File backup;
+    private final long created = System.currentTimeMillis();
+    private final List<Step> steps = new ArrayList<Step>();
+
+    /**
+     * @param backup The backup to restore.
+     */
+    public RestorePlan(File backup) {
+        this.backup = backup;
+    }
+
+    void add(String name, Action action, String reason) {
+        steps.add(new Step(name, action, reason));
+    }
+
+    /**
+     * Chooses what happens to the save files the backup doesn't have.
+     *
+     * @param delete true to delete them, false to leave them.
+     */
+    public void setDeleteExtras(boolean delete) {
+        for (int i = 0; i < steps.size(); i++) {
+            Step s = steps.get(i);
+            if (s.action == Action.DELETE || s.action == Action.KEEP) {
+                steps.set(i, new Step(s.name, delete ? Action.DELETE : Action.KEEP, s.reason));
+            }
+        }
+    }
+
+    public File getBackup() {
+        return backup;
+    }
+
+    /**
+     * @return When the save was compared with the backup, in milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return Every save file, the backup's first.
+     */
+    public List<Step> getSteps() {
+        return new ArrayList<Step>(steps);
+    }
+
+    /**
+     * @param action An action.
+     * @return The names of the files the action applies to.
+     */
+    public Set<String> getNames(Action action) {
+        Set<String> names = new HashSet<String>();
+        for (Step s : steps) {
+            if (s.action == action) {
+                names.add(s.name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return true if the save already matches the backup, and nothing would
+     * be written or deleted.
+     */
+    public boolean isEmpty() {
+        return getNames(Action.COPY).isEmpty() && getNames(Action.DELETE).isEmpty();
+    }
+
+    /**
+     * @return A one line summary, e.g. "1 to copy, 4 unchanged".
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(getNames(Action.COPY).size()).append(" to copy, ")
+                .append(getNames(Action.SKIP).size()).append(" unchanged");
+        int deleted = getNames(Action.DELETE).size(), kept = getNames(Action.KEEP).size();
+        if (deleted > 0) {
+            summary.append(", ").append(deleted).append(" to delete");
+        }
+        if (kept > 0) {
+            summary.append(", ").append(kept).append(" not in the backup");
+        }
+        return summary.toString();
+    }
+}
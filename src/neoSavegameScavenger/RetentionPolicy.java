@@ -0,0 +1,215 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Decides which old backups to delete. A policy is a list of rules
+ * "age=spacing", youngest first: backups younger than the age are kept one
+ * per spacing (the newest of each period), or all of them if the spacing is
+ * "all". Backups older than the last rule are deleted, unless its age is "*".
+ * The newest dated backup is always kept, so a long break from the game
+ * doesn't lose every save. Ages and spacings are numbers followed by m, h, d or w.
+ * <p>
+ * E.g. "1h=all,1d=1h,30d=1d": everything from the last hour, hourly for a
+ * day, daily for a month, nothing older.
+ */
+public class RetentionPolicy {
+
+    /**
+     * What the policy says about a backup.
+     */
+    public static class Decision {
+
+        private final String name;
+        private final boolean keep;
+        private final String reason;
+
+        Decision(String name, boolean keep, String reason) {
+            this.name = name;
+            this.keep = keep;
+            this.reason = reason;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isKept() {
+            return keep;
+        }
+
+        /**
+         * @return Why the backup is kept or deleted, for the dry run report.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return (keep ? "keep   " : "delete ") + name + "  (" + reason + ")";
+        }
+    }
+
+    private final String text;
+    private final long[] ages, spacings;
+
+    private RetentionPolicy(String text, long[] ages, long[] spacings) {
+        this.text = text;
+        this.ages = ages;
+        this.spacings = spacings;
+    }
+
+    /**
+     * @param text The policy, e.g. "1h=all,1d=1h,30d=1d".
+     * @return The parsed policy.
+     * @throws IllegalArgumentException If the policy is malformed.
+     */
+    public static RetentionPolicy parse(String text) {
+        String[] rules = text.trim().split("\\s*,\\s*");
+        long[] ages = new long[rules.length];
+        long[] spacings = new long[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            String[] parts = rules[i].split("\\s*=\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Retention rules look like \"age=spacing\", not \"" + rules[i] + "\"");
+            }
+            ages[i] = parts[0].equals("*") ? Long.MAX_VALUE : parseDuration(parts[0]);
+            spacings[i] = parts[1].equalsIgnoreCase("all") ? 0 : parseDuration(parts[1]);
+            if (i > 0 && ages[i] <= ages[i - 1]) {
+                throw new IllegalArgumentException("Retention rules must go from the youngest to the oldest age.");
+            }
+            if (ages[i] == Long.MAX_VALUE && i < rules.length - 1) {
+                throw new IllegalArgumentException("The \"*\" age can only be in the last retention rule.");
+            }
+        }
+        return new RetentionPolicy(text, ages, spacings);
+    }
+
+    /**
+     * @param text A number followed by m, h, d or w.
+     * @return The duration in milliseconds.
+     */
+    private static long parseDuration(String text) {
+        long unit;
+        switch (text.isEmpty() ? ' ' : Character.toLowerCase(text.charAt(text.length() - 1))) {
+            case 'm':
+                unit = 60 * 1000L;
+                break;
+            case 'h':
+                unit = 60 * 60 * 1000L;
+                break;
+            case 'd':
+                unit = 24 * 60 * 60 * 1000L;
+                break;
+            case 'w':
+                unit = 7 * 24 * 60 * 60 * 1000L;
+                break;
+            default:
+                throw new IllegalArgumentException("Durations end with m, h, d or w: \"" + text + "\"");
+        }
+        try {
+            long value = Long.parseLong(text.substring(0, text.length() - 1));
+            if (value <= 0) {
+                throw new IllegalArgumentException("Durations must be positive: \"" + text + "\"");
+            }
+            return value * unit;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid duration \"" + text + "\"", ex);
+        }
+    }
+
+    /**
+     * Decides the fate of every backup, in a single pass from the newest to
+     * the oldest. Backups whose name isn't a date are always kept, and so is
+     * the newest dated one.
+     *
+     * @param names The backups' names, oldest first.
+     * @param times The backups' creation times, in milliseconds, -1 where
+     * unknown; same order as names.
+     * @param now The current time, in milliseconds.
+     * @return A decision for every backup, newest first.
+     */
+    public List<Decision> apply(List<String> names, long[] times, long now) {
+        List<Decision> decisions = new ArrayList<Decision>(names.size());
+        TimeZone zone = TimeZone.getDefault();
+        int rule = 0;
+        long lastPeriod = Long.MIN_VALUE;
+        boolean newest = true;
+        for (int i = names.size() - 1; i >= 0; i--) {
+            String name = names.get(i);
+            if (times[i] < 0) {
+                decisions.add(new Decision(name, true, "not a dated backup"));
+                continue;
+            }
+            long age = now - times[i];
+            while (rule < ages.length && age >= ages[rule]) {
+                // Ages only grow from here on
+                rule++;
+                lastPeriod = Long.MIN_VALUE;
+            }
+            if (rule == ages.length) {
+                decisions.add(newest ? new Decision(name, true, "older than every rule, but the newest backup")
+                        : new Decision(name, false, "older than every rule"));
+            } else if (spacings[rule] == 0) {
+                decisions.add(new Decision(name, true, "younger than " + describe(ages[rule])));
+            } else {
+                // Periods follow the local clock, so "1d" means calendar days
+                long local = times[i] + zone.getOffset(times[i]);
+                long period = Math.floorDiv(local, spacings[rule]);
+                if (period == lastPeriod) {
+                    decisions.add(new Decision(name, false, "a newer backup covers its "
+                            + describe(spacings[rule])));
+                } else {
+                    lastPeriod = period;
+                    decisions.add(new Decision(name, true, "newest of its " + describe(spacings[rule])));
+                }
+            }
+            newest = false;
+        }
+        return decisions;
+    }
+
+    private static String describe(long millis) {
+        if (millis == Long.MAX_VALUE) {
+            return "forever";
+        }
+        long minutes = millis / 60000;
+        if (minutes % (7 * 24 * 60) == 0) {
+            return minutes / (7 * 24 * 60) + "w";
+        } else if (minutes % (24 * 60) == 0) {
+            return minutes / (24 * 60) + "d";
+        } else if (minutes % 60 == 0) {
+            return minutes / 60 + "h";
+        }
+        return minutes + "m";
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
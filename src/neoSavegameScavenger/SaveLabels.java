@@ -0,0 +1,131 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The labels read from the save files of the backups, kept in the data
+ * folder. Backups never change, so each one is read only once; the cache is
+ * thrown away when the fields the labels are made of change.
+ */
+public class SaveLabels {
+
+    private static final String HEADER = "# NSS save labels 1";
+    private final Path file;
+    private final String fields;
+    private final Map<String, String> labels = new HashMap<String, String>();
+    private boolean loaded, modified;
+
+    /**
+     * @param backupFolder The backup folder the labels belong to.
+     * @param fields The fields the labels are made of, as in the config.
+     */
+    public SaveLabels(File backupFolder, String fields) {
+        file = new File(new File(backupFolder, BlobStore.DATA_FOLDER), "labels").toPath();
+        this.fields = fields;
+    }
+
+    /**
+     * @param backup The name of a backup.
+     * @return The backup's label, empty if its save has none of the fields,
+     * or null if it hasn't been read yet.
+     */
+    public synchronized String get(String backup) {
+        if (!loaded) {
+            load();
+        }
+        return labels.get(backup);
+    }
+
+    /**
+     * Records the label of a backup.
+     *
+     * @param backup The name of the backup.
+     * @param label Its label.
+     */
+    public synchronized void put(String backup, String label) {
+        if (!loaded) {
+            load();
+        }
+        labels.put(backup, label);
+        modified = true;
+    }
+
+    private void load() {
+        loaded = true;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String s = in.readLine();
+            if (!HEADER.equals(s) || !("fields=" + fields).equals(in.readLine())) {
+                // Made for other fields, start over
+                modified = true;
+                return;
+            }
+            while ((s = in.readLine()) != null) {
+                int tab = s.indexOf('\t');
+                if (tab > 0) {
+                    labels.put(s.substring(0, tab), s.substring(tab + 1));
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Ignoring the label cache: " + ex.getMessage());
+            labels.clear();
+        }
+    }
+
+    /**
+     * Writes the labels to the disk, if any was added.
+     *
+     * @throws IOException If the cache can't be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            out.write("fields=" + fields);
+            out.newLine();
+            for (Map.Entry<String, String> e : labels.entrySet()) {
+                out.write(e.getKey() + "\t" + e.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        modified = false;
+    }
+}
@@ -0,0 +1,194 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshots of the save taken before every restore, so that restoring the
+ * wrong backup can be undone by restoring the snapshot. They are kept in a
+ * hidden sibling of the savegame folder, on the same disk, and named like a
+ * backup with a "Before restore" prefix; they're deleted after a while.
+ * <p>
+ * A restore never writes into the save files, it renames new ones over them
+ * or deletes them: the files it's about to replace are hard linked into the
+ * snapshot, which costs no time and no space, and keep their content once
+ * the save folder moves on. The files it leaves in place could still be
+ * rewritten by the game later, so they are copied, as is everything on file
+ * systems without hard links.
+ */
+public class SaveSnapshots {
+
+    /**
+     * Starts the name of every snapshot, followed by its date.
+     */
+    public static final String PREFIX = "Before restore ";
+    private static final String SNAPSHOTS_SUFFIX = ".nss-snapshots";
+    private static final String TMP_SUFFIX = ".tmp";
+    private final File folder;
+    private final File saveFolder;
+    private final long keepMillis;
+
+    /**
+     * @param saveFolder The savegame folder.
+     * @param keepMillis How long snapshots are kept, 0 to not take any.
+     */
+    public SaveSnapshots(File saveFolder, long keepMillis) {
+        this.saveFolder = saveFolder.getAbsoluteFile();
+        this.keepMillis = keepMillis;
+        folder = new File(this.saveFolder.getParentFile(), "." + this.saveFolder.getName() + SNAPSHOTS_SUFFIX);
+    }
+
+    /**
+     * @param config The config to read the savegame folder and the snapshot
+     * lifetime from.
+     * @return The snapshots of the savegame folder in the config.
+     */
+    public static SaveSnapshots fromConfig(Config config) {
+        return new SaveSnapshots(new File(config.get(Config.SAVE_FOLDER_PATH, "")),
+                TimeUnit.HOURS.toMillis(config.getInt(Config.SNAPSHOT_HOURS, 24)));
+    }
+
+    /**
+     * Snapshots the save files. The snapshot only gets its name once
+     * complete.
+     *
+     * @param replaced Names of the save files about to be replaced or
+     * deleted.
+     * @return The snapshot, or null if snapshots are turned off.
+     * @throws IOException If a file can't be linked or copied.
+     */
+    public File take(Set<String> replaced) throws IOException {
+        if (keepMillis <= 0) {
+            return null;
+        }
+        File[] files = saveFolder.listFiles(BackupManager.savefileFilter);
+        if (files == null) {
+            throw new IOException("Error: can't read the savegame folder " + saveFolder.getPath());
+        }
+        expire();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Error: can't create the folder " + folder.getPath());
+        }
+        String stamp = PREFIX + new SimpleDateFormat("yyyy_MM_dd HH-mm-ss").format(new Date());
+        File snapshot = new File(folder, stamp);
+        for (int n = 2; snapshot.exists(); n++) {
+            snapshot = new File(folder, stamp + " " + n);
+        }
+        File tmp = new File(folder, snapshot.getName() + TMP_SUFFIX);
+        BackupManager.deleteFolder(tmp);
+        if (!tmp.mkdir()) {
+            throw new IOException("Error: can't create the folder " + tmp.getPath());
+        }
+        try {
+            for (File f : files) {
+                Path target = new File(tmp, f.getName()).toPath();
+                if (!replaced.contains(f.getName()) || !link(f.toPath(), target)) {
+                    Files.copy(f.toPath(), target, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            BackupManager.deleteFolder(tmp);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The names of the snapshots not expired yet, oldest first.
+     */
+    public List<String> list() {
+        List<String> names = new ArrayList<String>();
+        File[] snapshots = folder.listFiles();
+        if (snapshots != null) {
+            for (File snapshot : snapshots) {
+                if (isSnapshot(snapshot.getName()) && snapshot.isDirectory() && getExpiry(snapshot) > System.currentTimeMillis()) {
+                    names.add(snapshot.getName());
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * @param name A name, as listed.
+     * @return true if it names a snapshot rather than a backup.
+     */
+    public static boolean isSnapshot(String name) {
+        return name.startsWith(PREFIX) && !name.endsWith(TMP_SUFFIX);
+    }
+
+    /**
+     * @param name The name of a snapshot.
+     * @return The snapshot's folder, restored like a backup.
+     */
+    public File getSnapshot(String name) {
+        return new File(folder, name);
+    }
+
+    /**
+     * @param snapshot A snapshot.
+     * @return When it gets deleted, in milliseconds since the epoch.
+     */
+    public long getExpiry(File snapshot) {
+        return snapshot.lastModified() + keepMillis;
+    }
+
+    /**
+     * Deletes the expired snapshots and what a crash left of unfinished ones.
+     */
+    public void expire() {
+        File[] snapshots = folder.listFiles();
+        if (snapshots == null) {
+            return;
+        }
+        for (File snapshot : snapshots) {
+            if (snapshot.getName().startsWith(PREFIX) && (snapshot.getName().endsWith(TMP_SUFFIX)
+                    || getExpiry(snapshot) <= System.currentTimeMillis())) {
+                BackupManager.deleteFolder(snapshot);
+            }
+        }
+        // Only deleted when empty, so it isn't left behind for nothing
+        folder.delete();
+    }
+
+    private static boolean link(Path source, Path target) {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps cleared saves for a while, so that a clear can be undone. Clearing
+ * renames the whole savegame folder into a hidden sibling folder on the same
+ * disk, which takes no time and either happens entirely or not at all, and
+ * puts an empty folder in its place; undoing renames it back. Nothing is
+ * copied either way. Cleared saves are deleted on a background thread once
+ * they can't be undone anymore, and at the next start if the program was
+ * closed before that.
+ * <p>
+ * If the folder itself can't be renamed (the game may hold it open) its
+ * files are renamed one by one instead, and put back if one of them fails.
+ */
+public class SaveTrash {
+
+    private static final String TRASH_SUFFIX = ".nss-trash";
+    /**
+     * Shared by every instance, so that a rename and a purge of the same
+     * folder never overlap when the config is reloaded.
+     */
+    private static final Object LOCK = new Object();
+    private static ScheduledExecutorService purger;
+    private final File saveFolder, trashFolder;
+    private final long undoMillis;
+
+    /**
+     * @param saveFolder The savegame folder.
+     * @param undoMillis How long a clear can be undone, 0 to not keep cleared
+     * saves at all.
+     */
+    public SaveTrash(File saveFolder, long undoMillis) {
+        this.saveFolder = saveFolder.getAbsoluteFile();
+        this.undoMillis = undoMillis;
+        trashFolder = new File(this.saveFolder.getParentFile(), "." + this.saveFolder.getName() + TRASH_SUFFIX);
+    }
+
+    /**
+     * @param config The config to read the savegame folder and the undo time
+     * from.
+     * @return The trash of the savegame folder in the config.
+     */
+    public static SaveTrash fromConfig(Config config) {
+        return new SaveTrash(new File(config.get(Config.SAVE_FOLDER_PATH, "")),
+                TimeUnit.MINUTES.toMillis(config.getInt(Config.CLEAR_UNDO, 10)));
+    }
+
+    public long getUndoMillis() {
+        return undoMillis;
+    }
+
+    /**
+     * Moves everything in the savegame folder to the trash, leaving the
+     * folder empty.
+     *
+     * @return The number of files and folders moved.
+     * @throws IOException If the savegame folder doesn't exist or can't be
+     * moved; it's left as it was.
+     */
+    public int moveToTrash() throws IOException {
+        int moved;
+        synchronized (LOCK) {
+            String[] names = saveFolder.list();
+            if (names == null) {
+                throw new IOException("Error: the savegame folder doens't exist!");
+            }
+            if (!trashFolder.isDirectory() && !trashFolder.mkdirs()) {
+                throw new IOException("Error: can't create the folder " + trashFolder.getPath());
+            }
+            swap(saveFolder, newEntry());
+            moved = names.length;
+        }
+        purgeLater(undoMillis);
+        return moved;
+    }
+
+    /**
+     * @return Whether the last clear can still be undone.
+     */
+    public boolean canUndo() {
+        synchronized (LOCK) {
+            return getUndoable() != null;
+        }
+    }
+
+    /**
+     * Puts the save of the last clear back. Whatever the savegame folder got
+     * since is moved to the trash in its place, so it can be put back in turn.
+     *
+     * @return The number of files and folders put back.
+     * @throws IOException If there's nothing to undo or the save can't be
+     * moved back.
+     */
+    public int undo() throws IOException {
+        int restored;
+        synchronized (LOCK) {
+            File entry = getUndoable();
+            if (entry == null) {
+                throw new IOException("There's no clear to undo" + (undoMillis > 0 ? ", a clear can only be undone for "
+                        + TimeUnit.MILLISECONDS.toMinutes(undoMillis) + " minutes." : "."));
+            }
+            String[] current = saveFolder.list();
+            if (current != null && current.length > 0) {
+                swap(saveFolder, newEntry());
+            }
+            swap(entry, saveFolder);
+            restored = saveFolder.list().length;
+            entry.delete();
+        }
+        purgeLater(undoMillis);
+        return restored;
+    }
+
+    /**
+     * Deletes the cleared saves that can't be undone anymore.
+     *
+     * @throws IOException If one can't be deleted.
+     */
+    public void purge() throws IOException {
+        synchronized (LOCK) {
+            for (File entry : listEntries()) {
+                if (System.currentTimeMillis() - Long.parseLong(entry.getName()) >= undoMillis) {
+                    deleteTree(entry.toPath());
+                }
+            }
+            // Only deleted when empty, so it isn't left behind for nothing
+            trashFolder.delete();
+        }
+    }
+
+    /**
+     * Purges on a background daemon thread.
+     *
+     * @param delayMillis How long to wait first.
+     */
+    public void purgeLater(long delayMillis) {
+        synchronized (SaveTrash.class) {
+            if (purger == null) {
+                purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "NSS trash purge");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+            purger.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        purge();
+                    } catch (IOException ex) {
+                        System.err.println("Can't empty the trash: " + ex.getMessage());
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The most recent cleared save still in its undo time, or null.
+     */
+    private File getUndoable() {
+        File latest = null;
+        for (File entry : listEntries()) {
+            if (System.currentTimeMillis() - Long.parseLong(entry.getName()) < undoMillis
+                    && (latest == null || entry.getName().compareTo(latest.getName()) > 0)) {
+                latest = entry;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return A folder in the trash for a save cleared now.
+     */
+    private File newEntry() {
+        long time = System.currentTimeMillis();
+        while (new File(trashFolder, Long.toString(time)).exists()) {
+            time++;
+        }
+        return new File(trashFolder, Long.toString(time));
+    }
+
+    /**
+     * @return The cleared saves, named by the time of their clear.
+     */
+    private List<File> listEntries() {
+        List<File> entries = new ArrayList<File>();
+        File[] files = trashFolder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory() && f.getName().matches("\\d{1,18}")) {
+                    entries.add(f);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Renames a folder to a path that doesn't exist yet, or to an empty
+     * folder, leaving an empty folder behind. Falls back to renaming its
+     * files one by one if the folder can't be renamed.
+     */
+    private static void swap(File from, File to) throws IOException {
+        String[] existing = to.list();
+        if (existing == null || existing.length == 0) {
+            to.delete();
+            boolean renamed;
+            try {
+                Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                renamed = true;
+            } catch (IOException ex) {
+                // In use, fall back to the files
+                renamed = false;
+            }
+            if (renamed) {
+                if (!from.mkdir()) {
+                    Files.move(to.toPath(), from.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    throw new IOException("Error: can't recreate the folder " + from.getPath());
+                }
+                return;
+            }
+        }
+        if (!to.isDirectory() && !to.mkdir()) {
+            throw new IOException("Error: can't create the folder " + to.getPath());
+        }
+        List<String> moved = new ArrayList<String>();
+        for (String name : from.list()) {
+            try {
+                Files.move(new File(from, name).toPath(), new File(to, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                moved.add(name);
+            } catch (IOException ex) {
+                // All or nothing: put back the files moved so far
+                for (String back : moved) {
+                    try {
+                        Files.move(new File(to, back).toPath(), new File(from, back).toPath(),
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException ex2) {
+                        System.err.println("Can't put back " + back + ": " + ex2.getMessage());
+                    }
+                }
+                throw new IOException("Error: can't move " + new File(from, name).getPath() + " ("
+                        + ex.getMessage() + "), nothing was changed.");
+            }
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,554 @@
+/* The MIT License
+ * Copyright (C) 2014 Elia Calligaris
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package neoSavegameScavenger;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pulls a few values out of a Flash shared object (.sol) file, AMF0 or AMF3,
+ * in one streaming pass. Values are named by their path, e.g. "day" or
+ * "player.name" for a property of an object; array elements are numbered
+ * from 0. Only the objects on the way to a wanted value are looked into, the
+ * rest is skipped without being decoded, and reading stops as soon as every
+ * value has been found.
+ * <p>
+ * It can also walk the whole file and hand every value to a visitor as it's
+ * read, so that two saves can be compared without holding either.
+ */
+public class SolReader {
+
+    private static final int AMF0_NUMBER = 0x00, AMF0_BOOLEAN = 0x01, AMF0_STRING = 0x02, AMF0_OBJECT = 0x03,
+            AMF0_NULL = 0x05, AMF0_UNDEFINED = 0x06, AMF0_REFERENCE = 0x07, AMF0_ECMA_ARRAY = 0x08,
+            AMF0_OBJECT_END = 0x09, AMF0_STRICT_ARRAY = 0x0A, AMF0_DATE = 0x0B, AMF0_LONG_STRING = 0x0C,
+            AMF0_UNSUPPORTED = 0x0D, AMF0_XML = 0x0F, AMF0_TYPED_OBJECT = 0x10, AMF0_AMF3 = 0x11;
+    private static final int AMF3_UNDEFINED = 0x00, AMF3_NULL = 0x01, AMF3_FALSE = 0x02, AMF3_TRUE = 0x03,
+            AMF3_INTEGER = 0x04, AMF3_DOUBLE = 0x05, AMF3_STRING = 0x06, AMF3_XML_DOC = 0x07, AMF3_DATE = 0x08,
+            AMF3_ARRAY = 0x09, AMF3_OBJECT = 0x0A, AMF3_XML = 0x0B, AMF3_BYTE_ARRAY = 0x0C,
+            AMF3_VECTOR_INT = 0x0D, AMF3_VECTOR_UINT = 0x0E, AMF3_VECTOR_DOUBLE = 0x0F,
+            AMF3_VECTOR_OBJECT = 0x10, AMF3_DICTIONARY = 0x11;
+    private final DataInputStream in;
+    private final Set<String> wanted;
+    /**
+     * The paths of the objects holding wanted values, "" being the file.
+     */
+    private final Set<String> parents = new HashSet<String>();
+    private final Map<String, String> found = new HashMap<String, String>();
+    private final List<String> strings = new ArrayList<String>();
+    private final List<Traits> traits = new ArrayList<Traits>();
+    /**
+     * Gets every value when set, instead of the wanted ones.
+     */
+    private Visitor visitor;
+
+    /**
+     * Receives the values of a whole shared object.
+     */
+    public interface Visitor {
+
+        /**
+         * @param path The value's path.
+         * @param value The value as text. What isn't a number, boolean,
+         * string or date is described, e.g. "null" or "(16 bytes)".
+         * @return true to go on, false to stop reading.
+         * @throws IOException To stop reading with an error.
+         */
+        boolean value(String path, String value) throws IOException;
+    }
+
+    /**
+     * Thrown through the reader when the visitor asks to stop.
+     */
+    private static class Stop extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        Stop() {
+            super("Stopped");
+        }
+    }
+
+    /**
+     * The shape of an AMF3 object: its class's properties, and whether more
+     * can be added.
+     */
+    private static class Traits {
+
+        private final String[] members;
+        private final boolean dynamic, externalizable;
+        private final String className;
+
+        Traits(String className, String[] members, boolean dynamic, boolean externalizable) {
+            this.className = className;
+            this.members = members;
+            this.dynamic = dynamic;
+            this.externalizable = externalizable;
+        }
+    }
+
+    private SolReader(InputStream in, Collection<String> paths) {
+        this.in = new DataInputStream(in);
+        wanted = new HashSet<String>(paths);
+        for (String path : paths) {
+            for (int i = path.indexOf('.'); i >= 0; i = path.indexOf('.', i + 1)) {
+                parents.add(path.substring(0, i));
+            }
+        }
+        parents.add("");
+    }
+
+    /**
+     * Reads the wanted values from a shared object. Numbers, booleans,
+     * strings and dates are returned as text; a path leading to anything else
+     * is not found.
+     *
+     * @param in The .sol file. Not closed.
+     * @param paths The paths of the wanted values.
+     * @return The values found, by path.
+     * @throws IOException If the file can't be read or isn't a shared object.
+     */
+    public static Map<String, String> read(InputStream in, Collection<String> paths) throws IOException {
+        SolReader reader = new SolReader(in, paths);
+        if (!reader.wanted.isEmpty()) {
+            reader.readFile();
+        }
+        return reader.found;
+    }
+
+    /**
+     * Reads every value of a shared object, in the order of the file.
+     *
+     * @param in The .sol file. Not closed.
+     * @param visitor Gets the values.
+     * @throws IOException If the file can't be read or isn't a shared object,
+     * or the visitor fails.
+     */
+    public static void readAll(InputStream in, Visitor visitor) throws IOException {
+        SolReader reader = new SolReader(in, Collections.<String>emptySet());
+        reader.visitor = visitor;
+        try {
+            reader.readFile();
+        } catch (Stop ex) {
+            // The visitor has seen enough
+        }
+    }
+
+    private void readFile() throws IOException {
+        if (in.readUnsignedShort() != 0x00BF) {
+            throw new IOException("Not a shared object");
+        }
+        in.readInt();
+        byte[] signature = new byte[10];
+        in.readFully(signature);
+        if (signature[0] != 'T' || signature[1] != 'C' || signature[2] != 'S' || signature[3] != 'O') {
+            throw new IOException("Not a shared object");
+        }
+        skip(in.readUnsignedShort());
+        boolean amf3 = in.readInt() == 3;
+        int first;
+        while ((visitor != null || found.size() < wanted.size()) && (first = in.read()) != -1) {
+            if (amf3) {
+                String name = readString3(first);
+                readValue3(name);
+            } else {
+                int length = first << 8 | in.readUnsignedByte();
+                String name = readName0(length, "");
+                readValue0(name);
+            }
+            // Every property ends with a padding byte
+            in.readByte();
+        }
+    }
+
+    //<editor-fold desc="AMF0">
+    /**
+     * Reads a property name, or skips it if nothing under the parent is
+     * wanted (or the parent itself isn't, when null).
+     */
+    private String readName0(int length, String parent) throws IOException {
+        if (!descends(parent)) {
+            skip(length);
+            return null;
+        }
+        return child(parent, readUtf(length));
+    }
+
+    /**
+     * @param path The value's path, or null if nothing in it is wanted.
+     */
+    private void readValue0(String path) throws IOException {
+        int type = in.readUnsignedByte();
+        boolean isWanted = isWanted(path);
+        switch (type) {
+            case AMF0_NUMBER:
+                double number = in.readDouble();
+                if (isWanted) {
+                    emit(path, formatNumber(number));
+                }
+                break;
+            case AMF0_BOOLEAN:
+                boolean bool = in.readBoolean();
+                if (isWanted) {
+                    emit(path, Boolean.toString(bool));
+                }
+                break;
+            case AMF0_STRING:
+                readText0(path, isWanted, in.readUnsignedShort());
+                break;
+            case AMF0_LONG_STRING:
+            case AMF0_XML:
+                readText0(path, isWanted, in.readInt());
+                break;
+            case AMF0_DATE:
+                double millis = in.readDouble();
+                in.readShort();
+                if (isWanted) {
+                    emit(path, formatDate(millis));
+                }
+                break;
+            case AMF0_NULL:
+            case AMF0_UNDEFINED:
+            case AMF0_UNSUPPORTED:
+                describe(path, type == AMF0_NULL ? "null" : "undefined");
+                break;
+            case AMF0_REFERENCE:
+                describe(path, "(reference " + in.readUnsignedShort() + ")");
+                break;
+            case AMF0_TYPED_OBJECT:
+                skip(in.readUnsignedShort());
+                readProperties0(path);
+                break;
+            case AMF0_ECMA_ARRAY:
+                in.readInt();
+                readProperties0(path);
+                break;
+            case AMF0_OBJECT:
+                readProperties0(path);
+                break;
+            case AMF0_STRICT_ARRAY:
+                long count = in.readInt() & 0xFFFFFFFFL;
+                for (long i = 0; i < count; i++) {
+                    readValue0(descends(path) ? child(path, Long.toString(i)) : null);
+                }
+                break;
+            case AMF0_AMF3:
+                readValue3(path);
+                break;
+            default:
+                throw new IOException("Unknown AMF0 type " + type);
+        }
+    }
+
+    private void readProperties0(String path) throws IOException {
+        int length;
+        while ((length = in.readUnsignedShort()) != 0) {
+            readValue0(readName0(length, path));
+        }
+        if (in.readUnsignedByte() != AMF0_OBJECT_END) {
+            throw new IOException("Malformed AMF0 object");
+        }
+    }
+
+    private void readText0(String path, boolean isWanted, int length) throws IOException {
+        if (isWanted) {
+            emit(path, readUtf(length));
+        } else {
+            skip(length);
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="AMF3">
+    /**
+     * @param path The value's path, or null if nothing in it is wanted.
+     */
+    private void readValue3(String path) throws IOException {
+        int type = in.readUnsignedByte();
+        boolean isWanted = isWanted(path);
+        boolean descend = descends(path);
+        int header;
+        switch (type) {
+            case AMF3_UNDEFINED:
+            case AMF3_NULL:
+                describe(path, type == AMF3_NULL ? "null" : "undefined");
+                break;
+            case AMF3_FALSE:
+            case AMF3_TRUE:
+                if (isWanted) {
+                    emit(path, Boolean.toString(type == AMF3_TRUE));
+                }
+                break;
+            case AMF3_INTEGER:
+                // 29 bit two's complement
+                int integer = readU29() << 3 >> 3;
+                if (isWanted) {
+                    emit(path, Integer.toString(integer));
+                }
+                break;
+            case AMF3_DOUBLE:
+                double number = in.readDouble();
+                if (isWanted) {
+                    emit(path, formatNumber(number));
+                }
+                break;
+            case AMF3_STRING:
+                String string = readString3(in.readUnsignedByte());
+                if (isWanted) {
+                    emit(path, string);
+                }
+                break;
+            case AMF3_DATE:
+                header = readU29();
+                if ((header & 1) != 0) {
+                    double millis = in.readDouble();
+                    if (isWanted) {
+                        emit(path, formatDate(millis));
+                    }
+                }
+                break;
+            case AMF3_XML_DOC:
+            case AMF3_XML:
+            case AMF3_BYTE_ARRAY:
+                header = readU29();
+                if ((header & 1) != 0) {
+                    skip(header >> 1);
+                    describe(path, "(" + (header >> 1) + " bytes)");
+                }
+                break;
+            case AMF3_VECTOR_INT:
+            case AMF3_VECTOR_UINT:
+            case AMF3_VECTOR_DOUBLE:
+                header = readU29();
+                if ((header & 1) != 0) {
+                    in.readByte();
+                    skip((long) (header >> 1) * (type == AMF3_VECTOR_DOUBLE ? 8 : 4));
+                    describe(path, "(" + (header >> 1) + " numbers)");
+                }
+                break;
+            case AMF3_VECTOR_OBJECT:
+                header = readU29();
+                if ((header & 1) != 0) {
+                    in.readByte();
+                    readString3(in.readUnsignedByte());
+                    readElements3(path, descend, header >> 1);
+                }
+                break;
+            case AMF3_ARRAY:
+                header = readU29();
+                if ((header & 1) != 0) {
+                    String key;
+                    while (!(key = readString3(in.readUnsignedByte())).isEmpty()) {
+                        readValue3(descend ? child(path, key) : null);
+                    }
+                    readElements3(path, descend, header >> 1);
+                }
+                break;
+            case AMF3_OBJECT:
+                readObject3(path, descend);
+                break;
+            case AMF3_DICTIONARY:
+                header = readU29();
+                if ((header & 1) != 0) {
+                    in.readByte();
+                    for (int i = 0; i < header >> 1; i++) {
+                        readValue3(null);
+                        readValue3(null);
+                    }
+                    describe(path, "(dictionary of " + (header >> 1) + ")");
+                }
+                break;
+            default:
+                throw new IOException("Unknown AMF3 type " + type);
+        }
+    }
+
+    private void readElements3(String path, boolean descend, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readValue3(descend ? child(path, Integer.toString(i)) : null);
+        }
+    }
+
+    private void readObject3(String path, boolean descend) throws IOException {
+        int header = readU29();
+        if ((header & 1) == 0) {
+            // A reference to an object read before
+            describe(path, "(reference " + (header >> 1) + ")");
+            return;
+        }
+        Traits t;
+        if ((header & 2) == 0) {
+            int index = header >> 2;
+            if (index >= traits.size()) {
+                throw new IOException("Invalid AMF3 traits reference");
+            }
+            t = traits.get(index);
+        } else {
+            boolean externalizable = (header & 4) != 0;
+            String className = readString3(in.readUnsignedByte());
+            String[] members = new String[externalizable ? 0 : header >> 4];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = readString3(in.readUnsignedByte());
+            }
+            t = new Traits(className, members, (header & 8) != 0, externalizable);
+            traits.add(t);
+        }
+        if (t.externalizable) {
+            // Only Flex's collections write something a reader can skip
+            if (t.className.equals("flex.messaging.io.ArrayCollection")
+                    || t.className.equals("flex.messaging.io.ObjectProxy")) {
+                readValue3(path);
+                return;
+            }
+            throw new IOException("Can't read the externalizable class " + t.className);
+        }
+        for (String member : t.members) {
+            readValue3(descend ? child(path, member) : null);
+        }
+        if (t.dynamic) {
+            String key;
+            while (!(key = readString3(in.readUnsignedByte())).isEmpty()) {
+                readValue3(descend ? child(path, key) : null);
+            }
+        }
+    }
+
+    /**
+     * Reads a string or a reference to a string read before.
+     *
+     * @param first The first byte of the string's header.
+     */
+    private String readString3(int first) throws IOException {
+        int header = readU29(first);
+        if ((header & 1) == 0) {
+            int index = header >> 1;
+            if (index >= strings.size()) {
+                throw new IOException("Invalid AMF3 string reference");
+            }
+            return strings.get(index);
+        }
+        int length = header >> 1;
+        if (length == 0) {
+            // The empty string is never referenced
+            return "";
+        }
+        String s = readUtf(length);
+        strings.add(s);
+        return s;
+    }
+
+    private int readU29() throws IOException {
+        return readU29(in.readUnsignedByte());
+    }
+
+    /**
+     * Reads a variable length 29 bit integer: 7 bits per byte while the high
+     * bit is set, the fourth byte counts whole.
+     */
+    private int readU29(int first) throws IOException {
+        int value = 0, b = first;
+        for (int i = 0; i < 3; i++) {
+            if ((b & 0x80) == 0) {
+                return value << 7 | b;
+            }
+            value = value << 7 | b & 0x7F;
+            b = in.readUnsignedByte();
+        }
+        return value << 8 | b;
+    }
+    //</editor-fold>
+
+    private boolean isWanted(String path) {
+        return path != null && (visitor != null || wanted.contains(path));
+    }
+
+    /**
+     * @return true if the values inside the one at path are wanted.
+     */
+    private boolean descends(String path) {
+        return path != null && (visitor != null || parents.contains(path));
+    }
+
+    private void emit(String path, String value) throws IOException {
+        if (visitor == null) {
+            found.put(path, value);
+        } else if (!visitor.value(path, value)) {
+            throw new Stop();
+        }
+    }
+
+    /**
+     * Passes on a value only a visitor gets: the wanted values are the ones
+     * that can be shown as text.
+     */
+    private void describe(String path, String description) throws IOException {
+        if (visitor != null && path != null) {
+            emit(path, description);
+        }
+    }
+
+    private static String child(String parent, String name) {
+        return parent.isEmpty() ? name : parent + "." + name;
+    }
+
+    private String readUtf(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            int n = in.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (n <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+
+    private static String formatNumber(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        return Double.toString(number);
+    }
+
+    private static String formatDate(double millis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date((long) millis));
+    }
+}